@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.benchmarks;
+
+import edu.upenn.library.solrplugins.JsonReferencePayloadTokenizerFactory;
+import edu.upenn.library.solrplugins.tokentype.SortKeyJoinFilterFactory;
+import edu.upenn.library.solrplugins.tokentype.TokenTypeJoinFilterFactory;
+import edu.upenn.library.solrplugins.tokentype.TokenTypeProcessFilterFactory;
+import edu.upenn.library.solrplugins.tokentype.TokenTypeSplitFilterFactory;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.KeywordTokenizerFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Index-time analysis throughput of the chains documented in the README, over a generated
+ * {@link AuthorityCorpus}. Each benchmark operation analyzes one field value, so the primary
+ * score is field values/sec; the "tokens" secondary score reports tokens/sec. Run with
+ * <code>-prof gc</code> to report bytes allocated per field value (gc.alloc.rate.norm).
+ * Chains over plain headings ({@link Headings}) and over JSON values ({@link JsonValues}) are
+ * separate benchmarks, so that only the latter are parameterized by references per value.
+ *
+ * @author michael
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class AnalysisChainBenchmark {
+
+  private static final String FIELD_NAME = "benchmark";
+  private static final String ICU_FOLDING_FACTORY = "org.apache.lucene.analysis.icu.ICUFoldingFilterFactory";
+
+  @Param("4096")
+  public int corpusSize;
+
+  private Analyzer analyzer;
+  private String[] corpus;
+  private int upto;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class TokenCounter {
+
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      tokens = 0;
+    }
+  }
+
+  /**
+   * normSortTerm: README section 1 (plain headings).
+   */
+  public static class Headings extends AnalysisChainBenchmark {
+
+    @Override
+    protected String chain() {
+      return "normSortTerm";
+    }
+
+    @Override
+    protected String[] buildCorpus() {
+      return AuthorityCorpus.headings(corpusSize, 42);
+    }
+  }
+
+  public static class JsonValues extends AnalysisChainBenchmark {
+
+    /**
+     * xfacet: README xfacet index analyzer; xfacetSortKey and xfacetCollationKey: xfacet with
+     * the fused SortKeyJoinFilter, folding and collation-key normalized components respectively.
+     */
+    @Param({"xfacet", "xfacetSortKey", "xfacetCollationKey"})
+    public String chain;
+
+    /**
+     * Maximum number of references per JSON value.
+     */
+    @Param({"0", "4", "32"})
+    public int maxRefs;
+
+    @Override
+    protected String chain() {
+      return chain;
+    }
+
+    @Override
+    protected String[] buildCorpus() {
+      return AuthorityCorpus.jsonValues(corpusSize, maxRefs, 42);
+    }
+  }
+
+  protected abstract String chain();
+
+  protected abstract String[] buildCorpus();
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    analyzer = buildAnalyzer(chain());
+    corpus = buildCorpus();
+    upto = 0;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    analyzer.close();
+  }
+
+  @Benchmark
+  public int analyze(TokenCounter counter) throws IOException {
+    String value = corpus[upto];
+    if (++upto == corpus.length) {
+      upto = 0;
+    }
+    int count = 0;
+    TokenStream ts = analyzer.tokenStream(FIELD_NAME, value);
+    try {
+      ts.reset();
+      while (ts.incrementToken()) {
+        count++;
+      }
+      ts.end();
+    } finally {
+      ts.close();
+    }
+    counter.tokens += count;
+    return count;
+  }
+
+  static Analyzer buildAnalyzer(String chain) throws IOException {
+    switch (chain) {
+      case "normSortTerm":
+        return CustomAnalyzer.builder()
+            .withTokenizer(KeywordTokenizerFactory.class, args())
+            .addTokenFilter(TokenTypeSplitFilterFactory.class,
+                args("inputTypeRename", "SPLIT_ORIGINAL", "outputType", "SPLIT_COPY"))
+            .addTokenFilter(TokenTypeProcessFilterFactory.class,
+                args("includeTypes", "SPLIT_COPY", "_class", ICU_FOLDING_FACTORY))
+            .addTokenFilter(TokenTypeJoinFilterFactory.class,
+                args("inputTypes", "SPLIT_COPY,SPLIT_ORIGINAL", "outputType", "SPLIT_JOINED"))
+            .build();
+      case "xfacet":
+        return CustomAnalyzer.builder()
+            .withTokenizer(JsonReferencePayloadTokenizerFactory.class, args())
+            .addTokenFilter(TokenTypeSplitFilterFactory.class,
+                args("includeTypes", "filing", "outputType", "normalized", "_class", ICU_FOLDING_FACTORY))
+            .addTokenFilter(TokenTypeJoinFilterFactory.class,
+                args("inputTypes", "normalized,filing,prefix", "outputType", "indexed", "typeForPayload", "normalized"))
+            .build();
+      case "xfacetSortKey":
+        return CustomAnalyzer.builder()
+            .withTokenizer(JsonReferencePayloadTokenizerFactory.class, args())
+            .addTokenFilter(SortKeyJoinFilterFactory.class, args("outputType", "indexed"))
+            .build();
+      case "xfacetCollationKey":
+        return CustomAnalyzer.builder()
+            .withTokenizer(JsonReferencePayloadTokenizerFactory.class, args())
+            .addTokenFilter(SortKeyJoinFilterFactory.class, args("outputType", "indexed", "collationLocale", "en"))
+            .build();
+      default:
+        throw new IllegalArgumentException("unrecognized chain: " + chain);
+    }
+  }
+
+  private static Map<String, String> args(String... keyValues) {
+    Map<String, String> ret = new HashMap<>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      ret.put(keyValues[i], keyValues[i + 1]);
+    }
+    return ret;
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.benchmarks;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import java.util.Random;
+
+/**
+ * Deterministic generator of authority-style field values: plain headings (for normSortTerm),
+ * and JSON values as parsed by JsonReferencePayloadTokenizer (for xfacet), with optional
+ * nonfiling prefixes and a varied number (0 to maxRefs) of use_for/see_also references.
+ *
+ * @author michael
+ */
+public final class AuthorityCorpus {
+
+  private static final String[] SYLLABLES = new String[] {
+    "an", "ber", "Cha", "dö", "el", "Fra", "gue", "hé", "ir", "Jo", "ka", "lø", "Mü", "nor", "o", "Pé",
+    "qu", "ros", "Šte", "tho", "ú", "Vla", "wei", "xi", "Yo", "zé", "Æth", "ço", "ñá", "ẞe"
+  };
+  private static final String[] PREFIXES = new String[] {"The ", "A ", "Le ", "Die ", "El "};
+  private static final String[] REFERENCE_TYPES = new String[] {"use_for", "see_also"};
+
+  private AuthorityCorpus() {
+  }
+
+  /**
+   * Returns the specified number of plain headings.
+   */
+  public static String[] headings(int size, long seed) {
+    Random r = new Random(seed);
+    String[] ret = new String[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = heading(r);
+    }
+    return ret;
+  }
+
+  /**
+   * Returns the specified number of JSON values, each with 0 to maxRefs (inclusive) references.
+   */
+  public static String[] jsonValues(int size, int maxRefs, long seed) {
+    Random r = new Random(seed);
+    String[] ret = new String[size];
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      sb.setLength(0);
+      sb.append("{\"raw\": ");
+      appendTarget(sb, r);
+      int refCount = maxRefs == 0 ? 0 : r.nextInt(maxRefs + 1);
+      if (refCount > 0) {
+        sb.append(", \"refs\": {");
+        int useFor = r.nextInt(refCount + 1);
+        int[] counts = new int[] {useFor, refCount - useFor};
+        boolean first = true;
+        for (int j = 0; j < REFERENCE_TYPES.length; j++) {
+          if (counts[j] == 0) {
+            continue;
+          }
+          if (!first) {
+            sb.append(", ");
+          }
+          first = false;
+          sb.append('"').append(REFERENCE_TYPES[j]).append("\": [");
+          for (int k = 0; k < counts[j]; k++) {
+            if (k > 0) {
+              sb.append(", ");
+            }
+            appendTarget(sb, r);
+          }
+          sb.append(']');
+        }
+        sb.append('}');
+      }
+      ret[i] = sb.append('}').toString();
+    }
+    return ret;
+  }
+
+  private static void appendTarget(StringBuilder sb, Random r) {
+    String filing = heading(r);
+    if (r.nextInt(8) == 0) {
+      sb.append("{\"prefix\": \"").append(PREFIXES[r.nextInt(PREFIXES.length)]).append("\", \"filing\": \"");
+      sb.append(JsonStringEncoder.getInstance().quoteAsString(filing)).append("\"}");
+    } else {
+      sb.append('"').append(JsonStringEncoder.getInstance().quoteAsString(filing)).append('"');
+    }
+  }
+
+  private static String heading(Random r) {
+    StringBuilder sb = new StringBuilder();
+    appendName(sb, r);
+    sb.append(", ");
+    appendName(sb, r);
+    if (r.nextBoolean()) {
+      sb.append(' ').append((char) ('A' + r.nextInt(26))).append('.');
+    }
+    if (r.nextInt(3) == 0) {
+      int birth = 1500 + r.nextInt(480);
+      sb.append(", ").append(birth).append('-');
+      if (r.nextBoolean()) {
+        sb.append(birth + 20 + r.nextInt(70));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void appendName(StringBuilder sb, Random r) {
+    int syllables = 1 + r.nextInt(3);
+    for (int i = 0; i < syllables; i++) {
+      sb.append(SYLLABLES[r.nextInt(SYLLABLES.length)]);
+    }
+  }
+
+}
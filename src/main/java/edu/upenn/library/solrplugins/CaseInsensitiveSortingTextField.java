@@ -16,14 +16,29 @@
 package edu.upenn.library.solrplugins;
 
 import java.io.IOException;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import edu.upenn.library.solrplugins.tokentype.SortKeyBytes;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CachingTokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.util.Bits;
@@ -31,18 +46,23 @@ import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.analysis.TokenizerChain;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.core.SolrResourceLoader;
 import org.apache.solr.request.FacetPayload;
 import org.apache.solr.request.MultiSerializable;
+import org.apache.solr.request.TermReferences;
 import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.TextField;
+import org.apache.solr.util.ConcurrentLRUCache;
 
 /**
  *
  * @author michael
  */
-public class CaseInsensitiveSortingTextField extends TextField implements MultiSerializable, FacetPayload<Object> {
+public class CaseInsensitiveSortingTextField extends TextField implements MultiSerializable, FacetPayload<Object>, TermReferences, SolrInfoMBean {
 
   private static final String NORMALIZED_TOKEN_TYPE = "normalized";
   private static final String RAW_TOKEN_TYPE = "filing";
@@ -53,15 +73,49 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
   private static final String DISPLAYIZER_ARGNAME = "displayizer";
   private static final String PAYLOAD_HANDLER_ARGNAME = "payloadHandler";
   private static final String HIERARCHY_LEVEL_ARGNAME = "hierarchyLevel";
+  private static final String REFERENCE_DOCVALUES_ARGNAME = "referenceDocValues";
+  private static final String TARGET_CACHE_SIZE_ARGNAME = "targetCacheSize";
+  private static final String TARGET_ANALYZER_ARGNAME = "targetAnalyzer";
+  private static final String TARGET_ANALYZER_AUTO = "auto";
+  private static final String TARGET_ANALYZER_QUERY = "query";
+  private static final String NORMALIZED_FORM_ARGNAME = "normalizedForm";
+  private static final String NORMALIZED_FORM_TEXT = "text";
+  private static final String NORMALIZED_FORM_COLLATION_KEY = "collationKey";
+
+  /**
+   * If referenceDocValues is enabled, each distinct indexed term/payload pair is also recorded
+   * per-doc as a SortedSet docValues key (see {@link #appendReferenceKeyPrefix(BytesRefBuilder, BytesRef)},
+   * followed by the payload) in a companion field of this name (field name + suffix). Keys with
+   * empty payloads represent "self" occurrences.
+   */
+  public static final String REFERENCE_DOCVALUES_SUFFIX = "__refs";
   private static final char DELIM_CHAR = '\u0000';
   private static final int DEFAULT_HIERARCHY_LEVEL = 0;
+  private static final int DEFAULT_TARGET_CACHE_SIZE = 1024;
+  private static final String TARGET_CACHE_INFO_PREFIX = "targetCache.";
 
   private int hierarchyLevel = DEFAULT_HIERARCHY_LEVEL;
-  private String delim;
-  private byte[] delimBytes;
+  private String delim = initDelim(DEFAULT_HIERARCHY_LEVEL);
+  private byte[] delimBytes = delim.getBytes(StandardCharsets.UTF_8);
   private TextTransformer serializer;
   private TextTransformer displayizer;
   private FacetPayload payloadHandler;
+  private boolean referenceDocValues;
+  /**
+   * Normalized query targets; scoped to this field type instance, so implicitly invalidated
+   * when the schema is reloaded. Null if disabled.
+   */
+  private ConcurrentLRUCache<TargetKey, BytesRef> targetCache;
+  /**
+   * Query analyzer with JSON tokenization replaced by {@link FilingTokenizer}, for plain-string
+   * targets. Null if not applicable.
+   */
+  private Analyzer targetAnalyzer;
+  /**
+   * True if the normalized component of indexed terms is a binary collation key, escaped per
+   * {@link SortKeyBytes} (e.g., as built by SortKeyJoinFilter with collationLocale).
+   */
+  private boolean collationKeyNormalized;
 
   private String initDelim(int hierarchyLevel) {
     char[] tmp = new char[hierarchyLevel + 1];
@@ -83,14 +137,199 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     } else {
       payloadHandler = new DefaultPayloadHandler();
     }
+    if (payloadHandler instanceof JsonReferencePayloadHandler) {
+      // compact payload reference types are configured on the index-time tokenizer
+      Analyzer indexAnalyzer = getIndexAnalyzer();
+      if (indexAnalyzer instanceof TokenizerChain
+          && ((TokenizerChain) indexAnalyzer).getTokenizerFactory() instanceof JsonReferencePayloadTokenizerFactory) {
+        JsonReferencePayloadTokenizerFactory tf = (JsonReferencePayloadTokenizerFactory) ((TokenizerChain) indexAnalyzer).getTokenizerFactory();
+        ((JsonReferencePayloadHandler) payloadHandler).setReferenceTypes(tf.getReferenceTypes());
+      }
+    }
     if (args.containsKey(HIERARCHY_LEVEL_ARGNAME)) {
       hierarchyLevel = loader.newInstance(args.remove(HIERARCHY_LEVEL_ARGNAME), Integer.class);
     }
+    if (args.containsKey(REFERENCE_DOCVALUES_ARGNAME)) {
+      referenceDocValues = Boolean.parseBoolean(args.remove(REFERENCE_DOCVALUES_ARGNAME));
+    }
+    initQueryTargets(args);
+    String normalizedForm = args.containsKey(NORMALIZED_FORM_ARGNAME) ? args.remove(NORMALIZED_FORM_ARGNAME) : NORMALIZED_FORM_TEXT;
+    if (NORMALIZED_FORM_COLLATION_KEY.equals(normalizedForm)) {
+      collationKeyNormalized = true;
+    } else if (!NORMALIZED_FORM_TEXT.equals(normalizedForm)) {
+      throw new IllegalArgumentException("unrecognized " + NORMALIZED_FORM_ARGNAME + ": " + normalizedForm);
+    }
     delim = initDelim(hierarchyLevel);
     delimBytes = delim.getBytes(StandardCharsets.UTF_8);
     super.init(schema, args);
   }
 
+  /**
+   * Configures normalization of query targets (target cache, and plain-string target analyzer)
+   * against the current query analyzer, consuming the relevant args.
+   */
+  void initQueryTargets(Map<String, String> args) {
+    int targetCacheSize = DEFAULT_TARGET_CACHE_SIZE;
+    if (args.containsKey(TARGET_CACHE_SIZE_ARGNAME)) {
+      targetCacheSize = Integer.parseInt(args.remove(TARGET_CACHE_SIZE_ARGNAME));
+    }
+    if (targetCacheSize > 0) {
+      targetCache = new ConcurrentLRUCache<>(targetCacheSize, Math.max(1, (int) (targetCacheSize * 0.9)));
+    }
+    String targetAnalyzerMode = args.containsKey(TARGET_ANALYZER_ARGNAME) ? args.remove(TARGET_ANALYZER_ARGNAME) : TARGET_ANALYZER_AUTO;
+    if (TARGET_ANALYZER_AUTO.equals(targetAnalyzerMode)) {
+      targetAnalyzer = deriveTargetAnalyzer(getQueryAnalyzer());
+    } else if (!TARGET_ANALYZER_QUERY.equals(targetAnalyzerMode)) {
+      throw new IllegalArgumentException("unrecognized " + TARGET_ANALYZER_ARGNAME + ": " + targetAnalyzerMode);
+    }
+  }
+
+  /**
+   * If the specified analyzer tokenizes via JsonReferencePayloadTokenizer, returns an equivalent
+   * analyzer (same char filters and token filters) for plain-string input, which the JSON tokenizer
+   * would have emitted as a single "filing" token.
+   */
+  private static Analyzer deriveTargetAnalyzer(Analyzer queryAnalyzer) {
+    if (!(queryAnalyzer instanceof TokenizerChain)) {
+      return null;
+    }
+    TokenizerChain chain = (TokenizerChain) queryAnalyzer;
+    if (!(chain.getTokenizerFactory() instanceof JsonReferencePayloadTokenizerFactory)) {
+      return null;
+    }
+    return new TokenizerChain(chain.getCharFilterFactories(), new FilingTokenizerFactory(new HashMap<>()),
+        chain.getTokenFilterFactories());
+  }
+
+  /**
+   * Returns the plain-string content of the specified target if it may be analyzed without JSON
+   * parsing (i.e., it is not a JSON object, and is either unquoted or a JSON string with no escapes),
+   * otherwise null. Surrounding whitespace is not significant (as for JSON input); unquoted
+   * targets that are not valid JSON are thus interpreted as plain strings.
+   */
+  static String plainTarget(String val) {
+    String trimmed = val.trim();
+    if (trimmed.isEmpty()) {
+      return null;
+    }
+    switch (trimmed.charAt(0)) {
+      case '{':
+      case '[':
+        return null;
+      case '"':
+        int end = trimmed.length() - 1;
+        if (end > 0 && trimmed.indexOf('"', 1) == end && trimmed.indexOf('\\') < 0) {
+          return trimmed.substring(1, end);
+        }
+        return null;
+      default:
+        return trimmed;
+    }
+  }
+
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value, float boost) {
+    List<IndexableField> fields = super.createFields(field, value, boost);
+    if (!referenceDocValues || value == null || !field.indexed()) {
+      return fields;
+    }
+    List<IndexableField> ret = new ArrayList<>(fields.size() + 4);
+    Set<BytesRef> keys = new HashSet<>();
+    try {
+      for (IndexableField f : fields) {
+        if (!(f instanceof Field) || !field.getName().equals(f.name()) || f.fieldType().indexOptions() == IndexOptions.NONE) {
+          ret.add(f);
+          continue;
+        }
+        // analyze once: index the cached tokens, and derive keys from the same pass
+        org.apache.lucene.document.FieldType indexedType = new org.apache.lucene.document.FieldType(f.fieldType());
+        indexedType.setStored(false);
+        indexedType.freeze();
+        TokenStream tokens = collectReferenceKeys(getIndexAnalyzer().tokenStream(f.name(), f.stringValue()), keys);
+        if (f.fieldType().stored()) {
+          ret.add(new StoredField(f.name(), f.stringValue()));
+        }
+        Field indexed = new Field(f.name(), tokens, indexedType);
+        indexed.setBoost(f.boost());
+        ret.add(indexed);
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException("error analyzing reference keys for field " + field.getName(), ex);
+    }
+    String refsFieldName = field.getName() + REFERENCE_DOCVALUES_SUFFIX;
+    for (BytesRef key : keys) {
+      ret.add(new SortedSetDocValuesField(refsFieldName, key));
+    }
+    return ret;
+  }
+
+  /**
+   * Consumes the specified (index-time) token stream, adding the distinct term/payload keys of its
+   * tokens to the specified set; returns a stream that replays the consumed tokens (e.g., for
+   * indexing). The specified stream is closed on return, so that the analyzer's components may be
+   * reused (e.g., for subsequent values of a multiValued field) before the replay is consumed.
+   */
+  static TokenStream collectReferenceKeys(TokenStream analyzed, Set<BytesRef> keys) throws IOException {
+    AnalyzedValue ret = new AnalyzedValue(analyzed);
+    try {
+      ret.reset();
+      CharTermAttribute termAtt = ret.getAttribute(CharTermAttribute.class);
+      PayloadAttribute payloadAtt = ret.addAttribute(PayloadAttribute.class);
+      BytesRefBuilder term = new BytesRefBuilder();
+      BytesRefBuilder key = new BytesRefBuilder();
+      while (ret.incrementToken()) {
+        term.copyChars(termAtt);
+        key.clear();
+        appendReferenceKeyPrefix(key, term.get());
+        BytesRef payload = payloadAtt.getPayload();
+        if (payload != null) {
+          key.append(payload);
+        }
+        keys.add(key.toBytesRef());
+      }
+    } finally {
+      ret.close();
+    }
+    return ret;
+  }
+
+  /**
+   * Appends the docValues reference key prefix for the specified indexed term: the term length
+   * (as a vInt), followed by the term bytes. Terms may contain any byte (e.g., escaped collation
+   * keys contain 0x01), so a separator could not mark where the term ends; with the length
+   * prefix, the keys of a given term are exactly those that start with its key prefix.
+   */
+  static void appendReferenceKeyPrefix(BytesRefBuilder key, BytesRef term) {
+    int length = term.length;
+    while ((length & ~0x7f) != 0) {
+      key.append((byte) ((length & 0x7f) | 0x80));
+      length >>>= 7;
+    }
+    key.append((byte) length);
+    key.append(term);
+  }
+
+  /**
+   * Caches the tokens of a single analysis pass for replay; closing (once the cache is filled)
+   * releases the underlying stream, and subsequent close() calls are no-ops.
+   */
+  private static final class AnalyzedValue extends CachingTokenFilter {
+
+    private boolean inputClosed = false;
+
+    private AnalyzedValue(TokenStream input) {
+      super(input);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!inputClosed) {
+        inputClosed = true;
+        super.close();
+      }
+    }
+  }
+
   @Override
   public String getDelim() {
     return delim;
@@ -103,7 +342,82 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
 
   @Override
   public BytesRef normalizeQueryTarget(String val, boolean strict, String fieldName, boolean appendExtraDelim) throws IOException {
-    TokenStream ts = getQueryAnalyzer().tokenStream(fieldName, val);
+    if (targetCache == null) {
+      return analyzeQueryTarget(val, strict, fieldName, appendExtraDelim);
+    }
+    TargetKey key = new TargetKey(fieldName, val, strict, appendExtraDelim);
+    BytesRef ret = targetCache.get(key);
+    if (ret == null) {
+      ret = analyzeQueryTarget(val, strict, fieldName, appendExtraDelim);
+      targetCache.put(key, ret);
+    }
+    // callers own the returned instance
+    return BytesRef.deepCopyOf(ret);
+  }
+
+  /////////////////////////////////////////////
+  ///  SolrInfoMBean
+  ////////////////////////////////////////////
+
+  @Override
+  public String getName() {
+    return TARGET_CACHE_INFO_PREFIX + getTypeName();
+  }
+
+  @Override
+  public String getVersion() {
+    return getClass().getPackage().getSpecificationVersion();
+  }
+
+  @Override
+  public String getDescription() {
+    return "Query target normalization cache for fieldType " + getTypeName();
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.CACHE;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  /**
+   * Returns hit/miss statistics for the query target normalization cache; empty if the cache
+   * is disabled ({@value #TARGET_CACHE_SIZE_ARGNAME} &lt;= 0).
+   */
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> ret = new NamedList<>();
+    if (targetCache == null) {
+      return ret;
+    }
+    ConcurrentLRUCache.Stats stats = targetCache.getStats();
+    long lookups = stats.getCumulativeLookups();
+    long hits = stats.getCumulativeHits();
+    ret.add("lookups", lookups);
+    ret.add("hits", hits);
+    ret.add("hitratio", lookups == 0 ? 0f : (float) hits / lookups);
+    ret.add("evictions", stats.getCumulativeEvictions());
+    ret.add("size", stats.getCurrentSize());
+    return ret;
+  }
+
+  private BytesRef analyzeQueryTarget(String val, boolean strict, String fieldName, boolean appendExtraDelim) throws IOException {
+    String plain;
+    TokenStream ts;
+    if (targetAnalyzer != null && (plain = plainTarget(val)) != null) {
+      ts = targetAnalyzer.tokenStream(fieldName, plain);
+    } else {
+      ts = getQueryAnalyzer().tokenStream(fieldName, val);
+    }
     try {
       ts.reset();
       CharTermAttribute termAtt = ts.getAttribute(CharTermAttribute.class);
@@ -125,6 +439,38 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     }
   }
 
+  private static final class TargetKey {
+
+    private final String fieldName;
+    private final String val;
+    private final boolean strict;
+    private final boolean appendExtraDelim;
+    private final int hash;
+
+    private TargetKey(String fieldName, String val, boolean strict, boolean appendExtraDelim) {
+      this.fieldName = fieldName;
+      this.val = val;
+      this.strict = strict;
+      this.appendExtraDelim = appendExtraDelim;
+      this.hash = ((fieldName.hashCode() * 31 + val.hashCode()) * 31 + (strict ? 1 : 0)) * 31 + (appendExtraDelim ? 1 : 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof TargetKey)) {
+        return false;
+      }
+      TargetKey other = (TargetKey) obj;
+      return hash == other.hash && strict == other.strict && appendExtraDelim == other.appendExtraDelim
+          && val.equals(other.val) && fieldName.equals(other.fieldName);
+    }
+  }
+
   @Override
   public void updateExternalRepresentation(NamedList<Object> nl) {
     for (int i = 0; i < nl.size(); i++) {
@@ -149,6 +495,11 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     }
   }
 
+  /**
+   * Returns the offset of the first run of hierarchyLevel + 1 delimiters. Escaped collation keys
+   * never contain DELIM_CHAR (nor, as UTF-8, a 0 byte), so for either normalized form the first
+   * run terminates the normalized component.
+   */
   private int delimOffset(BytesRef br) {
     return delimOffset(br, br.offset);
   }
@@ -189,24 +540,33 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     return -1;
   }
 
+  /**
+   * For normalizedForm="collationKey", the returned chars are the unescaped collation key, one
+   * char per (unsigned) byte value.
+   */
   @Override
   public CharsRef indexedToNormalized(BytesRef input, CharsRefBuilder output) {
     int endIndex = delimOffset(input);
     if (endIndex < 0) {
-      return super.indexedToReadable(input, output);
+      super.indexedToReadable(input, output);
     } else {
-      return super.indexedToReadable(new BytesRef(input.bytes, input.offset, endIndex - input.offset), output);
+      super.indexedToReadable(new BytesRef(input.bytes, input.offset, endIndex - input.offset), output);
     }
+    if (collationKeyNormalized) {
+      output.setLength(SortKeyBytes.unescape(output.chars(), 0, output.length()));
+    }
+    return output.get();
   }
 
   @Override
   public String indexedToNormalized(String indexedForm) {
     int endIndex = indexedForm.indexOf(delim);
-    if (endIndex < 0) {
-      return indexedForm;
-    } else {
-      return indexedForm.substring(0, endIndex);
+    String ret = endIndex < 0 ? indexedForm : indexedForm.substring(0, endIndex);
+    if (collationKeyNormalized) {
+      char[] chars = ret.toCharArray();
+      ret = new String(chars, 0, SortKeyBytes.unescape(chars, 0, chars.length));
     }
+    return ret;
   }
 
   @Override
@@ -244,6 +604,11 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     return payloadHandler.mergePayload(preExisting, add, preExistingCount, addCount);
   }
 
+  @Override
+  public void mergePayloadInPlace(Object preExisting, Object add, long preExistingCount, long addCount) {
+    payloadHandler.mergePayloadInPlace(preExisting, add, preExistingCount, addCount);
+  }
+
   @Override
   public long extractCount(Object val) {
     return payloadHandler.extractCount(val);
@@ -254,6 +619,55 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
     return payloadHandler.updateValueExternalRepresentation(internal);
   }
 
+  @Override
+  public Object updateValueCompactRepresentation(Object internal) {
+    return payloadHandler.updateValueCompactRepresentation(internal);
+  }
+
+  @Override
+  public int compactFormatVersion() {
+    return payloadHandler.compactFormatVersion();
+  }
+
+  @Override
+  public void resolveReferenceCounts(NamedList<Object> termVals, String fieldName, IndexedTermCounter counter) throws IOException {
+    if (!(payloadHandler instanceof JsonReferencePayloadHandler)) {
+      return;
+    }
+    JsonReferencePayloadHandler handler = (JsonReferencePayloadHandler) payloadHandler;
+    // targets are commonly shared across entries; resolve each only once
+    Map<String, Long> resolved = new HashMap<>();
+    ReferenceAggregate.TargetCounter targetCounter = (filing, prefix) -> {
+      String json = referenceTargetJson(filing, prefix);
+      Long ret = resolved.get(json);
+      if (ret == null) {
+        BytesRef indexed = analyzeQueryTarget(json, true, fieldName, false);
+        ret = indexed.length == 0 ? -1 : counter.count(indexed);
+        resolved.put(json, ret);
+      }
+      return ret;
+    };
+    for (int i = 0; i < termVals.size(); i++) {
+      Object val = termVals.getVal(i);
+      if (!(val instanceof Number)) {
+        termVals.setVal(i, handler.resolveTargetCounts(val, targetCounter));
+      }
+    }
+  }
+
+  /**
+   * Builds the (JsonReferencePayloadTokenizer) multi-part string input for the specified target
+   */
+  private static String referenceTargetJson(String filing, String prefix) {
+    JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+    StringBuilder sb = new StringBuilder("{\"filing\":\"");
+    sb.append(encoder.quoteAsString(filing == null ? "" : filing)).append('"');
+    if (prefix != null) {
+      sb.append(",\"prefix\":\"").append(encoder.quoteAsString(prefix)).append('"');
+    }
+    return sb.append('}').toString();
+  }
+
   private static class DefaultPayloadHandler implements FacetPayload<Object> {
 
     @Override
@@ -281,5 +695,10 @@ public class CaseInsensitiveSortingTextField extends TextField implements MultiS
       return null;
     }
 
+    @Override
+    public Object updateValueCompactRepresentation(Object internal) {
+      return null;
+    }
+
   }
 }
@@ -0,0 +1,70 @@
+package edu.upenn.library.solrplugins;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeFactory;
+
+/**
+ * Tokenizer that emits its entire input as a single "filing" token, equivalent to
+ * the output of JsonReferencePayloadTokenizer for a plain (non-JSON) string, but
+ * without JSON parsing. Used for lightweight analysis of query targets.
+ *
+ * @author michael
+ */
+public final class FilingTokenizer extends Tokenizer {
+
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+  private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+  private boolean done = false;
+  private int finalOffset;
+
+  public FilingTokenizer() {
+    super();
+  }
+
+  public FilingTokenizer(AttributeFactory factory) {
+    super(factory);
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (done) {
+      return false;
+    }
+    clearAttributes();
+    done = true;
+    int upto = 0;
+    char[] buffer = termAtt.buffer();
+    int read;
+    while ((read = input.read(buffer, upto, buffer.length - upto)) != -1) {
+      upto += read;
+      if (upto == buffer.length) {
+        buffer = termAtt.resizeBuffer(upto + 1);
+      }
+    }
+    termAtt.setLength(upto);
+    typeAtt.setType(JsonReferencePayloadTokenizer.TYPE_FILING);
+    finalOffset = correctOffset(upto);
+    offsetAtt.setOffset(correctOffset(0), finalOffset);
+    return true;
+  }
+
+  @Override
+  public void end() throws IOException {
+    super.end();
+    offsetAtt.setOffset(finalOffset, finalOffset);
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    done = false;
+    finalOffset = 0;
+  }
+
+}
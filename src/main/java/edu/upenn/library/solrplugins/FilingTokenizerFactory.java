@@ -0,0 +1,27 @@
+package edu.upenn.library.solrplugins;
+
+import java.util.Map;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.apache.lucene.util.AttributeFactory;
+
+/**
+ * Accompanying factory for FilingTokenizer.
+ *
+ * @author michael
+ */
+public class FilingTokenizerFactory extends TokenizerFactory {
+
+  public FilingTokenizerFactory(Map<String,String> args) {
+    super(args);
+    if (!args.isEmpty()) {
+      throw new IllegalArgumentException("Unknown parameters: " + args);
+    }
+  }
+
+  @Override
+  public Tokenizer create(AttributeFactory factory) {
+    return new FilingTokenizer(factory);
+  }
+
+}
@@ -1,21 +1,32 @@
 package edu.upenn.library.solrplugins;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap.SimpleImmutableEntry;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder;
+import org.apache.solr.request.DocSetLeafBits;
 import org.apache.solr.request.FacetPayload;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.SolrCache;
 
 /**
  * Builds facet payloads from fields containing filing and
@@ -43,248 +54,485 @@ import org.apache.solr.request.FacetPayload;
  *   </lst>
  * </lst>
  *
+ * When requested (via facet.extend.compact), shards may instead return
+ * values in the compact binary form defined by {@link ReferenceAggregate},
+ * which are merged without intermediate NamedList construction and expanded
+ * to the above structure only for entries in the final response.
+ *
+ * Both string and compact (type-coded) payloads written by
+ * {@link JsonReferencePayloadTokenizer} are supported; the reference type
+ * dictionary for compact payloads is supplied by the enclosing field type
+ * (see {@link #setReferenceTypes(List)}).
+ *
+ * For segments indexed with referenceDocValues enabled (see
+ * {@link CaseInsensitiveSortingTextField#REFERENCE_DOCVALUES_SUFFIX}), references
+ * are counted from per-doc docValues ordinals, without visiting positions or payloads;
+ * other segments fall back to scanning payloads.
+ *
+ * The number of targets returned per reference type may be bounded by facet.refs.limit,
+ * selecting by count (default) or by name, according to facet.refs.sort. Shards select
+ * over-requested lists (see FacetComponent), and the coordinator applies the requested
+ * limit when building the external representation.
+ *
+ * When facet.refs.counts is enabled, each reference target additionally reports
+ * (as "target_count") the facet count of the target heading itself; see
+ * {@link #resolveTargetCounts(Object, ReferenceAggregate.TargetCounter)}. Shards do not resolve
+ * target counts (a shard sees only the targets referenced by its own window terms, so summing
+ * per-shard counts would undercount); instead, once the merged window is fixed, the coordinator
+ * requests counts for all of its distinct targets from every shard in one listed-terms request.
+ *
  * @author jeffchiu
  */
-public class JsonReferencePayloadHandler implements FacetPayload<NamedList<Object>> {
+public class JsonReferencePayloadHandler implements FacetPayload<Object> {
   private static final String DELIM = "\u0000";
-  private static final String KEY_SELF = "self";
-  private static final String KEY_REFS = "refs";
-  private static final String KEY_PREFIX = "prefix";
-  private static final String KEY_FILING = "filing";
-  private static final String KEY_COUNT = "count";
+  static final String KEY_SELF = "self";
+  static final String KEY_REFS = "refs";
+  static final String KEY_PREFIX = "prefix";
+  static final String KEY_FILING = "filing";
+  static final String KEY_COUNT = "count";
+  static final String KEY_TARGET_COUNT = "target_count";
+  // check for timeAllowed expiration every 256 docs
+  private static final int DEADLINE_CHECK_MASK = 0xff;
+  // UTF-8 encoding of JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR
+  private static final byte PAYLOAD_ATTR_SEPARATOR_BYTE = 0;
+  // terms with fewer docs in a segment are cheap enough to scan directly
+  private static final int MIN_CACHED_DOC_FREQ = 1024;
+
+  private volatile String[] referenceTypes;
 
   /**
-   * overwrite entry in NamedList with new value
-   * (update existing key, or add the key/value if key doesn't already exist)
+   * Sets the reference types for decoding compact payloads, in code order (as configured
+   * on {@link JsonReferencePayloadTokenizerFactory}).
    */
-  private static void overwriteInNamedList(NamedList<Object> namedList, String key, Object value) {
-    int indexOfKey = namedList.indexOf(key, 0);
-    if(indexOfKey != -1) {
-      namedList.setVal(indexOfKey, value);
-    } else {
-      namedList.add(key, value);
-    }
+  public void setReferenceTypes(List<String> referenceTypes) {
+    this.referenceTypes = referenceTypes == null ? null : referenceTypes.toArray(new String[referenceTypes.size()]);
   }
 
-  /**
-   * Copies a field value from one NamedList into another
-   */
-  private static void copyFieldInNamedList(NamedList<Object> from, NamedList<Object> to, String key) {
-    int index = from.indexOf(key, 0);
-    if(index != -1) {
-      Object value = from.get(key);
-      int index2 = to.indexOf(key, 0);
-      if(index2 != -1) {
-        to.setVal(index2, value);
+  @Override
+  public boolean addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves, NamedList<Object> res) throws IOException {
+    MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
+
+    NamedList<Object> entry = buildEntryValue(term, count, t, leaves);
+
+    res.add(term.getDisplay(), entry);
+    return true;
+  }
+
+  @Override
+  public Entry<String, Object> addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
+    MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
+    return new SimpleImmutableEntry<>(termKey, (Object) buildEntryValue(term, count, t, leaves));
+  }
+
+  private NamedList<Object> buildEntryValue(MultiPartString term, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
+    // document count for this term
+    ReferenceAggregate entry = new ReferenceAggregate(count, term.getFiling(), term.getPrefix());
+    PayloadCounts payloadCounts = null;
+    SolrCache<ReferenceAggregateCache.Key, ReferenceAggregateCache.Value> segmentCache = ReferenceAggregateCache.forCurrentRequest();
+
+    for (Entry<LeafReader, Bits> e : leaves) {
+      LeafReader reader = e.getKey();
+      Terms terms = reader.terms(t.field());
+      TermsEnum termsEnum;
+      if (terms == null || !(termsEnum = terms.iterator()).seekExact(t.bytes())) {
+        continue;
+      }
+      Bits liveDocs = e.getValue();
+      boolean complete;
+      if (segmentCache != null && liveDocs == reader.getLiveDocs() && termsEnum.docFreq() >= MIN_CACHED_DOC_FREQ) {
+        // unfiltered (match-all) leaf; use per-segment cached aggregate
+        byte[] leafAggregate = getCachedLeafAggregate(segmentCache, reader, t, termsEnum, referenceTypes);
+        complete = leafAggregate != null;
+        if (complete) {
+          if (payloadCounts != null) {
+            // preserve leaf order
+            payloadCounts.drainTo(entry);
+          }
+          entry.merge(leafAggregate);
+        }
       } else {
-        to.add(key, value);
+        if (payloadCounts == null) {
+          payloadCounts = new PayloadCounts(referenceTypes);
+        }
+        complete = countLeaf(reader, t, termsEnum, liveDocs, payloadCounts);
       }
+      if (!complete) {
+        // out of time; the enclosing window will be flagged as partial
+        break;
+      }
+    }
+    if (payloadCounts != null) {
+      payloadCounts.drainTo(entry);
     }
+
+    int refsLimit = refsLimit();
+    if (refsLimit >= 0) {
+      entry.limitRefs(refsLimit, refsIndexOrder());
+    }
+    return entry.toNamedList();
+  }
+
+  private static SolrParams requestParams() {
+    SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+    return info == null ? null : info.getReq().getParams();
   }
 
   /**
-   * For passed-in NamedList, get the NamedList value for a certain key,
-   * creating and storing it if it doesn't exist.
-   * @param namedList
-   * @param key
+   * Returns the facet.refs.limit for the current request; negative if unlimited
    */
-  private static NamedList<Object> getOrCreateNamedListValue(NamedList<Object> namedList, String key) {
-    NamedList<Object> result = (NamedList<Object>) namedList.get(key);
-    if(result == null) {
-      result = new NamedList<>();
-      namedList.add(key, result);
-    }
-    return result;
+  private static int refsLimit() {
+    SolrParams params = requestParams();
+    return params == null ? -1 : params.getInt(FacetParams.FACET_REFS_LIMIT, -1);
+  }
+
+  private static boolean refsIndexOrder() {
+    SolrParams params = requestParams();
+    return params != null && FacetParams.FACET_SORT_INDEX.equals(params.get(FacetParams.FACET_REFS_SORT, FacetParams.FACET_SORT_COUNT));
   }
 
   /**
-   * increment a Long value in a NamedList stored under "key", creating it with value of 1
-   * if it doesn't exist.
+   * Returns the (compact) aggregate of all live docs for the specified term in the specified leaf,
+   * computing and caching it if necessary; returns null if computation was cut short by a deadline.
    */
-  private static void incrementLongInNamedList(NamedList<Object> namedList, String key) {
-    int index = namedList.indexOf(key, 0);
-    if(index != -1) {
-      long oldCount = ((Number) namedList.getVal(index)).longValue();
-      namedList.setVal(index, oldCount + 1L);
+  private static byte[] getCachedLeafAggregate(SolrCache<ReferenceAggregateCache.Key, ReferenceAggregateCache.Value> segmentCache,
+      LeafReader reader, Term t, TermsEnum termsEnum, String[] referenceTypes) throws IOException {
+    ReferenceAggregateCache.Key key = new ReferenceAggregateCache.Key(reader.getCombinedCoreAndDeletesKey(), t.field(), t.bytes(), referenceTypes);
+    ReferenceAggregateCache.Value cached = segmentCache.get(key);
+    if (cached != null) {
+      return cached.compact;
+    }
+    PayloadCounts payloadCounts = new PayloadCounts(referenceTypes);
+    if (!countLeaf(reader, t, termsEnum, reader.getLiveDocs(), payloadCounts)) {
+      return null;
+    }
+    ReferenceAggregate leafAggregate = new ReferenceAggregate();
+    payloadCounts.drainTo(leafAggregate);
+    byte[] ret = leafAggregate.toBytes();
+    segmentCache.put(key.deepCopy(), new ReferenceAggregateCache.Value(ret));
+    return ret;
+  }
+
+  private static boolean countLeaf(LeafReader reader, Term t, TermsEnum termsEnum, Bits liveDocs, PayloadCounts payloadCounts) throws IOException {
+    DocIdSetIterator filter = null;
+    if (liveDocs instanceof DocSetLeafBits) {
+      DocIdSetIterator filterDocs = ((DocSetLeafBits) liveDocs).iterator();
+      if (filterDocs == null) {
+        // no filter docs in this leaf
+        return true;
+      } else if (filterDocs.cost() < termsEnum.docFreq()) {
+        // sparse filter; leapfrog rather than testing each posting
+        filter = filterDocs;
+        liveDocs = null;
+      }
+    }
+    SortedSetDocValues refKeys = reader.getSortedSetDocValues(t.field() + CaseInsensitiveSortingTextField.REFERENCE_DOCVALUES_SUFFIX);
+    if (refKeys == null) {
+      return scan(termsEnum.postings(null, PostingsEnum.PAYLOADS), liveDocs, filter, payloadCounts);
     } else {
-      namedList.add(key, 1L);
+      return countDocValues(termsEnum.postings(null, PostingsEnum.NONE), liveDocs, filter, refKeys, t.bytes(), payloadCounts);
     }
   }
 
   /**
-   * Updates the Long value for the specified key in the 'preExisting' NamedList
-   * by adding the value from the 'add' NamedList.
+   * Advances postings to the next doc, restricted to docs of the specified filter iterator (if non-null)
    */
-  private static void mergeCount(NamedList<Object> from, NamedList<Object> to, String key) {
-    // merge count
-    long existingCount = 0;
-    int indexOfCount = to.indexOf(key, 0);
-    if(indexOfCount != -1) {
-      existingCount = ((Number) to.get(key)).longValue();
+  private static int nextDoc(PostingsEnum postings, DocIdSetIterator filter) throws IOException {
+    int doc = postings.nextDoc();
+    if (filter == null) {
+      return doc;
     }
-    long newCount = existingCount + ((Number) from.get(key)).longValue();
-    overwriteInNamedList(to, key, newCount);
+    while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+      int filterDoc = filter.docID() < doc ? filter.advance(doc) : filter.docID();
+      if (filterDoc == doc || filterDoc == DocIdSetIterator.NO_MORE_DOCS) {
+        return filterDoc;
+      }
+      doc = postings.advance(filterDoc);
+    }
+    return doc;
   }
 
-  @Override
-  public boolean addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves, NamedList<NamedList<Object>> res) throws IOException {
-    MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
-
-    NamedList<Object> entry = buildEntryValue(term, count, t, leaves);
-
-    res.add(term.getDisplay(), entry);
+  /**
+   * Counts reference keys for the specified term from per-doc docValues ordinals. Keys for a given
+   * term (those starting with its length-prefixed key prefix) occupy a contiguous ord range; ords
+   * are deduplicated per doc by construction.
+   * @return false if the count was cut short by a deadline
+   */
+  private static boolean countDocValues(PostingsEnum postings, Bits liveDocs, DocIdSetIterator filter, SortedSetDocValues refKeys, BytesRef term, PayloadCounts payloadCounts) throws IOException {
+    BytesRefBuilder key = new BytesRefBuilder();
+    CaseInsensitiveSortingTextField.appendReferenceKeyPrefix(key, term);
+    BytesRef keyPrefix = key.get();
+    int keyPrefixLength = keyPrefix.length;
+    TermsEnum keys = refKeys.termsEnum();
+    if (keys.seekCeil(keyPrefix) == TermsEnum.SeekStatus.END || !StringHelper.startsWith(keys.term(), keyPrefix)) {
+      return true;
+    }
+    long minOrd = keys.ord();
+    long maxOrd = minOrd + 1;
+    BytesRef next;
+    while ((next = keys.next()) != null && StringHelper.startsWith(next, keyPrefix)) {
+      maxOrd++;
+    }
+    long[] ordCounts = new long[(int) (maxOrd - minOrd)];
+    int docsVisited = 0;
+    int doc;
+    while ((doc = nextDoc(postings, filter)) != DocIdSetIterator.NO_MORE_DOCS) {
+      if ((++docsVisited & DEADLINE_CHECK_MASK) == 0 && BidirectionalFacetResponseBuilder.deadlineExceeded()) {
+        return false;
+      }
+      if (liveDocs != null && !liveDocs.get(doc)) {
+        continue;
+      }
+      refKeys.setDocument(doc);
+      long ord;
+      while ((ord = refKeys.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS && ord < maxOrd) {
+        if (ord >= minOrd) {
+          ordCounts[(int) (ord - minOrd)]++;
+        }
+      }
+    }
+    BytesRef payload = new BytesRef();
+    for (int i = 0; i < ordCounts.length; i++) {
+      if (ordCounts[i] > 0) {
+        BytesRef k = refKeys.lookupOrd(minOrd + i);
+        payload.bytes = k.bytes;
+        payload.offset = k.offset + keyPrefixLength;
+        payload.length = k.length - keyPrefixLength;
+        payloadCounts.add(payload.length == 0 ? null : payload, ordCounts[i]);
+      }
+    }
     return true;
   }
 
-  @Override
-  public Entry<String, NamedList<Object>> addEntry(String termKey, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
-    MultiPartString term = MultiPartString.parseNormalizedFilingAndPrefix(termKey);
-    return new SimpleImmutableEntry<>(termKey, buildEntryValue(term, count, t, leaves));
+  /**
+   * Counts payloads of the specified postings (at most once per distinct payload per doc).
+   * @return false if the scan was cut short by a deadline
+   */
+  private static boolean scan(PostingsEnum postings, Bits liveDocs, DocIdSetIterator filter, PayloadCounts payloadCounts) throws IOException {
+    int docsVisited = 0;
+    while (nextDoc(postings, filter) != DocIdSetIterator.NO_MORE_DOCS) {
+      if ((++docsVisited & DEADLINE_CHECK_MASK) == 0 && BidirectionalFacetResponseBuilder.deadlineExceeded()) {
+        return false;
+      }
+      if (liveDocs != null && !liveDocs.get(postings.docID())) {
+        continue;
+      }
+      payloadCounts.nextDoc();
+      for (int j = 0; j < postings.freq(); j++) {
+        postings.nextPosition();
+        payloadCounts.add(postings.getPayload());
+
+      // Couldn't get this to work: postings.attributes() doesn't return anything: why?
+      /*
+         ReferenceAttribute refAtt = postings.attributes().getAttribute(ReferenceAttribute.class);
+         if(refAtt != null) {
+         System.out.println("found refAttr, " + refAtt.getReferenceType() + "," + refAtt.getTarget());
+         }
+         */
+      }
+    }
+    return true;
   }
 
-  private NamedList<Object> buildEntryValue(MultiPartString term, long count, Term t, List<Entry<LeafReader, Bits>> leaves) throws IOException {
-    NamedList<Object> entry = new NamedList<>();
-
-    // document count for this term
-    entry.add(KEY_COUNT, count);
+  /**
+   * Counts distinct raw payloads, working on payload bytes directly; payloads are decoded only once
+   * per distinct value, when counts are drained to a {@link ReferenceAggregate}.
+   */
+  private static final class PayloadCounts {
+
+    private final String[] referenceTypes;
+    private final BytesRefHash payloads = new BytesRefHash();
+    private long[] counts = new long[16];
+    private long[] lastCountedDoc = new long[16]; // parallel to counts, for per-doc deduplication
+    private long docOrdinal = 0;
+    private long selfCount = 0;
+    private long lastSelfCountedDoc = -1;
+
+    private PayloadCounts(String[] referenceTypes) {
+      this.referenceTypes = referenceTypes;
+    }
 
-    NamedList<Object> self = new NamedList<>();
-    entry.add(KEY_SELF, self);
+    private void nextDoc() {
+      docOrdinal++;
+    }
 
-    self.add(KEY_COUNT, 0L);
-    overwriteInNamedList(self, KEY_FILING, term.getFiling());
-    if(term.getPrefix() != null) {
-      overwriteInNamedList(self, KEY_PREFIX, term.getPrefix());
+    private void add(BytesRef payload) {
+      if (payload == null) {
+        // no payload means term is for self, so increment count
+        if (lastSelfCountedDoc != docOrdinal) {
+          lastSelfCountedDoc = docOrdinal;
+          selfCount++;
+        }
+        return;
+      }
+      int id = payloads.add(payload);
+      if (id >= 0) {
+        if (id >= counts.length) {
+          counts = ArrayUtil.grow(counts, id + 1);
+          lastCountedDoc = ArrayUtil.grow(lastCountedDoc, id + 1);
+        }
+        counts[id] = 1;
+        lastCountedDoc[id] = docOrdinal;
+      } else {
+        id = -id - 1;
+        if (lastCountedDoc[id] != docOrdinal) {
+          lastCountedDoc[id] = docOrdinal;
+          counts[id]++;
+        }
+      }
     }
 
-    NamedList<Object> refs = new NamedList<>();
-    Set<BytesRef> trackDuplicates = new HashSet<>();
+    /**
+     * Adds pre-deduplicated counts (not subject to per-doc deduplication)
+     */
+    private void add(BytesRef payload, long count) {
+      if (payload == null) {
+        selfCount += count;
+        return;
+      }
+      int id = payloads.add(payload);
+      if (id >= 0) {
+        if (id >= counts.length) {
+          counts = ArrayUtil.grow(counts, id + 1);
+          lastCountedDoc = ArrayUtil.grow(lastCountedDoc, id + 1);
+        }
+        counts[id] = count;
+        lastCountedDoc[id] = -1;
+      } else {
+        counts[-id - 1] += count;
+      }
+    }
 
-    for (Entry<LeafReader, Bits> e : leaves) {
-      PostingsEnum postings = e.getKey().postings(t, PostingsEnum.PAYLOADS);
-      if (postings == null) {
-        continue;
+    private void drainTo(ReferenceAggregate entry) {
+      if (selfCount > 0) {
+        entry.addSelf(selfCount);
+        selfCount = 0;
       }
-      Bits liveDocs = e.getValue();
-      while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-        if (liveDocs != null && !liveDocs.get(postings.docID())) {
+      BytesRef payload = new BytesRef();
+      for (int id = 0; id < payloads.size(); id++) {
+        payloads.get(id, payload);
+        if (JsonReferencePayloadTokenizer.isCompactPayload(payload)) {
+          addCompactRef(entry, payload, counts[id]);
           continue;
         }
-        trackDuplicates.clear();
-        for (int j = 0; j < postings.freq(); j++) {
-          postings.nextPosition();
-
-          BytesRef payload = postings.getPayload();
-          if (!trackDuplicates.add(payload)) {
-            continue;
-          }
-          if (payload != null) {
-            String payloadStr = payload.utf8ToString();
-            int pos = payloadStr.indexOf(JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR);
-            if (pos != -1) {
-              String referenceType = payloadStr.substring(0, pos);
-              String target = payloadStr.substring(pos + 1);
-
-              MultiPartString multiPartString = MultiPartString.parseFilingAndPrefix(target);
-              String displayName = multiPartString.getDisplay();
-
-              NamedList<Object> displayNameStructs = getOrCreateNamedListValue(refs, referenceType);
-
-              NamedList<Object> nameStruct = getOrCreateNamedListValue(displayNameStructs, displayName);
-
-              incrementLongInNamedList(nameStruct, KEY_COUNT);
-
-              overwriteInNamedList(nameStruct, KEY_FILING, multiPartString.getFiling());
-              if (multiPartString.getPrefix() != null) {
-                overwriteInNamedList(nameStruct, KEY_PREFIX, multiPartString.getPrefix());
-              }
-            }
-          } else {
-            // no payload means term is for self, so increment count
-            incrementLongInNamedList(self, KEY_COUNT);
+        int end = payload.offset + payload.length;
+        for (int i = payload.offset; i < end; i++) {
+          if (payload.bytes[i] == PAYLOAD_ATTR_SEPARATOR_BYTE) {
+            String referenceType = new String(payload.bytes, payload.offset, i - payload.offset, StandardCharsets.UTF_8);
+            String target = new String(payload.bytes, i + 1, end - i - 1, StandardCharsets.UTF_8);
+            MultiPartString multiPartString = MultiPartString.parseFilingAndPrefix(target);
+            entry.addRef(referenceType, multiPartString.getDisplay(), multiPartString.getFiling(), multiPartString.getPrefix(), counts[id]);
+            break;
           }
-
-        // Couldn't get this to work: postings.attributes() doesn't return anything: why?
-        /*
-           ReferenceAttribute refAtt = postings.attributes().getAttribute(ReferenceAttribute.class);
-           if(refAtt != null) {
-           System.out.println("found refAttr, " + refAtt.getReferenceType() + "," + refAtt.getTarget());
-           }
-           */
         }
       }
+      payloads.clear();
     }
 
-    if(refs.size() > 0) {
-      entry.add(KEY_REFS, refs);
+    private void addCompactRef(ReferenceAggregate entry, BytesRef payload, long count) {
+      int code = payload.bytes[payload.offset];
+      if (referenceTypes == null || code > referenceTypes.length) {
+        throw new IllegalStateException("no reference type configured for compact payload code " + code);
+      }
+      ByteArrayDataInput in = new ByteArrayDataInput(payload.bytes, payload.offset + 1, payload.length - 1);
+      String filing = readCompactString(in, payload.bytes);
+      String prefix = in.eof() ? null : readCompactString(in, payload.bytes);
+      entry.addRef(referenceTypes[code - 1], new MultiPartString(filing, prefix).getDisplay(), filing, prefix, count);
+    }
+
+    private static String readCompactString(ByteArrayDataInput in, byte[] bytes) {
+      int length = in.readVInt();
+      String ret = new String(bytes, in.getPosition(), length, StandardCharsets.UTF_8);
+      in.skipBytes(length);
+      return ret;
     }
 
-    return entry;
   }
 
+  /**
+   * Merges into (and returns) a {@link ReferenceAggregate}, which subsequent merges update directly;
+   * the response representation is built once, by {@link #updateValueExternalRepresentation(Object)}.
+   */
   @Override
-  public NamedList<Object> mergePayload(NamedList<Object> preExisting, NamedList<Object> add, long preExistingCount, long addCount) {
-
-    if (addCount != ((Number)add.get(KEY_COUNT)).longValue()) {
+  public Object mergePayload(Object preExisting, Object add, long preExistingCount, long addCount) {
+    if (addCount != extractCount(add)) {
       throw new IllegalStateException("fieldType-internal and -external counts do not match");
     }
-    int countIndex = preExisting.indexOf(KEY_COUNT, 0);
-    long preCount = ((Number)preExisting.getVal(countIndex)).longValue();
-    preExisting.setVal(countIndex, preCount + addCount);
-
-    if(add.get(KEY_SELF) != null) {
-      NamedList<Object> addSelf = (NamedList<Object>) add.get(KEY_SELF);
-
-      NamedList<Object> preExistingSelf = getOrCreateNamedListValue(preExisting, KEY_SELF);
-
-      mergeCount(addSelf, preExistingSelf, KEY_COUNT);
-
-      copyFieldInNamedList(addSelf, preExistingSelf, KEY_FILING);
-      copyFieldInNamedList(addSelf, preExistingSelf, KEY_PREFIX);
+    ReferenceAggregate ret = toAggregate(preExisting);
+    if (add instanceof byte[]) {
+      ret.merge((byte[]) add);
+    } else if (add instanceof ReferenceAggregate) {
+      ret.merge((ReferenceAggregate) add);
+    } else {
+      ret.merge((NamedList<Object>) add);
     }
+    return ret;
+  }
 
-    if(add.get(KEY_REFS) != null) {
-      NamedList<Object> addRefs = (NamedList<Object>) add.get(KEY_REFS);
-      Iterator<Map.Entry<String, Object>> refTypesIter = addRefs.iterator();
-      while (refTypesIter.hasNext()) {
-        Map.Entry<String, Object> entry = refTypesIter.next();
-        String addReferenceType = entry.getKey();
-        NamedList<Object> addNameStructs = (NamedList<Object>) entry.getValue();
-
-        // if "refs" doesn't exist in preExisting yet, create it
-        NamedList<Object> preExistingRefs = getOrCreateNamedListValue(preExisting, KEY_REFS);
-
-        // if referenceType doesn't exist in preExisting yet, create it
-        NamedList<Object> preExistingNameStructs = getOrCreateNamedListValue(preExistingRefs, addReferenceType);
+  private static ReferenceAggregate toAggregate(Object val) {
+    if (val instanceof ReferenceAggregate) {
+      return (ReferenceAggregate) val;
+    } else if (val instanceof byte[]) {
+      return ReferenceAggregate.fromBytes((byte[]) val);
+    } else {
+      return ReferenceAggregate.fromNamedList((NamedList<Object>) val);
+    }
+  }
 
-        // loop through names and merge them into preExisting
-        Iterator<Map.Entry<String, Object>> addNameStructsIter = addNameStructs.iterator();
-        while (addNameStructsIter.hasNext()) {
-          Map.Entry<String, Object> nameStructEntry = addNameStructsIter.next();
-          String name = nameStructEntry.getKey();
-          NamedList<Object> addNameStruct = (NamedList<Object>) nameStructEntry.getValue();
+  /**
+   * Merges in place (preExisting is shared across document entries for the same term)
+   */
+  @Override
+  public void mergePayloadInPlace(Object preExisting, Object add, long preExistingCount, long addCount) {
+    if (addCount != extractCount(add)) {
+      throw new IllegalStateException("fieldType-internal and -external counts do not match");
+    }
+    NamedList<Object> target = (NamedList<Object>) preExisting;
+    NamedList<Object> merged = ReferenceAggregate.fromNamedList(target).merge((NamedList<Object>) add).toNamedList();
+    target.clear();
+    target.addAll(merged);
+  }
 
-          // if name doesn't exist in preExisting yet, create it
-          NamedList<Object> preExistingNameStruct = getOrCreateNamedListValue(preExistingNameStructs, name);
+  /**
+   * Sets the count of each reference target of the specified value, as supplied by the specified
+   * counter; returns the updated value (in the same representation, for NamedList input).
+   */
+  public Object resolveTargetCounts(Object val, ReferenceAggregate.TargetCounter counter) throws IOException {
+    ReferenceAggregate aggregate = toAggregate(val).resolveTargetCounts(counter);
+    return val instanceof NamedList ? aggregate.toNamedList() : aggregate;
+  }
 
-          mergeCount(addNameStruct, preExistingNameStruct, KEY_COUNT);
+  @Override
+  public long extractCount(Object val) {
+    if (val instanceof byte[]) {
+      return ReferenceAggregate.extractCount((byte[]) val);
+    } else if (val instanceof ReferenceAggregate) {
+      return ((ReferenceAggregate) val).getCount();
+    } else {
+      return ((Number) ((NamedList<Object>) val).get(KEY_COUNT)).longValue();
+    }
+  }
 
-          copyFieldInNamedList(addNameStruct, preExistingNameStruct, KEY_FILING);
-          copyFieldInNamedList(addNameStruct, preExistingNameStruct, KEY_PREFIX);
-        }
-      }
+  @Override
+  public Object updateValueExternalRepresentation(Object internal) {
+    int refsLimit = refsLimit();
+    if (refsLimit < 0) {
+      return internal instanceof NamedList ? null : toAggregate(internal).toNamedList();
     }
-    return preExisting;
+    // (re)apply limit; values merged from several shards may exceed it
+    return toAggregate(internal).limitRefs(refsLimit, refsIndexOrder()).toNamedList();
   }
 
   @Override
-  public long extractCount(NamedList<Object> val) {
-    return ((Number) val.get(KEY_COUNT)).longValue();
+  public Object updateValueCompactRepresentation(Object internal) {
+    if (internal instanceof byte[]) {
+      return null;
+    }
+    return toAggregate(internal).toBytes();
   }
 
   @Override
-  public Object updateValueExternalRepresentation(NamedList<Object> internal) {
-    return null;
+  public int compactFormatVersion() {
+    return ReferenceAggregate.formatVersion();
   }
 
 }
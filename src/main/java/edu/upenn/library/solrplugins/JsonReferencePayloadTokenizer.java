@@ -1,9 +1,10 @@
 package edu.upenn.library.solrplugins;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -12,8 +13,12 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.AttributeFactory;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.CharsRefBuilder;
 
 /**
  * Tokenizer that deserializes a JSON object from a string,
@@ -40,11 +45,26 @@ import org.apache.lucene.util.BytesRef;
  * which should be suitable for normalized sorting and which
  * can be parsed for facet payloads.
  *
+ * By default, reference payloads are UTF-8 strings of the form
+ * referenceType + PAYLOAD_ATTR_SEPARATOR + filing [+ DELIMITER + prefix].
+ * If a list of reference types is supplied, payloads for those types are
+ * instead written in a compact binary form: a single byte type code (the
+ * 1-based position of the type in the list), followed by the UTF-8 filing
+ * and (optional) prefix, each preceded by its varint byte length. Codes are
+ * restricted to the range of ASCII control characters, so the two forms may be
+ * distinguished by the first byte, and may coexist in the same index.
+ *
+ * Targets repeated within a value (with identical payload) are emitted only once.
+ *
  * @author jeffchiu
  */
 public final class JsonReferencePayloadTokenizer extends Tokenizer {
 
-  private static final JsonFactory jsonFactory = new JsonFactory();
+  // field names are canonicalized against the factory's root symbol table, and interned, so
+  // may be dispatched by identity
+  private static final JsonFactory jsonFactory = new JsonFactory()
+      .enable(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES)
+      .enable(JsonFactory.Feature.INTERN_FIELD_NAMES);
   public static final String PAYLOAD_ATTR_SEPARATOR = "\u0000";
   private static final String FIELD_RAW = "raw";
   private static final String FIELD_REFS = "refs";
@@ -52,6 +72,9 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
   private static final String MULTIPART_STRING_FILING = "filing";
   public static final String TYPE_PREFIX = MULTIPART_STRING_PREFIX;
   public static final String TYPE_FILING = MULTIPART_STRING_FILING;
+  public static final int MAX_REFERENCE_TYPE_CODE = 0x1f;
+  private static final byte SEPARATOR_BYTE = 0; // UTF-8 encoding of PAYLOAD_ATTR_SEPARATOR and MultiPartString.DELIMITER
+  private static final char[] NULL_FILING = "null".toCharArray();
 
   private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
   private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
@@ -60,149 +83,306 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
   //private final ReferenceAttribute refAtt = addAttribute(ReferenceAttribute.class);
   private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
 
-  private boolean consumed = false;
+  private final Map<String, Integer> referenceTypeCodes;
+  private final CharsRefBuilder rawFiling = new CharsRefBuilder();
+  private final CharsRefBuilder rawPrefix = new CharsRefBuilder();
+  private final CharsRefBuilder targetFiling = new CharsRefBuilder();
+  private final CharsRefBuilder targetPrefix = new CharsRefBuilder();
+  private final BytesRefBuilder utf8Scratch = new BytesRefBuilder();
+  private char[] inputBuffer = new char[256];
+  private final BytesRefBuilder targetKey = new BytesRefBuilder();
+  private final BytesRefHash emittedTargets = new BytesRefHash();
+  // payloads alternate between two buffers, so that a payload remains valid for one token
+  // of lookahead (as performed by TokenTypeJoinFilter) after the reference type changes
+  private final BytesRefBuilder[] payloadBuffers = new BytesRefBuilder[] {new BytesRefBuilder(), new BytesRefBuilder()};
+  private int payloadBufferIndex;
+  private State state = State.START;
   private JsonParser parser;
-  private List<Token> tokens = new ArrayList<>();
-  private Iterator<Token> tokensIter;
+  private boolean fieldPending;
+  private boolean rawParsed;
+  private boolean rawHasPrefix;
+  private int positionIncrement = 1;
+  private String referenceType;
+  private BytesRef payload; // for current reference type; built on first target
+  private CharsRefBuilder pendingPrefix; // prefix token to be emitted following its filing token
+  private BytesRef pendingPrefixPayload;
 
-  /** Represents a token for this Tokenizer to emit in its stream */
-  class Token {
-    String term;
-    String type;
-    String payload; // present if token is a reference target
-    int positionIncrement;
-  }
+  private enum State { START, FIELDS, REFS, TARGETS, DONE }
 
   public JsonReferencePayloadTokenizer() {
     super();
+    this.referenceTypeCodes = Collections.emptyMap();
   }
 
   public JsonReferencePayloadTokenizer(AttributeFactory factory) {
-    super(factory);
+    this(factory, null);
   }
 
   /**
-   * Creates tokens for the passed-in MultiPartString
-   * and appends them to this object's internal list.
+   * @param referenceTypes reference types for which compact payloads should be written,
+   * in code order; null or empty for default (string) payloads only
    */
-  private void appendTokens(MultiPartString multiPartString, String payload, int positionIncrement) {
-    Token filingToken = new Token();
-    filingToken.term = multiPartString.getFiling();
-    filingToken.type = TYPE_FILING;
-    filingToken.payload = payload;
-    filingToken.positionIncrement = positionIncrement;
-    tokens.add(filingToken);
+  public JsonReferencePayloadTokenizer(AttributeFactory factory, List<String> referenceTypes) {
+    super(factory);
+    this.referenceTypeCodes = referenceTypeCodes(referenceTypes);
+  }
 
-    if(multiPartString.getPrefix() != null) {
-      Token prefixToken = new Token();
-      prefixToken.term = multiPartString.getPrefix();
-      prefixToken.type = TYPE_PREFIX;
-      prefixToken.payload = payload;
-      prefixToken.positionIncrement = 0;
-      tokens.add(prefixToken);
+  static Map<String, Integer> referenceTypeCodes(List<String> referenceTypes) {
+    if (referenceTypes == null || referenceTypes.isEmpty()) {
+      return Collections.emptyMap();
+    } else if (referenceTypes.size() > MAX_REFERENCE_TYPE_CODE) {
+      throw new IllegalArgumentException("at most " + MAX_REFERENCE_TYPE_CODE + " compact reference types supported; found " + referenceTypes.size());
     }
+    Map<String, Integer> ret = new HashMap<>(referenceTypes.size() * 2);
+    int code = 1;
+    for (String referenceType : referenceTypes) {
+      if (ret.put(referenceType, code++) != null) {
+        throw new IllegalArgumentException("duplicate reference type: " + referenceType);
+      }
+    }
+    return ret;
   }
 
-  private void parse() throws IOException {
-    MultiPartString raw = null;
-    int positionIncrement = 1;
+  /**
+   * Returns true if the specified payload is in compact (type-coded) form.
+   */
+  public static boolean isCompactPayload(BytesRef payload) {
+    if (payload.length == 0) {
+      return false;
+    }
+    int code = payload.bytes[payload.offset];
+    return code > 0 && code <= MAX_REFERENCE_TYPE_CODE;
+  }
 
-    JsonToken next = parser.nextToken();
-    if (next == null) {
-      throw new IOException("input not recognized as JSON");
-    } else if (next.compareTo(JsonToken.VALUE_STRING) >= 0) {
-      raw = new MultiPartString(parser.getValueAsString());
-      appendTokens(raw, null, positionIncrement);
-      return;
-    } else if (next == JsonToken.START_OBJECT) {
-      String nextFieldName = parser.nextFieldName();
-      if (MULTIPART_STRING_FILING.equals(nextFieldName) || MULTIPART_STRING_PREFIX.equals(nextFieldName)) {
-        raw = parseStringOrMultipartStringObject();
-        appendTokens(raw, null, positionIncrement);
-        return;
+  private BytesRef buildPayload() throws IOException {
+    if (!rawParsed) {
+      throw new IOException("Expected " + FIELD_RAW + " value preceding " + FIELD_REFS);
+    }
+    BytesRefBuilder ret = payloadBuffers[payloadBufferIndex ^= 1];
+    Integer code = referenceTypeCodes.get(referenceType);
+    if (code == null) {
+      ret.copyChars(referenceType);
+      ret.append(SEPARATOR_BYTE);
+      appendUTF8(ret, rawFiling);
+      if (rawHasPrefix) {
+        ret.append(SEPARATOR_BYTE);
+        appendUTF8(ret, rawPrefix);
       }
     } else {
-      throw new IOException("Expected data to start with a START_OBJECT token, but found this instead: " + parser.getCurrentToken());
+      ret.clear();
+      ret.append(code.byteValue());
+      appendCompactString(ret, rawFiling);
+      if (rawHasPrefix) {
+        appendCompactString(ret, rawPrefix);
+      }
+    }
+    return ret.get();
+  }
+
+  private void appendUTF8(BytesRefBuilder builder, CharsRefBuilder chars) {
+    utf8Scratch.copyChars(chars.chars(), 0, chars.length());
+    builder.append(utf8Scratch);
+  }
+
+  private void appendCompactString(BytesRefBuilder builder, CharsRefBuilder chars) {
+    utf8Scratch.copyChars(chars.chars(), 0, chars.length());
+    appendCompactBytes(builder, utf8Scratch.get());
+  }
+
+  private static void appendCompactBytes(BytesRefBuilder builder, BytesRef bytes) {
+    int length = bytes.length;
+    while ((length & ~0x7f) != 0) {
+      builder.append((byte) ((length & 0x7f) | 0x80));
+      length >>>= 7;
     }
+    builder.append((byte) length);
+    builder.append(bytes);
+  }
 
+  /**
+   * Returns true if the current target (with the current payload) has already been emitted
+   * for this value; identical (term, payload) pairs contribute nothing to reference counts.
+   */
+  private boolean isDuplicateTarget(boolean hasPrefix) {
+    targetKey.clear();
+    appendCompactBytes(targetKey, payload);
+    appendCompactString(targetKey, targetFiling);
+    if (hasPrefix) {
+      appendCompactString(targetKey, targetPrefix);
+    }
+    return emittedTargets.add(targetKey.get()) < 0;
+  }
+
+  private void copyText(CharsRefBuilder dest) throws IOException {
+    dest.copyChars(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+  }
+
+  /**
+   * Expects the current token from JSON parser to be either a string
+   * or a JSON object representing a multipart string, and consumes it.
+   *
+   * @return true if a prefix was present
+   */
+  private boolean readMultiPartString(CharsRefBuilder filing, CharsRefBuilder prefix) throws IOException {
+    JsonToken t = parser.getCurrentToken();
+    if (t == JsonToken.VALUE_STRING) {
+      copyText(filing);
+      return false;
+    } else if (t != JsonToken.FIELD_NAME) {
+      throw new IOException("Expected string or object representing multipart string, but got " + t.name());
+    }
+    boolean hasFiling = false;
+    boolean hasPrefix = false;
     do {
-      String topLevelField = parser.getCurrentName();
-      if (FIELD_RAW.equals(topLevelField)) {
-        if (parser.nextToken() == JsonToken.START_OBJECT) {
-          parser.nextToken();
+      String stringComponentType = parser.getCurrentName();
+      boolean present = parser.nextToken() != JsonToken.VALUE_NULL;
+      if (stringComponentType == MULTIPART_STRING_PREFIX) {
+        if (hasPrefix = present) {
+          copyText(prefix);
         }
-        raw = parseStringOrMultipartStringObject();
-        appendTokens(raw, null, positionIncrement);
-        positionIncrement++;
-      } else if (FIELD_REFS.equals(topLevelField)) {
-        if (parser.nextToken() == JsonToken.START_OBJECT) {
-          while (parser.nextToken() != JsonToken.END_OBJECT) {
-            String referenceType = parser.getCurrentName();
-            JsonToken t = parser.nextToken();
-            if (t == JsonToken.START_ARRAY) {
-              while ((next = parser.nextToken()) != JsonToken.END_ARRAY) {
-                if (next == JsonToken.START_OBJECT) {
-                  parser.nextToken();
-                }
-                String payload = referenceType + PAYLOAD_ATTR_SEPARATOR + raw.toDelimitedStringForFilingAndPrefix();
-                appendTokens(parseStringOrMultipartStringObject(), payload, positionIncrement);
-                positionIncrement++;
-              }
-            } else {
-              throw new IOException("Expected start of array as object value for relationship = " + referenceType);
-            }
-          }
-        } else {
-          throw new IOException("Expected start of object as object value for " + FIELD_REFS);
+      } else if (stringComponentType == MULTIPART_STRING_FILING) {
+        if (hasFiling = present) {
+          copyText(filing);
         }
+      } else {
+        throw new IOException("Expected object key for multipart string (" + MULTIPART_STRING_PREFIX + ", " + MULTIPART_STRING_FILING + ") but got = " + stringComponentType);
       }
     } while (parser.nextToken() != JsonToken.END_OBJECT);
+    if (!hasFiling) {
+      filing.copyChars(NULL_FILING, 0, NULL_FILING.length);
+    }
+    return hasPrefix;
+  }
+
+  private void setAttributes(CharsRefBuilder filing, CharsRefBuilder prefix, BytesRef payload) {
+    termAtt.copyBuffer(filing.chars(), 0, filing.length());
+    typeAtt.setType(TYPE_FILING);
+    posIncrAtt.setPositionIncrement(positionIncrement++);
+    payloadAtt.setPayload(payload);
+    pendingPrefix = prefix;
+    pendingPrefixPayload = payload;
+  }
+
+  private void setRawAttributes() {
+    rawParsed = true;
+    setAttributes(rawFiling, rawHasPrefix ? rawPrefix : null, null);
   }
 
   /**
-   * Expects the current token from JSON parser to be either a string
-   * or a JSON object representing a multipart string, and consumes it.
+   * Reads the entire input into the reused input buffer, over which the parser operates directly
+   * (so that no per-value parser buffers need be allocated or recycled).
+   *
+   * @return the number of chars read
    */
-  private MultiPartString parseStringOrMultipartStringObject() throws IOException {
-    MultiPartString multiPartString = null;
-    JsonToken t = parser.getCurrentToken();
-    if(t == JsonToken.VALUE_STRING) {
-      multiPartString = new MultiPartString(parser.getValueAsString());
-    } else if(t == JsonToken.FIELD_NAME) {
-      String prefix = null, filing = null;
-      do {
-        String stringComponentType = parser.getCurrentName();
+  private int readInput() throws IOException {
+    int length = 0;
+    int read;
+    while ((read = input.read(inputBuffer, length, inputBuffer.length - length)) != -1) {
+      length += read;
+      if (length == inputBuffer.length) {
+        inputBuffer = ArrayUtil.grow(inputBuffer, length + 1);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Handles the top-level JSON value, which may be a "shorthand" value (consisting only
+   * of a string or multipart string), or an object with "raw" and "refs" fields.
+   */
+  private boolean start() throws IOException {
+    parser = jsonFactory.createParser(inputBuffer, 0, readInput());
+    JsonToken next = parser.nextToken();
+    if (next == null) {
+      throw new IOException("input not recognized as JSON");
+    } else if (next.compareTo(JsonToken.VALUE_STRING) >= 0) {
+      copyText(rawFiling);
+      rawHasPrefix = false;
+    } else if (next == JsonToken.START_OBJECT) {
+      String nextFieldName = parser.nextFieldName();
+      if (nextFieldName != MULTIPART_STRING_FILING && nextFieldName != MULTIPART_STRING_PREFIX) {
+        state = State.FIELDS;
+        fieldPending = true;
+        return false;
+      }
+      rawHasPrefix = readMultiPartString(rawFiling, rawPrefix);
+    } else {
+      throw new IOException("Expected data to start with a START_OBJECT token, but found this instead: " + next);
+    }
+    finish();
+    setRawAttributes();
+    return true;
+  }
+
+  private boolean nextField() throws IOException {
+    JsonToken t = fieldPending ? parser.getCurrentToken() : parser.nextToken();
+    fieldPending = false;
+    if (t != JsonToken.FIELD_NAME) {
+      finish();
+      return false;
+    }
+    String topLevelField = parser.getCurrentName();
+    if (topLevelField == FIELD_RAW) {
+      if (parser.nextToken() == JsonToken.START_OBJECT) {
         parser.nextToken();
-        String stringComponentValue = parser.getValueAsString();
-        if (MULTIPART_STRING_PREFIX.equals(stringComponentType)) {
-          prefix = stringComponentValue;
-        } else if (MULTIPART_STRING_FILING.equals(stringComponentType)) {
-          filing = stringComponentValue;
-        } else {
-          throw new IOException("Expected object key for multipart string (" + MULTIPART_STRING_PREFIX + ", " + MULTIPART_STRING_FILING + ") but got = " + stringComponentType);
-        }
-      } while (parser.nextToken() != JsonToken.END_OBJECT);
-      multiPartString = new MultiPartString(filing, prefix);
+      }
+      rawHasPrefix = readMultiPartString(rawFiling, rawPrefix);
+      setRawAttributes();
+      return true;
+    } else if (topLevelField == FIELD_REFS) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Expected start of object as object value for " + FIELD_REFS);
+      }
+      state = State.REFS;
     } else {
-      throw new IOException("Expected string or object representing multipart string, but got " + t.name());
+      parser.nextToken();
+      parser.skipChildren();
     }
-    return multiPartString;
+    return false;
   }
 
-  private void setAttributesForToken(Token token) {
-    termAtt.append(token.term);
-    typeAtt.setType(token.type);
-    posIncrAtt.setPositionIncrement(token.positionIncrement);
-    //refAtt.setReferenceType(reference.referenceType);
-    //refAtt.setTarget(raw);
-    if(token.payload != null) {
-      payloadAtt.setPayload(new BytesRef(token.payload));
+  private void nextReferenceType() throws IOException {
+    if (parser.nextToken() == JsonToken.END_OBJECT) {
+      state = State.FIELDS;
+      return;
+    }
+    referenceType = parser.getCurrentName();
+    if (parser.nextToken() != JsonToken.START_ARRAY) {
+      throw new IOException("Expected start of array as object value for relationship = " + referenceType);
     }
+    payload = null; // identical for all targets of this reference type
+    state = State.TARGETS;
+  }
+
+  private boolean nextTarget() throws IOException {
+    JsonToken next = parser.nextToken();
+    if (next == JsonToken.END_ARRAY) {
+      state = State.REFS;
+      return false;
+    } else if (next == JsonToken.START_OBJECT) {
+      parser.nextToken();
+    }
+    if (payload == null) {
+      payload = buildPayload();
+    }
+    boolean hasPrefix = readMultiPartString(targetFiling, targetPrefix);
+    if (isDuplicateTarget(hasPrefix)) {
+      return false;
+    }
+    setAttributes(targetFiling, hasPrefix ? targetPrefix : null, payload);
+    return true;
+  }
+
+  private void finish() throws IOException {
+    state = State.DONE;
+    parser.close();
+    parser = null;
   }
 
   /**
    * This token stream includes both the 'raw' value and the 'target' values,
-   * since we want to index both.
+   * since we want to index both. Tokens are pulled lazily from the JSON parser,
+   * and term text and payloads are written to reused buffers.
    *
    * @throws IOException
    */
@@ -210,32 +390,67 @@ public final class JsonReferencePayloadTokenizer extends Tokenizer {
   public boolean incrementToken() throws IOException {
     clearAttributes();
 
-    if (!consumed) {
-      parser = jsonFactory.createParser(input);
-      parse();
-      parser.close();
-
-      tokensIter = tokens.iterator();
-
-      consumed = true;
+    if (pendingPrefix != null) {
+      termAtt.copyBuffer(pendingPrefix.chars(), 0, pendingPrefix.length());
+      typeAtt.setType(TYPE_PREFIX);
+      posIncrAtt.setPositionIncrement(0);
+      payloadAtt.setPayload(pendingPrefixPayload);
+      pendingPrefix = null;
+      return true;
     }
 
-    if (tokensIter.hasNext()) {
-      Token token = tokensIter.next();
-      setAttributesForToken(token);
-      return true;
+    for (;;) {
+      switch (state) {
+        case START:
+          if (start()) {
+            return true;
+          }
+          break;
+        case FIELDS:
+          if (nextField()) {
+            return true;
+          }
+          break;
+        case REFS:
+          nextReferenceType();
+          break;
+        case TARGETS:
+          if (nextTarget()) {
+            return true;
+          }
+          break;
+        default:
+          return false;
+      }
     }
+  }
 
-    return false;
+  @Override
+  public void close() throws IOException {
+    try {
+      if (parser != null) {
+        parser.close();
+      }
+    } finally {
+      parser = null;
+      super.close();
+    }
   }
 
   @Override
   public void reset() throws IOException {
     super.reset();
-    consumed = false;
+    state = State.START;
     parser = null;
-    tokens.clear();
-    tokensIter = null;
+    fieldPending = false;
+    rawParsed = false;
+    rawHasPrefix = false;
+    positionIncrement = 1;
+    referenceType = null;
+    payload = null;
+    pendingPrefix = null;
+    pendingPrefixPayload = null;
+    emittedTargets.clear();
   }
 
 }
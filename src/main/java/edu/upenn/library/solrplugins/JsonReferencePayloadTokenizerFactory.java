@@ -1,5 +1,8 @@
 package edu.upenn.library.solrplugins;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.util.TokenizerFactory;
@@ -8,17 +11,40 @@ import org.apache.lucene.util.AttributeFactory;
 /**
  * Accompanying factory for JsonReferencePayloadTokenizer.
  *
+ * The optional "referenceTypes" arg (comma-separated) selects compact payload
+ * encoding for the listed reference types; codes are assigned by list position,
+ * so entries should only ever be appended.
+ *
  * @author jeffchiu
  */
 public class JsonReferencePayloadTokenizerFactory extends TokenizerFactory {
 
+  public static final String REFERENCE_TYPES_ARGNAME = "referenceTypes";
+
+  private final List<String> referenceTypes;
+
   public JsonReferencePayloadTokenizerFactory(Map<String,String> args) {
     super(args);
+    String types = get(args, REFERENCE_TYPES_ARGNAME);
+    if (types == null || types.trim().isEmpty()) {
+      referenceTypes = null;
+    } else {
+      referenceTypes = Collections.unmodifiableList(Arrays.asList(types.trim().split("\\s*,\\s*")));
+      // fail fast on invalid configuration
+      JsonReferencePayloadTokenizer.referenceTypeCodes(referenceTypes);
+    }
+  }
+
+  /**
+   * @return configured reference types, in code order; null if compact payloads are not enabled
+   */
+  public List<String> getReferenceTypes() {
+    return referenceTypes;
   }
 
   @Override
   public Tokenizer create(AttributeFactory factory) {
-    return new JsonReferencePayloadTokenizer(factory);
+    return new JsonReferencePayloadTokenizer(factory, referenceTypes);
   }
 
 }
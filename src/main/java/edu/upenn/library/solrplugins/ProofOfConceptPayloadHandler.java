@@ -53,7 +53,7 @@ public class ProofOfConceptPayloadHandler implements FacetPayload<NamedList<Obje
       PostingsEnum postings = e.getKey().postings(t, PostingsEnum.PAYLOADS);
       Bits liveDocs = e.getValue();
       while (postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
-        if (!liveDocs.get(postings.docID())) {
+        if (liveDocs != null && !liveDocs.get(postings.docID())) {
           continue;
         }
         i++;
@@ -91,4 +91,9 @@ public class ProofOfConceptPayloadHandler implements FacetPayload<NamedList<Obje
     return null;
   }
 
+  @Override
+  public Object updateValueCompactRepresentation(NamedList<Object> internal) {
+    return null;
+  }
+
 }
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Mutable form of the term metadata built by {@link JsonReferencePayloadHandler}
+ * (count/self/refs), indexed by reference type and target name.
+ *
+ * Also defines a compact binary encoding of the same structure, for transport
+ * between shards and the coordinator. Reference types, filing and prefix strings
+ * are dictionary-coded (each distinct string is written once, and referenced by
+ * index), and counts are written as varints. Encoded values may be merged directly
+ * into an existing aggregate, so the NamedList representation need only be built
+ * for terms in the final response.
+ *
+ * @author magibney
+ */
+public final class ReferenceAggregate {
+
+  private static final byte FORMAT_VERSION = 1;
+  // as FORMAT_VERSION, with resolved target counts (see resolveTargetCounts)
+  private static final byte FORMAT_VERSION_TARGET_COUNTS = 2;
+  private static final long UNRESOLVED = -1;
+
+  /**
+   * Version of the compact format written for aggregates without resolved target counts
+   */
+  static int formatVersion() {
+    return FORMAT_VERSION;
+  }
+
+  private long count;
+  private Ref self;
+  private final Map<String, Map<String, Ref>> refs = new LinkedHashMap<>();
+
+  private static final class Ref {
+    private String filing;
+    private String prefix;
+    private long count;
+    private long targetCount = UNRESOLVED;
+
+    private void update(long addCount, String filing, String prefix) {
+      update(addCount, filing, prefix, UNRESOLVED);
+    }
+
+    private void update(long addCount, String filing, String prefix, long addTargetCount) {
+      count += addCount;
+      if (addTargetCount != UNRESOLVED) {
+        targetCount = targetCount == UNRESOLVED ? addTargetCount : targetCount + addTargetCount;
+      }
+      if (filing != null) {
+        this.filing = filing;
+      }
+      if (prefix != null) {
+        this.prefix = prefix;
+      }
+    }
+
+    private NamedList<Object> toNamedList() {
+      NamedList<Object> ret = new NamedList<>();
+      ret.add(JsonReferencePayloadHandler.KEY_COUNT, count);
+      if (filing != null) {
+        ret.add(JsonReferencePayloadHandler.KEY_FILING, filing);
+      }
+      if (prefix != null) {
+        ret.add(JsonReferencePayloadHandler.KEY_PREFIX, prefix);
+      }
+      if (targetCount != UNRESOLVED) {
+        ret.add(JsonReferencePayloadHandler.KEY_TARGET_COUNT, targetCount);
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Supplies the index count for a reference target, specified by filing and prefix
+   */
+  public static interface TargetCounter {
+    /**
+     * @return the count, or a negative value if unknown
+     */
+    long count(String filing, String prefix) throws IOException;
+  }
+
+  public ReferenceAggregate() {
+  }
+
+  /**
+   * Initializes an aggregate for the specified term document count, with a (zero-count) self entry
+   */
+  ReferenceAggregate(long count, String selfFiling, String selfPrefix) {
+    this.count = count;
+    updateSelf(0, selfFiling, selfPrefix);
+  }
+
+  void addSelf(long addCount) {
+    updateSelf(addCount, null, null);
+  }
+
+  void addRef(String referenceType, String name, String filing, String prefix, long addCount) {
+    update(targets(referenceType), name, addCount, filing, prefix);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public static ReferenceAggregate fromNamedList(NamedList<Object> entry) {
+    return new ReferenceAggregate().merge(entry);
+  }
+
+  public static ReferenceAggregate fromBytes(byte[] encoded) {
+    return new ReferenceAggregate().merge(encoded);
+  }
+
+  /**
+   * Reads the document count for the term directly from the encoded form,
+   * without decoding the rest of the structure.
+   */
+  public static long extractCount(byte[] encoded) {
+    ByteArrayDataInput in = new ByteArrayDataInput(encoded);
+    checkFormat(in.readByte());
+    return in.readVLong();
+  }
+
+  private static void checkFormat(byte format) {
+    if (format != FORMAT_VERSION && format != FORMAT_VERSION_TARGET_COUNTS) {
+      throw new IllegalStateException("unrecognized reference aggregate format: " + format);
+    }
+  }
+
+  private Map<String, Ref> targets(String referenceType) {
+    Map<String, Ref> ret = refs.get(referenceType);
+    if (ret == null) {
+      ret = new LinkedHashMap<>();
+      refs.put(referenceType, ret);
+    }
+    return ret;
+  }
+
+  private static void update(Map<String, Ref> targets, String name, long addCount, String filing, String prefix) {
+    update(targets, name, addCount, filing, prefix, UNRESOLVED);
+  }
+
+  private static void update(Map<String, Ref> targets, String name, long addCount, String filing, String prefix, long addTargetCount) {
+    Ref ref = targets.get(name);
+    if (ref == null) {
+      ref = new Ref();
+      targets.put(name, ref);
+    }
+    ref.update(addCount, filing, prefix, addTargetCount);
+  }
+
+  /**
+   * Sets the index count of each reference target, as supplied by the specified counter
+   * (each distinct target is queried once per reference type).
+   */
+  public ReferenceAggregate resolveTargetCounts(TargetCounter counter) throws IOException {
+    for (Map<String, Ref> targets : refs.values()) {
+      for (Ref ref : targets.values()) {
+        long targetCount = counter.count(ref.filing, ref.prefix);
+        ref.targetCount = targetCount < 0 ? UNRESOLVED : targetCount;
+      }
+    }
+    return this;
+  }
+
+  private void updateSelf(long addCount, String filing, String prefix) {
+    if (self == null) {
+      self = new Ref();
+    }
+    self.update(addCount, filing, prefix);
+  }
+
+  public ReferenceAggregate merge(NamedList<Object> entry) {
+    count += ((Number) entry.get(JsonReferencePayloadHandler.KEY_COUNT)).longValue();
+    NamedList<Object> addSelf = (NamedList<Object>) entry.get(JsonReferencePayloadHandler.KEY_SELF);
+    if (addSelf != null) {
+      updateSelf(((Number) addSelf.get(JsonReferencePayloadHandler.KEY_COUNT)).longValue(),
+          (String) addSelf.get(JsonReferencePayloadHandler.KEY_FILING), (String) addSelf.get(JsonReferencePayloadHandler.KEY_PREFIX));
+    }
+    NamedList<Object> addRefs = (NamedList<Object>) entry.get(JsonReferencePayloadHandler.KEY_REFS);
+    if (addRefs != null) {
+      for (Entry<String, Object> typeEntry : addRefs) {
+        Map<String, Ref> targets = targets(typeEntry.getKey());
+        for (Entry<String, Object> targetEntry : (NamedList<Object>) typeEntry.getValue()) {
+          NamedList<Object> struct = (NamedList<Object>) targetEntry.getValue();
+          Number targetCount = (Number) struct.get(JsonReferencePayloadHandler.KEY_TARGET_COUNT);
+          update(targets, targetEntry.getKey(), ((Number) struct.get(JsonReferencePayloadHandler.KEY_COUNT)).longValue(),
+              (String) struct.get(JsonReferencePayloadHandler.KEY_FILING), (String) struct.get(JsonReferencePayloadHandler.KEY_PREFIX),
+              targetCount == null ? UNRESOLVED : targetCount.longValue());
+        }
+      }
+    }
+    return this;
+  }
+
+  public ReferenceAggregate merge(ReferenceAggregate add) {
+    count += add.count;
+    if (add.self != null) {
+      updateSelf(add.self.count, add.self.filing, add.self.prefix);
+    }
+    for (Entry<String, Map<String, Ref>> typeEntry : add.refs.entrySet()) {
+      Map<String, Ref> targets = targets(typeEntry.getKey());
+      for (Entry<String, Ref> targetEntry : typeEntry.getValue().entrySet()) {
+        Ref ref = targetEntry.getValue();
+        update(targets, targetEntry.getKey(), ref.count, ref.filing, ref.prefix, ref.targetCount);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Retains at most {@code limit} targets per reference type: those with the highest counts (ties
+   * broken by name), or the first by name if {@code indexOrder}. Retained targets are reordered
+   * accordingly. Selection uses a bounded heap of target indices, so cost is O(n log limit) per type.
+   */
+  public ReferenceAggregate limitRefs(int limit, boolean indexOrder) {
+    for (Map<String, Ref> targets : refs.values()) {
+      String[] names = targets.keySet().toArray(new String[targets.size()]);
+      Ref[] values = targets.values().toArray(new Ref[targets.size()]);
+      RefSelector selector = new RefSelector(names, values, indexOrder, Math.min(limit, names.length));
+      for (int i = 0; i < names.length; i++) {
+        selector.offer(i);
+      }
+      targets.clear();
+      for (int i : selector.drain()) {
+        targets.put(names[i], values[i]);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Bounded min-heap (root is the least-preferred retained target) over indices into parallel name/value arrays.
+   */
+  private static final class RefSelector {
+    private final String[] names;
+    private final Ref[] values;
+    private final boolean indexOrder;
+    private final int[] heap;
+    private int size = 0;
+
+    private RefSelector(String[] names, Ref[] values, boolean indexOrder, int maxSize) {
+      this.names = names;
+      this.values = values;
+      this.indexOrder = indexOrder;
+      this.heap = new int[maxSize];
+    }
+
+    /**
+     * Returns true if the target at index a should precede the target at index b
+     */
+    private boolean precedes(int a, int b) {
+      if (!indexOrder) {
+        long countA = values[a].count;
+        long countB = values[b].count;
+        if (countA != countB) {
+          return countA > countB;
+        }
+      }
+      return names[a].compareTo(names[b]) < 0;
+    }
+
+    private void offer(int i) {
+      if (size < heap.length) {
+        heap[size] = i;
+        int pos = size++;
+        while (pos > 0) {
+          int parent = (pos - 1) >>> 1;
+          if (!precedes(heap[parent], heap[pos])) {
+            break;
+          }
+          swap(parent, pos);
+          pos = parent;
+        }
+      } else if (size > 0 && precedes(i, heap[0])) {
+        heap[0] = i;
+        siftDown();
+      }
+    }
+
+    private void siftDown() {
+      int pos = 0;
+      for (;;) {
+        int child = (pos << 1) + 1;
+        if (child >= size) {
+          return;
+        }
+        if (child + 1 < size && precedes(heap[child], heap[child + 1])) {
+          child++;
+        }
+        if (!precedes(heap[pos], heap[child])) {
+          return;
+        }
+        swap(pos, child);
+        pos = child;
+      }
+    }
+
+    private void swap(int a, int b) {
+      int tmp = heap[a];
+      heap[a] = heap[b];
+      heap[b] = tmp;
+    }
+
+    /**
+     * Empties the heap, returning retained indices in output order
+     */
+    private int[] drain() {
+      int[] ret = new int[size];
+      while (size > 0) {
+        ret[size - 1] = heap[0];
+        heap[0] = heap[--size];
+        siftDown();
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * Merges the encoded form (as produced by {@link #toBytes()}) directly into this aggregate.
+   */
+  public ReferenceAggregate merge(byte[] encoded) {
+    ByteArrayDataInput in = new ByteArrayDataInput(encoded);
+    byte format = in.readByte();
+    checkFormat(format);
+    boolean targetCounts = format == FORMAT_VERSION_TARGET_COUNTS;
+    count += in.readVLong();
+    String[] dictionary = new String[in.readVInt()];
+    for (int i = 0; i < dictionary.length; i++) {
+      dictionary[i] = in.readString();
+    }
+    if (in.readByte() != 0) {
+      long selfCount = in.readVLong();
+      String filing = lookup(dictionary, in.readVInt());
+      updateSelf(selfCount, filing, lookup(dictionary, in.readVInt()));
+    }
+    int typeCount = in.readVInt();
+    for (int i = 0; i < typeCount; i++) {
+      Map<String, Ref> targets = targets(dictionary[in.readVInt()]);
+      int targetCount = in.readVInt();
+      for (int j = 0; j < targetCount; j++) {
+        String filing = lookup(dictionary, in.readVInt());
+        int prefixCode = in.readVInt();
+        String prefix = lookup(dictionary, prefixCode >>> 1);
+        String name = (prefixCode & 1) == 0 ? display(filing, prefix) : dictionary[in.readVInt()];
+        long refCount = in.readVLong();
+        update(targets, name, refCount, filing, prefix, targetCounts ? in.readVLong() - 1 : UNRESOLVED);
+      }
+    }
+    return this;
+  }
+
+  private static String lookup(String[] dictionary, int code) {
+    return code == 0 ? null : dictionary[code - 1];
+  }
+
+  private static String display(String filing, String prefix) {
+    return (prefix != null ? prefix : "") + (filing != null ? filing : "");
+  }
+
+  public byte[] toBytes() {
+    Map<String, Integer> dictionaryIndex = new HashMap<>();
+    List<String> dictionary = new ArrayList<>();
+    BytesRefDataOutput body = new BytesRefDataOutput();
+    BytesRefDataOutput out = new BytesRefDataOutput();
+    boolean targetCounts = hasTargetCounts();
+    try {
+      if (self == null) {
+        body.writeByte((byte) 0);
+      } else {
+        body.writeByte((byte) 1);
+        body.writeVLong(self.count);
+        body.writeVInt(code(self.filing, dictionaryIndex, dictionary));
+        body.writeVInt(code(self.prefix, dictionaryIndex, dictionary));
+      }
+      body.writeVInt(refs.size());
+      for (Entry<String, Map<String, Ref>> typeEntry : refs.entrySet()) {
+        body.writeVInt(code(typeEntry.getKey(), dictionaryIndex, dictionary) - 1);
+        Map<String, Ref> targets = typeEntry.getValue();
+        body.writeVInt(targets.size());
+        for (Entry<String, Ref> targetEntry : targets.entrySet()) {
+          Ref ref = targetEntry.getValue();
+          String name = targetEntry.getKey();
+          boolean explicitName = !name.equals(display(ref.filing, ref.prefix));
+          body.writeVInt(code(ref.filing, dictionaryIndex, dictionary));
+          body.writeVInt((code(ref.prefix, dictionaryIndex, dictionary) << 1) | (explicitName ? 1 : 0));
+          if (explicitName) {
+            body.writeVInt(code(name, dictionaryIndex, dictionary) - 1);
+          }
+          body.writeVLong(ref.count);
+          if (targetCounts) {
+            body.writeVLong(ref.targetCount + 1);
+          }
+        }
+      }
+      out.writeByte(targetCounts ? FORMAT_VERSION_TARGET_COUNTS : FORMAT_VERSION);
+      out.writeVLong(count);
+      out.writeVInt(dictionary.size());
+      for (String s : dictionary) {
+        out.writeString(s);
+      }
+      BytesRef bodyBytes = body.bytes.get();
+      out.writeBytes(bodyBytes.bytes, bodyBytes.offset, bodyBytes.length);
+    } catch (IOException ex) {
+      // in-memory output
+      throw new IllegalStateException(ex);
+    }
+    BytesRef ret = out.bytes.get();
+    return Arrays.copyOfRange(ret.bytes, ret.offset, ret.offset + ret.length);
+  }
+
+  private boolean hasTargetCounts() {
+    for (Map<String, Ref> targets : refs.values()) {
+      for (Ref ref : targets.values()) {
+        if (ref.targetCount != UNRESOLVED) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the (1-based) dictionary code for the specified string, registering it
+   * if necessary; 0 represents null.
+   */
+  private static int code(String s, Map<String, Integer> dictionaryIndex, List<String> dictionary) {
+    if (s == null) {
+      return 0;
+    }
+    Integer ret = dictionaryIndex.get(s);
+    if (ret == null) {
+      dictionary.add(s);
+      ret = dictionary.size();
+      dictionaryIndex.put(s, ret);
+    }
+    return ret;
+  }
+
+  public NamedList<Object> toNamedList() {
+    NamedList<Object> entry = new NamedList<>();
+    entry.add(JsonReferencePayloadHandler.KEY_COUNT, count);
+    if (self != null) {
+      entry.add(JsonReferencePayloadHandler.KEY_SELF, self.toNamedList());
+    }
+    if (!refs.isEmpty()) {
+      NamedList<Object> refsList = new NamedList<>();
+      for (Entry<String, Map<String, Ref>> typeEntry : refs.entrySet()) {
+        NamedList<Object> targets = new NamedList<>();
+        for (Entry<String, Ref> targetEntry : typeEntry.getValue().entrySet()) {
+          targets.add(targetEntry.getKey(), targetEntry.getValue().toNamedList());
+        }
+        refsList.add(typeEntry.getKey(), targets);
+      }
+      entry.add(JsonReferencePayloadHandler.KEY_REFS, refsList);
+    }
+    return entry;
+  }
+
+  private static final class BytesRefDataOutput extends DataOutput {
+
+    private final BytesRefBuilder bytes = new BytesRefBuilder();
+
+    @Override
+    public void writeByte(byte b) {
+      bytes.append(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) {
+      bytes.append(b, offset, length);
+    }
+
+  }
+}
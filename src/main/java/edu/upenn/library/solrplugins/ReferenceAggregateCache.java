@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Optional per-searcher user cache of unfiltered per-segment reference aggregates for
+ * high-frequency terms, used by {@link JsonReferencePayloadHandler} for match-all browse.
+ * Keyed by segment (core + deletes), field, term, and the handler's compact reference types;
+ * values are held in {@link ReferenceAggregate}'s compact form, so the cache may be bounded
+ * by memory, e.g.:
+ * <pre>
+ * &lt;cache name="referenceAggregateCache" class="solr.LRUCache" maxRamMB="32" autowarmCount="1024"
+ *        regenerator="edu.upenn.library.solrplugins.ReferenceAggregateCache$Regenerator"/&gt;
+ * </pre>
+ * If no such cache is configured, segment aggregates are not cached. Being a standard SolrCache,
+ * hit/miss/eviction statistics are reported with the searcher's other caches.
+ *
+ * @author magibney
+ */
+public final class ReferenceAggregateCache {
+
+  public static final String CACHE_NAME = "referenceAggregateCache";
+
+  private ReferenceAggregateCache() {
+  }
+
+  /**
+   * Returns the cache for the searcher of the current request, or null if none is configured.
+   */
+  @SuppressWarnings("unchecked")
+  static SolrCache<Key, Value> forCurrentRequest() {
+    SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+    SolrQueryRequest req;
+    if (info == null || (req = info.getReq()) == null) {
+      return null;
+    }
+    return req.getSearcher().getCache(CACHE_NAME);
+  }
+
+  public static final class Key implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Key.class)
+        + RamUsageEstimator.shallowSizeOfInstance(BytesRef.class);
+
+    private final Object segmentKey;
+    private final String field;
+    private final BytesRef term;
+    private final String[] referenceTypes;
+    private final int hash;
+
+    Key(Object segmentKey, String field, BytesRef term, String[] referenceTypes) {
+      this.segmentKey = segmentKey;
+      this.field = field;
+      this.term = term;
+      this.referenceTypes = referenceTypes;
+      int h = segmentKey.hashCode();
+      h = 31 * h + field.hashCode();
+      h = 31 * h + term.hashCode();
+      this.hash = 31 * h + Arrays.hashCode(referenceTypes);
+    }
+
+    Key deepCopy() {
+      return new Key(segmentKey, field, BytesRef.deepCopyOf(term), referenceTypes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && segmentKey == other.segmentKey && term.bytesEquals(other.term)
+          && field.equals(other.field) && Arrays.equals(referenceTypes, other.referenceTypes);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      // segmentKey and referenceTypes are shared
+      return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(term.bytes) + 2 * field.length();
+    }
+
+    @Override
+    public String toString() {
+      return field + ':' + term.utf8ToString() + '@' + Integer.toHexString(System.identityHashCode(segmentKey));
+    }
+  }
+
+  public static final class Value implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Value.class);
+
+    final byte[] compact;
+
+    Value(byte[] compact) {
+      this.compact = compact;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(compact);
+    }
+  }
+
+  /**
+   * Carries over entries for segments (with unchanged deletes) shared by the new searcher.
+   */
+  public static final class Regenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+        Object oldKey, Object oldVal) throws IOException {
+      Object segmentKey = ((Key) oldKey).segmentKey;
+      for (LeafReaderContext context : newSearcher.getTopReaderContext().leaves()) {
+        if (context.reader().getCombinedCoreAndDeletesKey() == segmentKey) {
+          newCache.put(oldKey, oldVal);
+          break;
+        }
+      }
+      return true;
+    }
+  }
+}
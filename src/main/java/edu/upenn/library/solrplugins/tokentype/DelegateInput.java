@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * Single-token pushback source over which delegate filters of {@link TokenTypeSplitFilter} and
+ * {@link TokenTypeProcessFilter} are built. Shares attributes with the owning filter, and presents
+ * the owner's current token to the delegate exactly once per {@link #feed(TokenStream)}; the
+ * delegate then sees the end of its input until the next token is fed. By default, the delegate
+ * is reset and ended along with the owner (once per stream), so it must not latch end-of-input
+ * (or buffer lookahead) across feeds.
+ * <p>
+ * Delegates that do latch (e.g., SynonymGraphFilter) may instead opt in to a per-token lifecycle,
+ * in which each feed runs the delegate through a complete reset/incrementToken/end cycle over a
+ * stream consisting of the single fed token. This costs a reset, an end, and a captured State per
+ * fed token, and delegate state (e.g., shingles or multi-token synonyms) never spans owner tokens.
+ *
+ * @author michael
+ */
+final class DelegateInput extends TokenStream {
+
+  private final boolean perTokenLifecycle;
+  private boolean available = false;
+
+  DelegateInput(AttributeSource source, boolean perTokenLifecycle) {
+    super(source);
+    this.perTokenLifecycle = perTokenLifecycle;
+  }
+
+  /**
+   * True if delegates are run through a complete stream lifecycle for each fed token; otherwise,
+   * owners should forward their own reset() and end() to the delegate.
+   */
+  boolean isPerTokenLifecycle() {
+    return perTokenLifecycle;
+  }
+
+  /**
+   * Passes the current token through the specified delegate (built over this source). If the
+   * delegate outputs multiple tokens for the input token, the attributes are left reflecting the
+   * last of them (by default, the delegate is expected to leave attributes untouched upon reaching
+   * the end of its input; with a per-token lifecycle, attribute changes made by the delegate's
+   * {@link TokenStream#end()} are discarded).
+   *
+   * @return false if the delegate output no tokens for the current token
+   */
+  boolean feed(TokenStream delegate) throws IOException {
+    if (!perTokenLifecycle) {
+      available = true;
+      if (!delegate.incrementToken()) {
+        available = false;
+        return false;
+      }
+      while (delegate.incrementToken()) {
+        // drain; attributes reflect the last output token
+      }
+      return true;
+    }
+    delegate.reset(); // also resets this source
+    available = true;
+    boolean emitted = delegate.incrementToken();
+    State last = null;
+    if (emitted) {
+      while (delegate.incrementToken()) {
+        // drain; attributes reflect the last output token
+      }
+      last = captureState();
+    }
+    delegate.end();
+    if (last != null) {
+      restoreState(last);
+    }
+    return emitted;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (available) {
+      available = false;
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    available = false;
+  }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import com.ibm.icu.text.Collator;
+import com.ibm.icu.text.RawCollationKey;
+import com.ibm.icu.util.ULocale;
+import java.util.Locale;
+
+/**
+ * {@link SortKeyNormalizer} replacing the filing component with its ICU collation key for a
+ * configured locale and strength, encoded via {@link SortKeyBytes}. Joined terms built with this
+ * normalizer sort in collation order under plain (binary) term comparison, and no char-level
+ * folding is required.
+ *
+ * @author michael
+ */
+public class ICUCollationKeyNormalizer implements SortKeyNormalizer {
+
+  private final Collator collator;
+
+  public ICUCollationKeyNormalizer(String locale, String strength) {
+    Collator c = Collator.getInstance(new ULocale(locale));
+    c.setStrength(parseStrength(strength));
+    collator = c.freeze();
+  }
+
+  static int parseStrength(String strength) {
+    switch (strength.toLowerCase(Locale.ROOT)) {
+      case "primary":
+        return Collator.PRIMARY;
+      case "secondary":
+        return Collator.SECONDARY;
+      case "tertiary":
+        return Collator.TERTIARY;
+      case "quaternary":
+        return Collator.QUATERNARY;
+      case "identical":
+        return Collator.IDENTICAL;
+      default:
+        throw new IllegalArgumentException("unrecognized collation strength: " + strength);
+    }
+  }
+
+  @Override
+  public void normalize(CharSequence src, StringBuilder dest) {
+    RawCollationKey key = collator.getRawCollationKey(src.toString(), null);
+    dest.setLength(0);
+    int length = key.size;
+    if (length > 0 && key.bytes[length - 1] == 0) {
+      // omit the terminator; the joined term delimiter serves the same purpose
+      length--;
+    }
+    SortKeyBytes.escape(key.bytes, 0, length, dest);
+  }
+
+}
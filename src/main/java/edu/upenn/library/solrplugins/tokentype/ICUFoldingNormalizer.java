@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import com.ibm.icu.text.Normalizer;
+import com.ibm.icu.text.Normalizer2;
+import org.apache.lucene.analysis.icu.ICUFoldingFilter;
+
+/**
+ * {@link SortKeyNormalizer} applying the same UTR#30 folding as {@link ICUFoldingFilter}.
+ *
+ * @author michael
+ */
+public class ICUFoldingNormalizer implements SortKeyNormalizer {
+
+  private static final Normalizer2 NORMALIZER = Normalizer2.getInstance(
+      ICUFoldingFilter.class.getResourceAsStream("utr30.nrm"), "utr30", Normalizer2.Mode.COMPOSE);
+
+  @Override
+  public void normalize(CharSequence src, StringBuilder dest) {
+    if (NORMALIZER.quickCheck(src) == Normalizer.YES) {
+      dest.setLength(0);
+      dest.append(src);
+    } else {
+      NORMALIZER.normalize(src, dest);
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+/**
+ * Order-preserving, delimiter-safe char encoding of binary sort keys (e.g., ICU collation keys)
+ * for use as the normalized component of a joined sort term. Each byte is represented by the
+ * char of the same (unsigned) value, except that bytes 0x00 and 0x01 are escaped as the pairs
+ * \u0001\u0001 and \u0001\u0002 respectively; the encoded form thus never contains the
+ * \u0000 delimiter, and (as UTF-8, or as chars) sorts in the same order as the raw bytes.
+ *
+ * @author michael
+ */
+public final class SortKeyBytes {
+
+  private static final char ESCAPE = '\u0001';
+
+  private SortKeyBytes() {
+  }
+
+  /**
+   * Appends the encoded form of the specified bytes to the specified destination.
+   */
+  public static void escape(byte[] bytes, int offset, int length, StringBuilder dest) {
+    int limit = offset + length;
+    for (int i = offset; i < limit; i++) {
+      int b = bytes[i] & 0xff;
+      if (b <= ESCAPE) {
+        dest.append(ESCAPE).append((char) (b + 1));
+      } else {
+        dest.append((char) b);
+      }
+    }
+  }
+
+  /**
+   * Decodes the specified encoded chars in place, one char per raw byte value, returning the
+   * decoded length.
+   */
+  public static int unescape(char[] chars, int offset, int length) {
+    int limit = offset + length;
+    int upto = offset;
+    for (int i = offset; i < limit; i++) {
+      char c = chars[i];
+      chars[upto++] = c == ESCAPE && i + 1 < limit ? (char) (chars[++i] - 1) : c;
+    }
+    return upto - offset;
+  }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Single-pass equivalent of the TokenTypeSplitFilter (with delegated normalization) followed by
+ * TokenTypeJoinFilter chain used to build sort keys. Filing and (optional) prefix tokens sharing
+ * a position are joined, with the normalized filing, into a single token of the form
+ * normalized + delim + filing [+ delim + prefix]; normalization is performed by a
+ * {@link SortKeyNormalizer} directly on the term buffer, and the joined term is assembled in the
+ * output term buffer. Tokens of other types are passed through unchanged.
+ *
+ * If outputComponentTokens is true, the filing, normalized, and prefix component tokens are
+ * output as well, preceding the joined token (which is output at position increment 0).
+ *
+ * @author michael
+ */
+public final class SortKeyJoinFilter extends TokenFilter {
+
+  private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+  private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+  private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+  private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+  private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+
+  private final SortKeyNormalizer normalizer;
+  private final String filingType;
+  private final String prefixType;
+  private final String normalizedType;
+  private final String outputType;
+  private final char delim;
+  private final boolean outputComponentTokens;
+  private final boolean joinPayload;
+
+  private final StringBuilder normalized = new StringBuilder(64);
+  private char[] filing = new char[64];
+  private int filingLength = -1; // -1 if absent
+  private char[] prefix = new char[16];
+  private int prefixLength = -1; // -1 if absent
+  private int filingStartOffset;
+  private int filingEndOffset;
+  private int bufferedOffsetStart;
+  private int bufferedOffsetEnd;
+  private BytesRef filingPayload;
+  private State state;
+  private boolean primed = false;
+  private boolean exhausted = false;
+  private boolean normalizedPending = false;
+  private int increment = 0;
+
+  public SortKeyJoinFilter(TokenStream input, SortKeyNormalizer normalizer, String filingType, String prefixType,
+      String normalizedType, String outputType, char delim, boolean outputComponentTokens, boolean joinPayload) {
+    super(input);
+    this.normalizer = normalizer;
+    this.filingType = filingType;
+    this.prefixType = prefixType;
+    this.normalizedType = normalizedType;
+    this.outputType = outputType;
+    this.delim = delim;
+    this.outputComponentTokens = outputComponentTokens;
+    this.joinPayload = joinPayload;
+  }
+
+  @Override
+  public boolean incrementToken() throws IOException {
+    if (normalizedPending) {
+      normalizedPending = false;
+      termAtt.setEmpty().append(normalized);
+      typeAtt.setType(normalizedType);
+      posIncrAtt.setPositionIncrement(0);
+      offsetAtt.setOffset(filingStartOffset, filingEndOffset);
+      payloadAtt.setPayload(filingPayload);
+      return true;
+    }
+    for (;;) {
+      if (state != null) {
+        restoreState(state);
+        state = null;
+      } else if (exhausted || !input.incrementToken()) {
+        exhausted = true;
+        if (primed) {
+          outputJoinedToken();
+          return true;
+        } else {
+          return false;
+        }
+      }
+      int inc = posIncrAtt.getPositionIncrement();
+      if (inc > 0 && primed) {
+        state = captureState();
+        outputJoinedToken();
+        return true;
+      }
+      String type = typeAtt.type();
+      boolean isFiling = filingType.equals(type);
+      if (!isFiling && !prefixType.equals(type)) {
+        return true;
+      }
+      if (primed) {
+        bufferedOffsetStart = Math.min(bufferedOffsetStart, offsetAtt.startOffset());
+        bufferedOffsetEnd = Math.max(bufferedOffsetEnd, offsetAtt.endOffset());
+      } else {
+        bufferedOffsetStart = offsetAtt.startOffset();
+        bufferedOffsetEnd = offsetAtt.endOffset();
+        increment = inc;
+        primed = true;
+      }
+      int length = termAtt.length();
+      if (isFiling) {
+        filing = ArrayUtil.grow(filing, length);
+        System.arraycopy(termAtt.buffer(), 0, filing, 0, length);
+        filingLength = length;
+        filingStartOffset = offsetAtt.startOffset();
+        filingEndOffset = offsetAtt.endOffset();
+        filingPayload = payloadAtt.getPayload();
+        normalizer.normalize(termAtt, normalized);
+        normalizedPending = outputComponentTokens;
+      } else {
+        prefix = ArrayUtil.grow(prefix, length);
+        System.arraycopy(termAtt.buffer(), 0, prefix, 0, length);
+        prefixLength = length;
+      }
+      if (outputComponentTokens) {
+        return true;
+      }
+    }
+  }
+
+  private void outputJoinedToken() {
+    int length = (filingLength < 0 ? 0 : normalized.length() + 1 + filingLength) + (prefixLength < 0 ? 0 : 1 + prefixLength);
+    char[] buffer = termAtt.resizeBuffer(length);
+    int upto = 0;
+    if (filingLength >= 0) {
+      upto = normalized.length();
+      normalized.getChars(0, upto, buffer, 0);
+      buffer[upto++] = delim;
+      System.arraycopy(filing, 0, buffer, upto, filingLength);
+      upto += filingLength;
+    }
+    if (prefixLength >= 0) {
+      buffer[upto++] = delim;
+      System.arraycopy(prefix, 0, buffer, upto, prefixLength);
+      upto += prefixLength;
+    }
+    termAtt.setLength(upto);
+    typeAtt.setType(outputType);
+    offsetAtt.setOffset(bufferedOffsetStart, bufferedOffsetEnd);
+    posIncrAtt.setPositionIncrement(outputComponentTokens ? 0 : increment);
+    payloadAtt.setPayload(joinPayload && filingLength >= 0 ? filingPayload : null);
+    filingLength = -1;
+    prefixLength = -1;
+    filingPayload = null;
+    primed = false;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    super.reset();
+    filingLength = -1;
+    prefixLength = -1;
+    filingPayload = null;
+    bufferedOffsetStart = 0;
+    bufferedOffsetEnd = 0;
+    state = null;
+    primed = false;
+    exhausted = false;
+    normalizedPending = false;
+    increment = 0;
+  }
+
+}
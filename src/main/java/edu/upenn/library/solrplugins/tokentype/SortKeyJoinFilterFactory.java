@@ -0,0 +1,114 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import java.io.IOException;
+import java.util.Map;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.ResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+
+/**
+ * Factory for {@link SortKeyJoinFilter}, a fused replacement for the chain:
+ * <pre>
+ * &lt;filter class="...TokenTypeSplitFilterFactory" includeTypes="filing" outputType="normalized" _class="...ICUFoldingFilterFactory" /&gt;
+ * &lt;filter class="...TokenTypeJoinFilterFactory" inputTypes="normalized,filing,prefix" outputType="indexed" typeForPayload="normalized" /&gt;
+ * </pre>
+ * which may be expressed as:
+ * <pre>
+ * &lt;filter class="...SortKeyJoinFilterFactory" outputType="indexed" /&gt;
+ * </pre>
+ * If collationLocale is specified, the normalized component is instead the (escaped) ICU
+ * collation key of the filing component, at the specified collationStrength (default primary);
+ * see {@link ICUCollationKeyNormalizer}.
+ *
+ * @author michael
+ */
+public class SortKeyJoinFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+
+  private static final String NORMALIZER_ARGNAME = "normalizer";
+  private static final String FILING_TYPE_ARGNAME = "filingType";
+  private static final String PREFIX_TYPE_ARGNAME = "prefixType";
+  private static final String NORMALIZED_TYPE_ARGNAME = "normalizedType";
+  private static final String OUTPUT_TYPE_ARGNAME = "outputType";
+  private static final String DELIM_CODEPOINT_ARGNAME = "delimCodepoint";
+  private static final String OUTPUT_COMPONENTS_ARGNAME = "outputComponents";
+  private static final String JOIN_PAYLOAD_ARGNAME = "joinPayload";
+  private static final String COLLATION_LOCALE_ARGNAME = "collationLocale";
+  private static final String COLLATION_STRENGTH_ARGNAME = "collationStrength";
+  private static final String DEFAULT_NORMALIZER = ICUFoldingNormalizer.class.getName();
+  private static final String DEFAULT_FILING_TYPE = "filing";
+  private static final String DEFAULT_PREFIX_TYPE = "prefix";
+  private static final String DEFAULT_NORMALIZED_TYPE = "normalized";
+  private static final String DEFAULT_OUTPUT_TYPE = "indexed";
+  private static final boolean DEFAULT_OUTPUT_COMPONENTS = false;
+  private static final boolean DEFAULT_JOIN_PAYLOAD = true;
+  private static final String DEFAULT_COLLATION_STRENGTH = "primary";
+
+  private static final char DEFAULT_DELIM = '\u0000';
+
+  private final String normalizerName;
+  private final String collationLocale;
+  private final String collationStrength;
+  private SortKeyNormalizer normalizer;
+  private final String filingType;
+  private final String prefixType;
+  private final String normalizedType;
+  private final String outputType;
+  private final char delim;
+  private final boolean outputComponents;
+  private final boolean joinPayload;
+
+  public SortKeyJoinFilterFactory(Map<String, String> args) {
+    super(args);
+    normalizerName = args.containsKey(NORMALIZER_ARGNAME) ? args.get(NORMALIZER_ARGNAME) : DEFAULT_NORMALIZER;
+    collationLocale = args.get(COLLATION_LOCALE_ARGNAME);
+    collationStrength = args.containsKey(COLLATION_STRENGTH_ARGNAME) ? args.get(COLLATION_STRENGTH_ARGNAME) : DEFAULT_COLLATION_STRENGTH;
+    if (collationLocale != null && args.containsKey(NORMALIZER_ARGNAME)) {
+      throw new IllegalArgumentException(NORMALIZER_ARGNAME + " and " + COLLATION_LOCALE_ARGNAME + " are mutually exclusive");
+    }
+    filingType = args.containsKey(FILING_TYPE_ARGNAME) ? args.get(FILING_TYPE_ARGNAME) : DEFAULT_FILING_TYPE;
+    prefixType = args.containsKey(PREFIX_TYPE_ARGNAME) ? args.get(PREFIX_TYPE_ARGNAME) : DEFAULT_PREFIX_TYPE;
+    normalizedType = args.containsKey(NORMALIZED_TYPE_ARGNAME) ? args.get(NORMALIZED_TYPE_ARGNAME) : DEFAULT_NORMALIZED_TYPE;
+    outputType = args.containsKey(OUTPUT_TYPE_ARGNAME) ? args.get(OUTPUT_TYPE_ARGNAME) : DEFAULT_OUTPUT_TYPE;
+    delim = args.containsKey(DELIM_CODEPOINT_ARGNAME) ? Character.toChars(Integer.parseInt(args.get(DELIM_CODEPOINT_ARGNAME)))[0] : DEFAULT_DELIM;
+    String outputComponentsS = args.get(OUTPUT_COMPONENTS_ARGNAME);
+    this.outputComponents = outputComponentsS == null ? DEFAULT_OUTPUT_COMPONENTS : Boolean.parseBoolean(outputComponentsS);
+    String joinPayloadS = args.get(JOIN_PAYLOAD_ARGNAME);
+    this.joinPayload = joinPayloadS == null ? DEFAULT_JOIN_PAYLOAD : Boolean.parseBoolean(joinPayloadS);
+    if (collationLocale != null && delim != DEFAULT_DELIM) {
+      // escaped collation keys are only guaranteed free of the default delimiter
+      throw new IllegalArgumentException(COLLATION_LOCALE_ARGNAME + " requires the default " + DELIM_CODEPOINT_ARGNAME);
+    }
+  }
+
+  @Override
+  public void inform(ResourceLoader loader) throws IOException {
+    if (collationLocale != null) {
+      normalizer = new ICUCollationKeyNormalizer(collationLocale, collationStrength);
+    } else {
+      normalizer = loader.newInstance(normalizerName, SortKeyNormalizer.class);
+    }
+  }
+
+  @Override
+  public TokenStream create(TokenStream input) {
+    return new SortKeyJoinFilter(input, normalizer, filingType, prefixType, normalizedType, outputType, delim,
+        outputComponents, joinPayload);
+  }
+
+}
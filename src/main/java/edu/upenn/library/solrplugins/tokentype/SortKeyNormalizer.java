@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+/**
+ * Char-level normalization of the "filing" component of a sort key, as applied by
+ * {@link SortKeyJoinFilter}. Implementations must be stateless and thread-safe, and must not
+ * retain references to their input.
+ *
+ * @author michael
+ */
+public interface SortKeyNormalizer {
+
+  /**
+   * Normalizes the specified input, replacing the contents of the specified destination.
+   */
+  void normalize(CharSequence src, StringBuilder dest);
+
+}
@@ -17,8 +17,6 @@ package edu.upenn.library.solrplugins.tokentype;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -26,6 +24,7 @@ import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 /**
@@ -40,15 +39,15 @@ public final class TokenTypeJoinFilter extends TokenFilter {
   private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
   private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
 
-  private final StringBuilder sb = new StringBuilder(200);
   private final String outputType;
   private final String typeForPayload;
-  private final String delim;
+  private final char[] delim;
   private final boolean outputComponentTokens;
   private final boolean appendPlaceholders;
-  private final Map<String, Integer> componentIndexMap;
+  private final String[] componentTypes;
 
-  private final String[] components;
+  private final char[][] components;
+  private final int[] componentLengths; // -1 if absent
   private int bufferedOffsetStart;
   private int bufferedOffsetEnd;
   private BytesRef payload;
@@ -60,14 +59,18 @@ public final class TokenTypeJoinFilter extends TokenFilter {
   public TokenTypeJoinFilter(TokenStream input, String[] componentTypes, String outputType, String typeForPayload,
       String delim, boolean outputComponentTokens, boolean appendPlaceholders) {
     super(input);
-    componentIndexMap = new HashMap<>(componentTypes.length * 2);
+    // interned, so that (typically interned) token types are usually resolved by identity
+    this.componentTypes = new String[componentTypes.length];
+    this.components = new char[componentTypes.length][];
     for (int i = 0; i < componentTypes.length; i++) {
-      componentIndexMap.put(componentTypes[i], i);
+      this.componentTypes[i] = componentTypes[i].intern();
+      this.components[i] = new char[16];
     }
-    components = new String[componentTypes.length];
+    this.componentLengths = new int[componentTypes.length];
+    Arrays.fill(componentLengths, -1);
     this.outputType = outputType;
     this.typeForPayload = typeForPayload;
-    this.delim = delim;
+    this.delim = delim.toCharArray();
     this.outputComponentTokens = outputComponentTokens;
     this.appendPlaceholders = appendPlaceholders;
   }
@@ -109,15 +112,34 @@ public final class TokenTypeJoinFilter extends TokenFilter {
    * if it's appropriate to do so.
    */
   private void storePayload() {
-    if(typeForPayload != null && payload == null && typeForPayload.equals(typeAtt.type())) {
+    String type;
+    if(typeForPayload != null && payload == null && (typeForPayload == (type = typeAtt.type()) || typeForPayload.equals(type))) {
       payload = payloadAtt.getPayload();
     }
   }
 
+  /**
+   * Returns the component index of the specified type, or -1 if not a component type.
+   */
+  private int componentIndex(String type) {
+    if (type != null) {
+      for (int i = 0; i < componentTypes.length; i++) {
+        String componentType = componentTypes[i];
+        if (componentType == type || componentType.equals(type)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
   private boolean buffer() throws IOException {
-    Integer index;
-    if ((index = componentIndexMap.get(typeAtt.type())) != null) {
-      components[index] = termAtt.toString();
+    int index;
+    if ((index = componentIndex(typeAtt.type())) >= 0) {
+      int length = termAtt.length();
+      char[] component = components[index] = ArrayUtil.grow(components[index], length);
+      System.arraycopy(termAtt.buffer(), 0, component, 0, length);
+      componentLengths[index] = length;
       if (primed) {
         int tmp;
         if ((tmp = offsetAtt.startOffset()) < bufferedOffsetStart) {
@@ -143,29 +165,39 @@ public final class TokenTypeJoinFilter extends TokenFilter {
   }
 
   private void outputJoinedTokens() {
-    sb.setLength(0);
-    if (components[0] != null) {
-      sb.append(components[0]);
+    int length = Math.max(componentLengths[0], 0);
+    for (int i = 1; i < components.length; i++) {
+      if (componentLengths[i] >= 0) {
+        length += delim.length + componentLengths[i];
+      } else if (appendPlaceholders) {
+        length += delim.length;
+      }
+    }
+    char[] buffer = termAtt.resizeBuffer(length);
+    int upto = 0;
+    if (componentLengths[0] >= 0) {
+      upto = componentLengths[0];
+      System.arraycopy(components[0], 0, buffer, 0, upto);
     }
     for (int i = 1; i < components.length; i++) {
-      if (appendPlaceholders) {
-        sb.append(delim);
-        if (components[i] != null) {
-          sb.append(components[i]);
-        }
-      } else if (components[i] != null) {
-        sb.append(delim).append(components[i]);
+      int componentLength = componentLengths[i];
+      if (componentLength >= 0 || appendPlaceholders) {
+        System.arraycopy(delim, 0, buffer, upto, delim.length);
+        upto += delim.length;
+      }
+      if (componentLength > 0) {
+        System.arraycopy(components[i], 0, buffer, upto, componentLength);
+        upto += componentLength;
       }
     }
-    termAtt.setEmpty();
-    termAtt.append(sb);
+    termAtt.setLength(upto);
     typeAtt.setType(outputType);
     offsetAtt.setOffset(bufferedOffsetStart, bufferedOffsetEnd);
     if (outputComponentTokens) {
       posIncrAtt.setPositionIncrement(0);
     }
     payloadAtt.setPayload(payload);
-    Arrays.fill(components, null);
+    Arrays.fill(componentLengths, -1);
     primed = false;
   }
 
@@ -189,7 +221,7 @@ public final class TokenTypeJoinFilter extends TokenFilter {
     exhausted = false;
     increment = 0;
     state = null;
-    Arrays.fill(components, null);
+    Arrays.fill(componentLengths, -1);
     super.reset();
   }
 
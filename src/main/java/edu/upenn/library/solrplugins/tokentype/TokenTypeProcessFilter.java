@@ -39,102 +39,85 @@ public final class TokenTypeProcessFilter extends TokenFilter {
   private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
   private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
 
-  private Delegate delegate = Delegate.SELF;
+  private final DelegateInput delegateInput;
 
   public TokenTypeProcessFilter(TokenStream input, Set<String> includeInput, Set<String> excludeInput, String inputTypeRename) {
+    this(input, includeInput, excludeInput, inputTypeRename, false);
+  }
+
+  /**
+   * @param perTokenLifecycle true to run the delegate through a complete reset/end cycle for each
+   * token (required for delegates that latch end-of-input); see {@link DelegateInput}
+   */
+  public TokenTypeProcessFilter(TokenStream input, Set<String> includeInput, Set<String> excludeInput, String inputTypeRename, boolean perTokenLifecycle) {
     super(input);
+    this.delegateInput = new DelegateInput(this, perTokenLifecycle);
     this.preserveOriginalType = inputTypeRename == null;
     this.inputTypeRename = inputTypeRename;
     this.includeInput = includeInput;
     this.excludeInput = excludeInput;
   }
 
-  public void setDelegate(TokenStream outputFilter) {
-    this.outputFilter = outputFilter;
+  /**
+   * Returns the input over which the delegate filter (see {@link #setDelegate(TokenStream)})
+   * should be built.
+   */
+  public TokenStream getDelegateInput() {
+    return delegateInput;
   }
 
-  private static enum Delegate {
-
-    SELF, DELEGATE, DELEGATED
+  public void setDelegate(TokenStream outputFilter) {
+    this.outputFilter = outputFilter;
   }
 
   @Override
   public boolean incrementToken() throws IOException {
-    switch (delegate) {
-      case DELEGATE:
-        delegate = Delegate.DELEGATED;
-        return true;
-      case DELEGATED:
-        delegate = Delegate.SELF;
-        return true;
-      default:
-        if (input.incrementToken()) {
-          String type = typeAtt.type();
-          if ((includeInput == null || includeInput.contains(type)) && (excludeInput == null || !excludeInput.contains(type))) {
-            if (!preserveOriginalType) {
-              typeAtt.setType(inputTypeRename);
-            }
-            delegate = Delegate.DELEGATE;
-            int inc = posIncrAtt.getPositionIncrement();
-            if (outputFilter.incrementToken()) {
-              State outputState = captureState();
-              boolean multipleTokens = false;
-              while (outputFilter.incrementToken() && delegate == Delegate.DELEGATED) {
-                // TODO this results in double-processing of input; try another way?
-                multipleTokens = true;
-                outputState = captureState();
-              }
-              restoreState(outputState);
-              posIncrAtt.setPositionIncrement(inc); // Ensure position increment remains the same.
-              return true;
-            } else {
-              return false;
-            }
-          } else {
-            return true;
-          }
-        } else {
-          return false;
+    while (input.incrementToken()) {
+      String type = typeAtt.type();
+      if ((includeInput == null || includeInput.contains(type)) && (excludeInput == null || !excludeInput.contains(type))) {
+        if (!preserveOriginalType) {
+          typeAtt.setType(inputTypeRename);
+        }
+        if (outputFilter == null) {
+          return true;
+        }
+        int inc = posIncrAtt.getPositionIncrement();
+        if (delegateInput.feed(outputFilter)) {
+          posIncrAtt.setPositionIncrement(inc); // Ensure position increment remains the same.
+          return true;
         }
+        // token removed by delegate
+      } else {
+        return true;
+      }
     }
+    return false;
   }
-  private boolean ending = false;
 
   @Override
   public void end() throws IOException {
-    if (outputFilter == null || ending) {
-      ending = false;
-      super.end();
-    } else {
-      ending = true;
+    if (outputFilter != null && !delegateInput.isPerTokenLifecycle()) {
       outputFilter.end();
     }
+    super.end();
   }
 
-  private boolean resetting = false;
-
   @Override
   public void reset() throws IOException {
-    if (outputFilter == null || resetting) {
-      resetting = false;
-      delegate = Delegate.SELF;
-      super.reset();
-    } else {
-      resetting = true;
+    super.reset();
+    if (outputFilter != null && !delegateInput.isPerTokenLifecycle()) {
       outputFilter.reset();
     }
   }
 
-  private boolean closing = false;
-
   @Override
   public void close() throws IOException {
-    if (outputFilter == null || closing) {
-      closing = false;
+    try {
+      if (outputFilter != null) {
+        outputFilter.close();
+      }
+    } finally {
       super.close();
-    } else {
-      closing = true;
-      outputFilter.close();
     }
   }
 
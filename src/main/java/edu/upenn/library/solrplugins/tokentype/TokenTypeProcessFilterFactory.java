@@ -40,6 +40,7 @@ public class TokenTypeProcessFilterFactory extends TokenFilterFactory implements
   private static final String INCLUDE_INPUT_TYPES_ARGNAME = "includeTypes";
   private static final String EXCLUDE_INPUT_TYPES_ARGNAME = "excludeTypes";
   private static final String INPUT_TYPE_RENAME_ARGNAME = "inputTypeRename";
+  private static final String PER_TOKEN_LIFECYCLE_ARGNAME = "perTokenLifecycle";
   private static final char SUBARG_PREFIX = '_';
 
   private final String delegateFilterFactoryName;
@@ -47,6 +48,7 @@ public class TokenTypeProcessFilterFactory extends TokenFilterFactory implements
   private final Set<String> includeInput;
   private final Set<String> excludeInput;
   private final String inputTypeRename;
+  private final boolean perTokenLifecycle;
   private final Map<String, String> subargs;
 
   public TokenTypeProcessFilterFactory(Map<String, String> args) {
@@ -57,6 +59,7 @@ public class TokenTypeProcessFilterFactory extends TokenFilterFactory implements
       throw new IllegalArgumentException("must specify \"" + DELEGATE_FILTER_FACTORY_ARGNAME + "\" arg");
     }
     inputTypeRename = args.get(INPUT_TYPE_RENAME_ARGNAME);
+    perTokenLifecycle = Boolean.parseBoolean(args.get(PER_TOKEN_LIFECYCLE_ARGNAME));
     includeInput = parseTypeNames(args.get(INCLUDE_INPUT_TYPES_ARGNAME));
     excludeInput = parseTypeNames(args.get(EXCLUDE_INPUT_TYPES_ARGNAME));
     HashMap<String, String> sub = new HashMap<String, String>();
@@ -86,11 +89,11 @@ public class TokenTypeProcessFilterFactory extends TokenFilterFactory implements
 
   @Override
   public TokenStream create(TokenStream input) {
-    TokenTypeProcessFilter local = new TokenTypeProcessFilter(input, includeInput, excludeInput, inputTypeRename);
+    TokenTypeProcessFilter local = new TokenTypeProcessFilter(input, includeInput, excludeInput, inputTypeRename, perTokenLifecycle);
     if (delegateFilterFactory == null) {
       return local;
     } else {
-      TokenStream output = delegateFilterFactory.create(local);
+      TokenStream output = delegateFilterFactory.create(local.getDelegateInput());
       local.setDelegate(output);
       return local;
     }
@@ -41,10 +41,19 @@ public final class TokenTypeSplitFilter extends TokenFilter {
   private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
 
   private State state;
-  private Delegate delegate = Delegate.SELF;
+  private final DelegateInput delegateInput;
 
   public TokenTypeSplitFilter(TokenStream input, Set<String> includeInput, Set<String> excludeInput, String outputType, String inputTypeRename) {
+    this(input, includeInput, excludeInput, outputType, inputTypeRename, false);
+  }
+
+  /**
+   * @param perTokenLifecycle true to run the delegate through a complete reset/end cycle for each
+   * split token (required for delegates that latch end-of-input); see {@link DelegateInput}
+   */
+  public TokenTypeSplitFilter(TokenStream input, Set<String> includeInput, Set<String> excludeInput, String outputType, String inputTypeRename, boolean perTokenLifecycle) {
     super(input);
+    this.delegateInput = new DelegateInput(this, perTokenLifecycle);
     this.preserveOriginalType = inputTypeRename == null;
     this.outputType = outputType;
     this.inputTypeRename = inputTypeRename;
@@ -52,47 +61,34 @@ public final class TokenTypeSplitFilter extends TokenFilter {
     this.excludeInput = excludeInput;
   }
 
+  /**
+   * Returns the input over which the delegate filter (see {@link #setDelegate(TokenStream)})
+   * should be built.
+   */
+  public TokenStream getDelegateInput() {
+    return delegateInput;
+  }
+
   public void setDelegate(TokenStream outputFilter) {
     this.outputFilter = outputFilter;
   }
 
-  private static enum Delegate {
-
-    SELF, DELEGATE, DELEGATED
-  };
-
   @Override
   public boolean incrementToken() throws IOException {
-    if (delegate == Delegate.DELEGATE) {
-      delegate = Delegate.DELEGATED;
-      return true;
-    } else if (delegate == Delegate.DELEGATED) {
-      delegate = Delegate.SELF;
-      return true;
-    } else if (state != null) {
+    if (state != null) {
+      // the original token's state is retained (rather than read back from attributes) because
+      // downstream filters may have modified the shared attributes in the interim
       restoreState(state);
       state = null;
       typeAtt.setType(outputType);
       posIncrAtt.setPositionIncrement(0);
-      if (outputFilter == null) {
+      if (outputFilter == null || delegateInput.feed(outputFilter)) {
+        posIncrAtt.setPositionIncrement(0); // reset
         return true;
-      } else {
-        delegate = Delegate.DELEGATE;
-        if (outputFilter.incrementToken()) {
-          State outputState = captureState();
-          boolean multipleTokens = false;
-          while (outputFilter.incrementToken() && delegate == Delegate.DELEGATED) {
-            multipleTokens = true;
-            outputState = captureState();
-          }
-          restoreState(outputState);
-          posIncrAtt.setPositionIncrement(0); // reset
-          return true;
-        } else {
-          return false;
-        }
       }
-    } else if (input.incrementToken()) {
+      // split token removed by delegate
+    }
+    if (input.incrementToken()) {
       String type = typeAtt.type();
       if ((includeInput == null || includeInput.contains(type)) && (excludeInput == null || !excludeInput.contains(type))) {
         state = captureState();
@@ -105,44 +101,32 @@ public final class TokenTypeSplitFilter extends TokenFilter {
       return false;
     }
   }
-  private boolean ending = false;
 
   @Override
   public void end() throws IOException {
-    if (outputFilter == null || ending) {
-      ending = false;
-      super.end();
-    } else {
-      ending = true;
+    if (outputFilter != null && !delegateInput.isPerTokenLifecycle()) {
       outputFilter.end();
     }
+    super.end();
   }
 
-  private boolean resetting = false;
-
   @Override
   public void reset() throws IOException {
-    if (outputFilter == null || resetting) {
-      resetting = false;
-      state = null;
-      delegate = Delegate.SELF;
-      super.reset();
-    } else {
-      resetting = true;
+    super.reset();
+    state = null;
+    if (outputFilter != null && !delegateInput.isPerTokenLifecycle()) {
       outputFilter.reset();
     }
   }
 
-  private boolean closing = false;
-
   @Override
   public void close() throws IOException {
-    if (outputFilter == null || closing) {
-      closing = false;
+    try {
+      if (outputFilter != null) {
+        outputFilter.close();
+      }
+    } finally {
       super.close();
-    } else {
-      closing = true;
-      outputFilter.close();
     }
   }
 
@@ -40,6 +40,7 @@ public class TokenTypeSplitFilterFactory extends TokenFilterFactory implements R
   private static final String INCLUDE_INPUT_TYPES_ARGNAME = "includeTypes";
   private static final String EXCLUDE_INPUT_TYPES_ARGNAME = "excludeTypes";
   private static final String INPUT_TYPE_RENAME_ARGNAME = "inputTypeRename";
+  private static final String PER_TOKEN_LIFECYCLE_ARGNAME = "perTokenLifecycle";
   private static final String OUTPUT_TYPE_ARGNAME = "outputType";
   private static final char SUBARG_PREFIX = '_';
 
@@ -49,12 +50,14 @@ public class TokenTypeSplitFilterFactory extends TokenFilterFactory implements R
   private final Set<String> excludeInput;
   private final String outputType;
   private final String inputTypeRename;
+  private final boolean perTokenLifecycle;
   private final Map<String, String> subargs;
 
   public TokenTypeSplitFilterFactory(Map<String, String> args) {
     super(args);
     outputFilterFactoryName = args.containsKey(OUTPUT_FILTER_FACTORY_ARGNAME) ? args.get(OUTPUT_FILTER_FACTORY_ARGNAME) : null;
     inputTypeRename = args.get(INPUT_TYPE_RENAME_ARGNAME);
+    perTokenLifecycle = Boolean.parseBoolean(args.get(PER_TOKEN_LIFECYCLE_ARGNAME));
     outputType = args.get(OUTPUT_TYPE_ARGNAME);
     includeInput = parseTypeNames(args.get(INCLUDE_INPUT_TYPES_ARGNAME));
     excludeInput = parseTypeNames(args.get(EXCLUDE_INPUT_TYPES_ARGNAME));
@@ -85,11 +88,11 @@ public class TokenTypeSplitFilterFactory extends TokenFilterFactory implements R
 
   @Override
   public TokenStream create(TokenStream input) {
-    TokenTypeSplitFilter local = new TokenTypeSplitFilter(input, includeInput, excludeInput, outputType, inputTypeRename);
+    TokenTypeSplitFilter local = new TokenTypeSplitFilter(input, includeInput, excludeInput, outputType, inputTypeRename, perTokenLifecycle);
     if (outputFilterFactory == null) {
       return local;
     } else {
-      TokenStream output = outputFilterFactory.create(local);
+      TokenStream output = outputFilterFactory.create(local.getDelegateInput());
       local.setDelegate(output);
       return local;
     }
@@ -385,6 +385,26 @@ public interface FacetParams {
    EXTEND FACET OUTPUT WHERE POSSIBLE
    */
   public static final String FACET_EXTEND = FACET.concat(".extend");
+  // shards return extended values in compact (FacetPayload-specific) form, for merging on the coordinator
+  public static final String FACET_EXTEND_COMPACT = FACET_EXTEND.concat(".compact");
+  // number of threads used to merge extended shard values on the coordinator; 0 merges serially, and other
+  // values (negative for "as many as allowed") are clamped to the facet component's extendMaxThreadsPerRequest
+  public static final String FACET_EXTEND_MERGE_THREADS = FACET_EXTEND.concat(".mergeThreads");
+  // distributed browse: shards return counts only, and the coordinator requests extended values
+  // only for terms in the final merged window, and only from shards that returned those terms
+  public static final String FACET_EXTEND_DEFERRED = FACET_EXTEND.concat(".deferred");
+  // return extended values for explicitly listed terms (shard-side; set by coordinator for FACET_EXTEND_DEFERRED)
+  public static final String FACET_EXTEND_LISTED = FACET_EXTEND.concat(".listed");
+  // number of concurrent tasks used to build extended values for window terms; 0 builds serially, and other
+  // values (negative for "as many as allowed") are clamped to the facet component's extendMaxThreadsPerRequest
+  public static final String FACET_EXTEND_THREADS = FACET_EXTEND.concat(".threads");
+  // maximum number of targets returned per reference type in extended values (negative for unlimited)
+  public static final String FACET_REFS_LIMIT = FACET.concat(".refs.limit");
+  // order of targets within each reference type in extended values: count (default) or index
+  public static final String FACET_REFS_SORT = FACET.concat(".refs.sort");
+  // also report the facet count of each reference target (term) in extended values; for distributed
+  // requests, targets of the merged window are counted on every shard in one additional request
+  public static final String FACET_REFS_COUNTS = FACET.concat(".refs.counts");
 
   /**
    * An enumeration of the legal values for {@link #FACET_RANGE_OTHER} and {@link #FACET_DATE_OTHER} ...
@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.concurrent.CancellationException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+
+/**
+ * {@link HttpShardHandlerFactory} whose shard handlers may be cancelled by search components
+ * while the search handler is still collecting responses. Each handler is exposed via the request
+ * context (see {@link #forRequest(SolrQueryRequest)}), and {@link ShardHandler#cancelAll()} abandons
+ * outstanding shard requests: requests for which some shard response is cancelled are never
+ * returned to components, and the search handler proceeds with the responses it already has.
+ * (Stock handlers only support cancelAll() immediately before failing the whole request: a
+ * cancelled response otherwise surfaces as an exception.) Configured in <code>solr.xml</code>:
+ * <pre>
+ * &lt;shardHandlerFactory name="shardHandlerFactory" class="org.apache.solr.handler.component.CancellableShardHandlerFactory"/&gt;
+ * </pre>
+ *
+ * @author magibney
+ */
+public class CancellableShardHandlerFactory extends HttpShardHandlerFactory {
+
+  /**
+   * Request context key under which the shard handler for a distributed request is exposed
+   */
+  public static final String CONTEXT_KEY = CancellableShardHandlerFactory.class.getName();
+
+  @Override
+  public ShardHandler getShardHandler() {
+    return new CancellableShardHandler(super.getShardHandler());
+  }
+
+  /**
+   * Returns the shard handler for the specified (distributed) request, or null if the request is
+   * not distributed, or its handler was not created by this factory.
+   */
+  public static ShardHandler forRequest(SolrQueryRequest req) {
+    return (ShardHandler) req.getContext().get(CONTEXT_KEY);
+  }
+
+  private static final class CancellableShardHandler extends ShardHandler {
+
+    private final ShardHandler delegate;
+
+    private CancellableShardHandler(ShardHandler delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void prepDistributed(ResponseBuilder rb) {
+      delegate.prepDistributed(rb);
+      rb.req.getContext().put(CONTEXT_KEY, this);
+    }
+
+    @Override
+    public void submit(ShardRequest sreq, String shard, ModifiableSolrParams params, String preferredHostAddress) {
+      delegate.submit(sreq, shard, params, preferredHostAddress);
+    }
+
+    @Override
+    public ShardResponse takeCompletedIncludingErrors() {
+      for (;;) {
+        try {
+          return delegate.takeCompletedIncludingErrors();
+        } catch (CancellationException ex) {
+          // response cancelled by cancelAll(); its request is abandoned
+        }
+      }
+    }
+
+    @Override
+    public ShardResponse takeCompletedOrError() {
+      for (;;) {
+        try {
+          return delegate.takeCompletedOrError();
+        } catch (CancellationException ex) {
+          // response cancelled by cancelAll(); its request is abandoned
+        }
+      }
+    }
+
+    @Override
+    public void cancelAll() {
+      delegate.cancelAll();
+    }
+
+    @Override
+    public ShardHandlerFactory getShardHandlerFactory() {
+      return delegate.getShardHandlerFactory();
+    }
+
+  }
+}
@@ -30,12 +30,18 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrException;
@@ -48,14 +54,19 @@ import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.DistribDocEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.DistribEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
+import org.apache.solr.request.ExtendedFacetExecutor;
 import org.apache.solr.request.FacetPayload;
 import org.apache.solr.request.MultiSerializable;
 import org.apache.solr.request.SimpleFacets;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.TermReferences;
+import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
@@ -64,6 +75,7 @@ import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.facet.FacetDebugInfo;
+import org.apache.solr.util.plugin.SolrCoreAware;
 import org.apache.solr.util.RTimer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,7 +86,7 @@ import org.slf4j.LoggerFactory;
  * @since solr 1.3
  */
 @SuppressWarnings("rawtypes")
-public class FacetComponent extends SearchComponent {
+public class FacetComponent extends SearchComponent implements SolrCoreAware {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
   
   public static final String COMPONENT_NAME = "facet";
@@ -87,6 +99,47 @@ public class FacetComponent extends SearchComponent {
   private static final String PIVOT_KEY = "facet_pivot";
   private static final String PIVOT_REFINE_PREFIX = "{!"+PivotFacet.REFINE_PARAM+"=";
 
+  /**
+   * Bounded pool for concurrent extended-facet work, configured by this component's init args;
+   * see {@link ExtendedFacetExecutor}
+   */
+  private ExtendedFacetExecutor extendExecutor;
+
+  /**
+   * Init arg bounding facet.limit for target windows (negative, the default, for unbounded); see
+   * {@link #checkTargetLimits(SolrParams)}
+   */
+  public static final String TARGET_MAX_LIMIT_ARG = "targetMaxLimit";
+
+  private int targetMaxLimit = -1;
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    extendExecutor = ExtendedFacetExecutor.fromArgs(args);
+    Object maxLimit = args == null ? null : args.get(TARGET_MAX_LIMIT_ARG);
+    if (maxLimit != null) {
+      targetMaxLimit = maxLimit instanceof Number ? ((Number) maxLimit).intValue() : Integer.parseInt(maxLimit.toString().trim());
+    }
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    if (extendExecutor != null) {
+      final ExtendedFacetExecutor executor = extendExecutor;
+      core.addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {
+        }
+
+        @Override
+        public void postClose(SolrCore core) {
+          executor.shutdown();
+        }
+      });
+    }
+  }
+
   public MultiSerializable extendedFieldType(String name, ResponseBuilder rb) {
     IndexSchema sch;
     SchemaField sf;
@@ -104,6 +157,9 @@ public class FacetComponent extends SearchComponent {
     if (rb.req.getParams().getBool(FacetParams.FACET, false)) {
       rb.setNeedDocSet(true);
       rb.doFacets = true;
+      if (extendExecutor != null) {
+        rb.req.getContext().put(ExtendedFacetExecutor.CONTEXT_KEY, extendExecutor);
+      }
 
       // Deduplicate facet params
       ModifiableSolrParams params = new ModifiableSolrParams();
@@ -122,11 +178,43 @@ public class FacetComponent extends SearchComponent {
       }
       rb.req.setParams(params);
 
+      if (targetMaxLimit >= 0) {
+        checkTargetLimits(params);
+      }
+
       // Initialize context
       FacetContext.initContext(rb);
     }
   }
 
+  /**
+   * Target (facet.target) windows are materialized in full before the response is written: shard
+   * windows must parse as NamedLists on the coordinator, and external (and compact) representations
+   * are applied in place once a window is built. Memory per request therefore grows with
+   * facet.limit; when {@link #TARGET_MAX_LIMIT_ARG} is configured, larger (or unlimited) windows are
+   * rejected, and large browses should instead page through successive windows.
+   */
+  private void checkTargetLimits(SolrParams params) {
+    String[] facetFs = params.getParams(FacetParams.FACET_FIELD);
+    if (facetFs == null) return;
+    for (String facetF : facetFs) {
+      SolrParams localParams;
+      try {
+        localParams = QueryParsing.getLocalParams(facetF, params);
+      } catch (SyntaxError ex) {
+        throw new SolrException(ErrorCode.BAD_REQUEST, ex);
+      }
+      String field = localParams == null ? facetF : localParams.get(CommonParams.VALUE);
+      SolrParams fieldParams = localParams == null ? params : SolrParams.wrapDefaults(localParams, params);
+      if (fieldParams.getFieldParam(field, FacetParams.FACET_TARGET) == null) continue;
+      int limit = fieldParams.getFieldInt(field, FacetParams.FACET_LIMIT, 100);
+      if (limit < 0 || limit > targetMaxLimit) {
+        throw new SolrException(ErrorCode.BAD_REQUEST, FacetParams.FACET_LIMIT + " for target windows may not exceed "
+            + targetMaxLimit + " (field " + field + "); found " + limit);
+      }
+    }
+  }
+
   /* Custom facet components can return a custom SimpleFacets object */
   protected SimpleFacets newSimpleFacets(SolrQueryRequest req, DocSet docSet, SolrParams params, ResponseBuilder rb) {
     return new SimpleFacets(req, docSet, params, rb);
@@ -363,6 +451,13 @@ public class FacetComponent extends SearchComponent {
   }
 
   private static final String commandPrefix = "{!" + CommonParams.TERMS + "=$";
+
+  /**
+   * Follows {@link ResponseBuilder#STAGE_GET_FIELDS} for requests with
+   * {@link FacetParams#FACET_REFS_COUNTS}: once the final (merged) windows are fixed, the distinct
+   * terms they reference are counted on every shard in a single listed-terms request.
+   */
+  static final int STAGE_RESOLVE_TARGET_COUNTS = ResponseBuilder.STAGE_GET_FIELDS + 100;
   
   @Override
   public int distributedProcess(ResponseBuilder rb) throws IOException {
@@ -370,6 +465,11 @@ public class FacetComponent extends SearchComponent {
       return ResponseBuilder.STAGE_DONE;
     }
 
+    if (rb.stage == STAGE_RESOLVE_TARGET_COUNTS) {
+      enqueueTargetCountRequest(rb);
+      return ResponseBuilder.STAGE_DONE;
+    }
+
     if (rb.stage != ResponseBuilder.STAGE_GET_FIELDS) {
       return ResponseBuilder.STAGE_DONE;
     }
@@ -385,8 +485,18 @@ public class FacetComponent extends SearchComponent {
 
       // FieldFacetAdditions
       for (DistribFieldFacet dff : rb._facetInfo.facets.values()) {
-        if (!dff.needRefinements) continue;
-        List<String> refList = dff._toRefine[shardNum];
+        List<String> refList;
+        String listedParams;
+        if (dff.needRefinements) {
+          refList = dff._toRefine[shardNum];
+          listedParams = "";
+        } else if (dff._toFetchExtended != null) {
+          // deferred extension: fetch extended values for listed terms
+          refList = dff._toFetchExtended[shardNum];
+          listedParams = " " + FacetParams.FACET_EXTEND_LISTED + "=true";
+        } else {
+          continue;
+        }
         if (refList == null || refList.size() == 0) continue;
 
         String key = dff.getKey(); // reuse the same key that was used for the
@@ -400,10 +510,10 @@ public class FacetComponent extends SearchComponent {
 
         String termsKeyEncoded = QueryParsing.encodeLocalParamVal(termsKey);
         if (dff.localParams != null) {
-          facetCommand = commandPrefix + termsKeyEncoded + " "
+          facetCommand = commandPrefix + termsKeyEncoded + listedParams + " "
               + dff.facetStr.substring(2);
         } else {
-          facetCommand = commandPrefix + termsKeyEncoded + '}' + dff.field;
+          facetCommand = commandPrefix + termsKeyEncoded + listedParams + '}' + dff.field;
         }
 
         if (distribFieldFacetRefinements == null) {
@@ -448,6 +558,7 @@ public class FacetComponent extends SearchComponent {
         shardsRefineRequest.purpose |= ShardRequest.PURPOSE_REFINE_FACETS;
         shardsRefineRequest.params.set(FacetParams.FACET, "true");
         removeMainFacetTypeParams(shardsRefineRequest);
+        modifyRequestForRefs(rb, shardsRefineRequest);
 
         for (int i = 0; i < distribFieldFacetRefinements.size();) {
           String facetCommand = distribFieldFacetRefinements.get(i++);
@@ -472,9 +583,56 @@ public class FacetComponent extends SearchComponent {
 
     } // for shardNum
 
+    for (DistribFieldFacet dff : rb._facetInfo.facets.values()) {
+      if (dff.refCounts && !dff.partial) {
+        return STAGE_RESOLVE_TARGET_COUNTS;
+      }
+    }
     return ResponseBuilder.STAGE_DONE;
   }
 
+  /**
+   * Sends the distinct terms referenced by the final windows (see {@link #collectTargetTerms}) to
+   * every shard in one request, as listed terms ({!terms=...}) counted like refinement terms.
+   */
+  private void enqueueTargetCountRequest(ResponseBuilder rb) {
+    if (rb._facetInfo == null) return; // already output
+    ModifiableSolrParams params = null;
+    for (DistribFieldFacet dff : rb._facetInfo.facets.values()) {
+      if (dff.targetTerms == null || dff.targetTerms.isEmpty()) continue;
+      if (params == null) {
+        params = new ModifiableSolrParams(rb.req.getParams());
+        // don't request any documents
+        params.remove(CommonParams.START);
+        params.set(CommonParams.ROWS, "0");
+        params.set(FacetParams.FACET, "true");
+        for (String param : FACET_TYPE_PARAMS) {
+          params.remove(param);
+        }
+      }
+      String termsKey = dff.getKey() + "__targets";
+      String termsKeyEncoded = QueryParsing.encodeLocalParamVal(termsKey);
+      // plain counts, never extended values
+      String listedParams = " " + FacetParams.FACET_EXTEND_LISTED + "=false";
+      String facetCommand;
+      if (dff.localParams != null) {
+        facetCommand = commandPrefix + termsKeyEncoded + listedParams + " " + dff.facetStr.substring(2);
+      } else {
+        facetCommand = commandPrefix + termsKeyEncoded + listedParams + '}' + dff.field;
+      }
+      params.add(FacetParams.FACET_FIELD, facetCommand);
+      params.set(termsKey, StrUtils.join(dff.targetTerms, ','));
+    }
+    if (params != null) {
+      ShardRequest sreq = new ShardRequest();
+      // private: no other component modifies (or handles) this request
+      sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+      sreq.shards = rb.shards;
+      sreq.params = params;
+      rb.addRequest(this, sreq);
+    }
+  }
+
   public static String[] FACET_TYPE_PARAMS = {
       FacetParams.FACET_FIELD, FacetParams.FACET_PIVOT, FacetParams.FACET_QUERY, FacetParams.FACET_DATE,
       FacetParams.FACET_RANGE, FacetParams.FACET_INTERVAL, FacetParams.FACET_HEATMAP
@@ -553,6 +711,8 @@ public class FacetComponent extends SearchComponent {
       
       modifyRequestForFieldFacets(rb, sreq, fi);
 
+      modifyRequestForRefs(rb, sreq);
+
       modifyRequestForRangeFacets(sreq);
       
       modifyRequestForPivotFacets(rb, sreq, fi.pivotFacets);
@@ -585,6 +745,19 @@ public class FacetComponent extends SearchComponent {
     }
   }
 
+  // reference targets within extended values: over-request count-sorted lists to increase accuracy.
+  // index-sorted lists need no over-request: any target in the merged top N is in the top N of each
+  // shard on which it occurs
+  private void modifyRequestForRefs(ResponseBuilder rb, ShardRequest sreq) {
+    SolrParams params = rb.req.getParams();
+    int refsLimit = params.getInt(FacetParams.FACET_REFS_LIMIT, -1);
+    if (refsLimit > 0 && FacetParams.FACET_SORT_COUNT.equals(params.get(FacetParams.FACET_REFS_SORT, FacetParams.FACET_SORT_COUNT))) {
+      sreq.params.set(FacetParams.FACET_REFS_LIMIT, doOverRequestMath(refsLimit,
+          params.getDouble(FacetParams.FACET_OVERREQUEST_RATIO, 1.5),
+          params.getInt(FacetParams.FACET_OVERREQUEST_COUNT, 10)));
+    }
+  }
+
   private void modifyRequestForFieldFacets(ResponseBuilder rb, ShardRequest sreq, FacetInfo fi) {
     for (DistribFieldFacet dff : fi.facets.values()) {
       
@@ -649,6 +822,11 @@ public class FacetComponent extends SearchComponent {
       sreq.params.set(paramStart + FacetParams.FACET_LIMIT, dff.initialLimit);
       sreq.params.set(paramStart + FacetParams.FACET_MINCOUNT, dff.initialMincount);
 
+      if (dff.deferExtend) {
+        // first phase requests counts only; extended values are fetched for the final window
+        sreq.params.set(paramStart + FacetParams.FACET_EXTEND, false);
+      }
+
     }
   }
   
@@ -736,7 +914,11 @@ public class FacetComponent extends SearchComponent {
   public void handleResponses(ResponseBuilder rb, ShardRequest sreq) {
     if (!rb.doFacets) return;
     
-    if ((sreq.purpose & ShardRequest.PURPOSE_GET_FACETS) != 0) {
+    if (rb.stage == STAGE_RESOLVE_TARGET_COUNTS) {
+      if ((sreq.purpose & ShardRequest.PURPOSE_PRIVATE) != 0) {
+        countTargets(rb, sreq);
+      }
+    } else if ((sreq.purpose & ShardRequest.PURPOSE_GET_FACETS) != 0) {
       countFacets(rb, sreq);
     } else {
       // at present PURPOSE_REFINE_FACETS and PURPOSE_REFINE_PIVOT_FACETS
@@ -753,7 +935,21 @@ public class FacetComponent extends SearchComponent {
   
   private void countFacets(ResponseBuilder rb, ShardRequest sreq) {
     FacetInfo fi = rb._facetInfo;
-    
+
+    // Payload merges for term-centric extended fields may be deferred until all shard responses
+    // have been added, and then run concurrently, partitioned by term (across fields as well as
+    // within each field). Merges for a given term are always applied in shard response order, so
+    // output is identical to serial merging. The requested number of threads is clamped to the
+    // per-request limit configured for this component's executor.
+    int mergeThreads = extendExecutor == null ? 0
+        : extendExecutor.threadsFor(rb.req.getParams().getInt(FacetParams.FACET_EXTEND_MERGE_THREADS, 0));
+    if (mergeThreads != 0) {
+      for (DistribFieldFacet dff : fi.facets.values()) {
+        dff.deferPayloadMerges(mergeThreads);
+      }
+    }
+
+    boolean partial = false;
     for (ShardResponse srsp : sreq.responses) {
       int shardNum = rb.getShardNum(srsp.getShard());
       NamedList facet_counts = null;
@@ -786,6 +982,10 @@ public class FacetComponent extends SearchComponent {
           String fieldName = dff.getKey();
           NamedList field_terms = (NamedList)facet_fields.get(fieldName);
           if (dff.target != null) {
+            if (Boolean.TRUE.equals(field_terms.get(BidirectionalFacetResponseBuilder.PARTIAL_KEY))) {
+              dff.partial = true;
+              partial = true;
+            }
             field_terms = (NamedList)field_terms.get("terms");
           }
           dff.add(shardNum, field_terms, dff.initialLimit);
@@ -811,7 +1011,15 @@ public class FacetComponent extends SearchComponent {
       SpatialHeatmapFacets.distribHandleResponse(fi.heatmapFacets, facet_counts);
 
     } // end for-each-response-in-shard-request...
-    
+
+    if (partial) {
+      cancelOutstandingShardRequests(rb);
+    }
+
+    if (mergeThreads != 0) {
+      mergeDeferredPayloads(fi, extendExecutor, mergeThreads);
+    }
+
     for (DistribFieldFacet dff : fi.facets.values()) {
       dff.finish();
     }
@@ -894,6 +1102,54 @@ public class FacetComponent extends SearchComponent {
     removeRangeFacetsUnderLimits(rb);
     removeQueryFacetsUnderLimits(rb);
 
+    planDeferredExtension(rb);
+  }
+
+  /**
+   * For fields with deferred extension, determines the final window from merged counts, and
+   * records (per shard) the window terms for which each shard must supply extended values. Only
+   * shards that returned a given term in the first phase are asked for that term.
+   */
+  private void planDeferredExtension(ResponseBuilder rb) {
+    for (DistribFieldFacet dff : rb._facetInfo.facets.values()) {
+      if (!dff.deferExtend) continue;
+      NamedList<Object> window;
+      try {
+        window = BidirectionalFacetResponseBuilder.build(distribEnv(dff, new NamedList<>(), dff.getLexSorted()), false);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      @SuppressWarnings("unchecked") // generic array's are annoying
+      List<String>[] toFetch = (List<String>[]) new List[rb.shards.length];
+      for (int i = 0; i < window.size(); i++) {
+        ShardFacetCount sfc = dff.counts.get(window.getName(i));
+        if (sfc == null) continue;
+        for (int shardNum = 0; shardNum < rb.shards.length; shardNum++) {
+          FixedBitSet fbs = dff.counted[shardNum];
+          // fbs can be null if a shard request failed
+          if (fbs != null && sfc.termNum < fbs.length() && fbs.get(sfc.termNum)) {
+            List<String> lst = toFetch[shardNum];
+            if (lst == null) {
+              lst = toFetch[shardNum] = new ArrayList<>();
+            }
+            lst.add(sfc.name);
+          }
+        }
+      }
+      dff._toFetchExtended = toFetch;
+    }
+  }
+
+  private static Env distribEnv(DistribFieldFacet dff, NamedList<Object> fieldCounts, ShardFacetCount[] counts) {
+    // index order with target/offset
+    int targetIdx = Arrays.binarySearch(counts, dff.target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
+    if (dff.targetDoc == null) {
+      return new DistribEnv(dff.offset, dff.limit, targetIdx,
+        dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+    } else {
+      return new DistribDocEnv(dff.offset, dff.limit, targetIdx,
+        dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
+    }
   }
 
   private void removeQueryFacetsUnderLimits(ResponseBuilder rb) {
@@ -942,6 +1198,53 @@ public class FacetComponent extends SearchComponent {
     }
   }
 
+  private static void mergeDeferredPayloads(FacetInfo fi, ExtendedFacetExecutor executor, int maxThreads) {
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    for (DistribFieldFacet dff : fi.facets.values()) {
+      dff.drainPayloadMergeTasks(tasks);
+    }
+    int workerCount = Math.min(maxThreads, tasks.size());
+    if (workerCount == 0) {
+      return;
+    }
+    Runnable worker = () -> {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    };
+    // the pool is shared and bounded, so helpers may still be queued when the calling thread runs
+    // out of tasks; each helper is claimed (by the pool or by the caller) exactly once
+    List<AtomicBoolean> claimed = new ArrayList<>(workerCount - 1);
+    List<Future<?>> workers = new ArrayList<>(workerCount - 1);
+    for (int i = 1; i < workerCount; i++) {
+      final AtomicBoolean claim = new AtomicBoolean();
+      claimed.add(claim);
+      workers.add(executor.submit(() -> {
+        if (claim.compareAndSet(false, true)) {
+          worker.run();
+        }
+      }));
+    }
+    // calling thread participates as a worker
+    worker.run();
+    try {
+      for (int i = 0; i < workers.size(); i++) {
+        if (claimed.get(i).compareAndSet(false, true)) {
+          // never started; nothing left for it to do
+          workers.get(i).cancel(false);
+        } else {
+          workers.get(i).get();
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Interrupted merging facet payloads", ex);
+    } catch (ExecutionException ex) {
+      throw new SolrException(ErrorCode.SERVER_ERROR, "Error merging facet payloads", ex.getCause());
+    }
+  }
+
   private void removeFieldFacetsUnderLimits(ResponseBuilder rb) {
     if (rb.stage != ResponseBuilder.STAGE_DONE) {
       return;
@@ -1024,6 +1327,51 @@ public class FacetComponent extends SearchComponent {
   }
 
 
+  /**
+   * Once a shard has cut a window short (timeAllowed), the request's time budget is spent: shard
+   * requests still outstanding (e.g., those of other components) are cancelled, provided the
+   * request's shard handler supports it (see {@link CancellableShardHandlerFactory}), and no
+   * optional facet stages (target counts) are issued for partial fields. The partial flag is
+   * carried into the merged field result and the response header regardless.
+   */
+  private static void cancelOutstandingShardRequests(ResponseBuilder rb) {
+    ShardHandler shardHandler = CancellableShardHandlerFactory.forRequest(rb.req);
+    if (shardHandler != null) {
+      shardHandler.cancelAll();
+    }
+  }
+
+  /**
+   * Sums shard counts for the terms referenced by the final windows
+   */
+  private void countTargets(ResponseBuilder rb, ShardRequest sreq) {
+    FacetInfo fi = rb._facetInfo;
+
+    for (ShardResponse srsp : sreq.responses) {
+      NamedList facet_counts = srsp.getSolrResponse() == null ? null
+          : (NamedList) srsp.getSolrResponse().getResponse().get("facet_counts");
+      NamedList facet_fields = facet_counts == null ? null : (NamedList) facet_counts.get("facet_fields");
+
+      if (facet_fields == null) {
+        // this can happen when there's an exception (with shards.tolerant); counts are incomplete
+        for (DistribFieldFacet dff : fi.facets.values()) {
+          dff.partial |= dff.targetCounts != null;
+        }
+        continue;
+      }
+
+      for (int i = 0; i < facet_fields.size(); i++) {
+        DistribFieldFacet dff = fi.facets.get(facet_fields.getName(i));
+        if (dff == null || dff.targetCounts == null) continue;
+        NamedList shardCounts = (NamedList) facet_fields.getVal(i);
+        for (int j = 0; j < shardCounts.size(); j++) {
+          long count = ((Number) shardCounts.getVal(j)).longValue();
+          dff.targetCounts.merge(shardCounts.getName(j), count, Long::sum);
+        }
+      }
+    }
+  }
+
   private void refineFacets(ResponseBuilder rb, ShardRequest sreq) {
     FacetInfo fi = rb._facetInfo;
 
@@ -1039,15 +1387,23 @@ public class FacetComponent extends SearchComponent {
         DistribFieldFacet dff = fi.facets.get(key);
         if (dff == null) continue;
 
+        // refinement (and deferred extended value) requests list their terms explicitly ({!terms=...}),
+        // so shards return flat term lists here, never the "terms" child of a target window
         NamedList shardCounts = (NamedList) facet_fields.getVal(i);
-        if (dff.target != null) {
-          shardCounts = (NamedList) shardCounts.get("terms");
-        }
         
         for (int j = 0; j < shardCounts.size(); j++) {
           String name = shardCounts.getName(j);
-          long count = ((Number) shardCounts.getVal(j)).longValue();
+          Object val = shardCounts.getVal(j);
           ShardFacetCount sfc = dff.counts.get(name);
+          if (dff.deferExtend) {
+            // extended values for the final window; counts were already merged in the first phase
+            if (sfc != null && !(val instanceof Number)) {
+              sfc.val = sfc.val == null ? val
+                  : dff.fPayload.mergePayload(sfc.val, val, dff.fPayload.extractCount(sfc.val), dff.fPayload.extractCount(val));
+            }
+            continue;
+          }
+          long count = ((Number) val).longValue();
           if (sfc == null) {
             // we got back a term we didn't ask for?
             log.error("Unexpected term returned for facet refining. key=" + key
@@ -1126,6 +1482,10 @@ public class FacetComponent extends SearchComponent {
   
   @Override
   public void finishStage(ResponseBuilder rb) {
+    if (rb.doFacets && rb.stage == STAGE_RESOLVE_TARGET_COUNTS) {
+      finishTargetCounts(rb);
+      return;
+    }
     if (!rb.doFacets || rb.stage != ResponseBuilder.STAGE_GET_FIELDS) return;
     // wait until STAGE_GET_FIELDS
     // so that "result" is already stored in the response (for aesthetics)
@@ -1193,24 +1553,26 @@ public class FacetComponent extends SearchComponent {
         }
       } else {
         // index order with target/offset
-        int targetIdx = Arrays.binarySearch(counts, dff.target, (o1, o2) -> o1.indexed.compareTo(o2.indexed));
-        Env env;
-        if (dff.targetDoc == null) {
-          env = new DistribEnv(dff.offset, dff.limit, targetIdx,
-            dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
-        } else {
-          env = new DistribDocEnv(dff.offset, dff.limit, targetIdx,
-            dff.minCount, dff.field, dff.ftype, fieldCounts, counts);
-        }
+        Env env = distribEnv(dff, fieldCounts, counts);
         try {
           termVals = BidirectionalFacetResponseBuilder.build(env, dff.targetDoc != null);
         } catch (IOException ex) {
           throw new RuntimeException(ex);
         }
+        if (dff.partial) {
+          // at least one shard window was cut short by timeAllowed
+          fieldCounts.add(BidirectionalFacetResponseBuilder.PARTIAL_KEY, true);
+          if (rb.rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) == null) {
+            rb.rsp.getResponseHeader().add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+          }
+        }
       }
       if (dff.ftype instanceof MultiSerializable) {
         ((MultiSerializable)dff.ftype).updateExternalRepresentation(termVals);
       }
+      if (dff.refCounts && !dff.partial) {
+        collectTargetTerms(dff, termVals);
+      }
 
       if (dff.missing) {
         fieldCounts.add(null, num(dff.missingCount));
@@ -1233,11 +1595,73 @@ public class FacetComponent extends SearchComponent {
       facet_counts.add(PIVOT_KEY, createPivotFacetOutput(rb));
     }
 
+    for (DistribFieldFacet dff : fi.facets.values()) {
+      if (dff.termVals != null) {
+        // output once target counts are resolved (STAGE_RESOLVE_TARGET_COUNTS)
+        fi.pendingFacetCounts = facet_counts;
+        return;
+      }
+    }
+
     rb.rsp.add("facet_counts", facet_counts);
 
     rb._facetInfo = null;  // could be big, so release asap
   }
 
+  /**
+   * Records the distinct terms referenced by the specified final (external representation) field
+   * values. Shards do not resolve target counts (each sees only the targets referenced by its own
+   * window), so these terms are counted on every shard once windows are fixed; see
+   * {@link #enqueueTargetCountRequest(ResponseBuilder)}.
+   */
+  private static void collectTargetTerms(DistribFieldFacet dff, NamedList<Object> termVals) {
+    Set<String> targetTerms = new LinkedHashSet<>();
+    try {
+      ((TermReferences) dff.ftype).resolveReferenceCounts(termVals, dff.field, (indexedTerm) -> {
+        targetTerms.add(dff.readable(indexedTerm));
+        return -1; // unresolved for now
+      });
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    dff.termVals = termVals;
+    dff.targetTerms = new ArrayList<>(targetTerms);
+    dff.targetCounts = new HashMap<>(targetTerms.size() * 2);
+  }
+
+  /**
+   * Sets target counts (summed across shards) on the final field values, and outputs the facet
+   * counts built in {@link ResponseBuilder#STAGE_GET_FIELDS}.
+   */
+  private void finishTargetCounts(ResponseBuilder rb) {
+    FacetInfo fi = rb._facetInfo;
+    if (fi == null || fi.pendingFacetCounts == null) return;
+    for (DistribFieldFacet dff : fi.facets.values()) {
+      if (dff.termVals == null) continue;
+      try {
+        ((TermReferences) dff.ftype).resolveReferenceCounts(dff.termVals, dff.field, (indexedTerm) -> {
+          Long count = dff.targetCounts.get(dff.readable(indexedTerm));
+          return count == null ? -1 : count;
+        });
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      if (dff.partial && dff.target != null) {
+        NamedList<Object> fieldCounts = (NamedList<Object>) ((NamedList<Object>) fi.pendingFacetCounts.get("facet_fields")).get(dff.getKey());
+        if (fieldCounts.get(BidirectionalFacetResponseBuilder.PARTIAL_KEY) == null) {
+          fieldCounts.add(BidirectionalFacetResponseBuilder.PARTIAL_KEY, true);
+        }
+      }
+      if (dff.partial && rb.rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) == null) {
+        rb.rsp.getResponseHeader().add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+      }
+    }
+
+    rb.rsp.add("facet_counts", fi.pendingFacetCounts);
+
+    rb._facetInfo = null;  // could be big, so release asap
+  }
+
   private SimpleOrderedMap<List<NamedList<Object>>> createPivotFacetOutput(ResponseBuilder rb) {
     
     SimpleOrderedMap<List<NamedList<Object>>> combinedPivotFacets = new SimpleOrderedMap<>();
@@ -1327,6 +1751,7 @@ public class FacetComponent extends SearchComponent {
     public SimpleOrderedMap<PivotFacet> pivotFacets
       = new SimpleOrderedMap<>();
     public LinkedHashMap<String,SpatialHeatmapFacets.HeatmapFacet> heatmapFacets;
+    NamedList<Object> pendingFacetCounts; // built, but awaiting STAGE_RESOLVE_TARGET_COUNTS
 
     void parse(SolrParams params, ResponseBuilder rb) {
       queryFacets = new LinkedHashMap<>();
@@ -1543,6 +1968,15 @@ public class FacetComponent extends SearchComponent {
     public boolean needRefinements;
     public ShardFacetCount[] countSorted;
     public final FacetPayload fPayload;
+    public boolean deferExtend; // see FacetParams.FACET_EXTEND_DEFERRED
+    public boolean partial; // some shard window was cut short (timeAllowed)
+    public List<String>[] _toFetchExtended; // window terms for which extended values are needed, per shard
+    public boolean refCounts; // see FacetParams.FACET_REFS_COUNTS; resolved across shards by the coordinator
+    private NamedList<Object> termVals; // final values, pending target counts
+    private List<String> targetTerms; // (readable) terms referenced by termVals
+    private HashMap<String, Long> targetCounts; // summed across shards
+    private List<List<PendingPayloadMerge>> pendingMerges;
+    private HashMap<ShardFacetCount, PendingPayloadMerge> pendingMergesBySfc;
     
     DistribFieldFacet(ResponseBuilder rb, String facetStr) {
       super(rb, facetStr);
@@ -1562,6 +1996,18 @@ public class FacetComponent extends SearchComponent {
       
       this.mco 
       = params.getFieldBool(field, FacetParams.FACET_DISTRIB_MCO, false);
+
+      // only applies where the first phase requires no refinement (index-sorted browse, minCount <= 1)
+      this.deferExtend = extend && ftype instanceof FacetPayload && target != null && targetDoc == null
+          && minCount <= 1 && FacetParams.FACET_SORT_INDEX.equals(sort)
+          && params.getFieldBool(field, FacetParams.FACET_EXTEND_DEFERRED, false);
+
+      this.refCounts = extend && ftype instanceof TermReferences
+          && params.getBool(FacetParams.FACET_REFS_COUNTS, false);
+    }
+
+    private String readable(BytesRef indexedTerm) {
+      return ftype.indexedToReadable(indexedTerm, new CharsRefBuilder()).toString();
     }
     
     private static class TermMetadataEntry {
@@ -1662,14 +2108,19 @@ public class FacetComponent extends SearchComponent {
               if (extend && fPayload != null) {
                 if (tdi == null) {
                   if (sfc.val != val) {
-                    fPayload.mergePayload(sfc.val, val, sfc.count, count);
+                    if (pendingMerges != null) {
+                      deferPayloadMerge(sfc, val, count);
+                    } else {
+                      // merge may replace the value (e.g., for compact representations)
+                      sfc.val = fPayload.mergePayload(sfc.val, val, sfc.count, count);
+                    }
                   }
                 } else {
                   if (termMetadataEntry == null) {
                     termMetadataEntry = new TermMetadataEntry(count, next.termMetadata, sfc);
                     termsMetadata.put(term, termMetadataEntry);
                   } else {
-                    fPayload.mergePayload(termMetadataEntry.termMetadata, next.termMetadata, termMetadataEntry.count, count);
+                    fPayload.mergePayloadInPlace(termMetadataEntry.termMetadata, next.termMetadata, termMetadataEntry.count, count);
                     next.termMetadata = termMetadataEntry.termMetadata;
                     termMetadataEntry.update(count, sfc);
                   }
@@ -1696,6 +2147,79 @@ public class FacetComponent extends SearchComponent {
       counted[shardNum] = terms;
     }
 
+    /**
+     * Defers term-centric payload merges, for later (possibly concurrent) execution via
+     * {@link #drainPayloadMergeTasks(Queue)}. Terms are partitioned by hash into the
+     * specified number of partitions.
+     */
+    void deferPayloadMerges(int partitions) {
+      if (extend && fPayload != null && targetDoc == null) {
+        pendingMerges = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+          pendingMerges.add(new ArrayList<>());
+        }
+        pendingMergesBySfc = new HashMap<>();
+      }
+    }
+
+    private void deferPayloadMerge(ShardFacetCount sfc, Object val, long count) {
+      PendingPayloadMerge pending = pendingMergesBySfc.get(sfc);
+      if (pending == null) {
+        pending = new PendingPayloadMerge(sfc);
+        pendingMergesBySfc.put(sfc, pending);
+        int partition = (sfc.name.hashCode() & Integer.MAX_VALUE) % pendingMerges.size();
+        pendingMerges.get(partition).add(pending);
+      }
+      pending.add(val, sfc.count, count);
+    }
+
+    /**
+     * Adds one task per non-empty partition of deferred payload merges to the specified queue, and
+     * resets deferred merge state.
+     */
+    void drainPayloadMergeTasks(Queue<Runnable> tasks) {
+      if (pendingMerges == null) {
+        return;
+      }
+      for (List<PendingPayloadMerge> partitionMerges : pendingMerges) {
+        if (!partitionMerges.isEmpty()) {
+          tasks.add(() -> {
+            for (PendingPayloadMerge pending : partitionMerges) {
+              pending.merge(fPayload);
+            }
+          });
+        }
+      }
+      pendingMerges = null;
+      pendingMergesBySfc = null;
+    }
+
+    private static final class PendingPayloadMerge {
+      private final ShardFacetCount sfc;
+      private final List<Object> vals = new ArrayList<>(4);
+      private long[] counts = new long[8]; // (preExistingCount, addCount) pairs, parallel to vals
+
+      private PendingPayloadMerge(ShardFacetCount sfc) {
+        this.sfc = sfc;
+      }
+
+      private void add(Object val, long preExistingCount, long addCount) {
+        int idx = vals.size() << 1;
+        if (idx + 1 >= counts.length) {
+          counts = Arrays.copyOf(counts, counts.length << 1);
+        }
+        counts[idx] = preExistingCount;
+        counts[idx + 1] = addCount;
+        vals.add(val);
+      }
+
+      private void merge(FacetPayload fPayload) {
+        for (int i = 0; i < vals.size(); i++) {
+          sfc.val = fPayload.mergePayload(sfc.val, vals.get(i), counts[i << 1], counts[(i << 1) + 1]);
+        }
+      }
+    }
+
     private void finish() {
       if (termsMetadata != null) {
         for (TermMetadataEntry tme : termsMetadata.values()) {
@@ -19,9 +19,18 @@ package org.apache.solr.request;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.PostingsEnum;
@@ -31,6 +40,7 @@ import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRefBuilder;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.handler.component.FacetComponent.DistribFieldFacet.TermDocEntry;
 import org.apache.solr.handler.component.FacetComponent.ShardFacetCount;
@@ -45,6 +55,28 @@ import org.apache.solr.search.SolrIndexSearcher;
  */
 public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayload, K extends FacetKey<K>> {
 
+  /**
+   * Flags a window that was cut short because its deadline (see {@link Env#setDeadline(long)}) was exceeded
+   */
+  public static final String PARTIAL_KEY = "partial";
+
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  /**
+   * Deadline of the build executing on the current thread; mutable, so that tasks building extended
+   * values concurrently may be cut short when the enclosing build is abandoned.
+   */
+  private static final ThreadLocal<AtomicLong> DEADLINE = new ThreadLocal<>();
+
+  /**
+   * Returns true if a build executing on the current thread has exceeded its deadline. FacetPayload
+   * implementations may check this to cut short expensive per-entry work.
+   */
+  public static boolean deadlineExceeded() {
+    AtomicLong deadline = DEADLINE.get();
+    return deadline != null && System.currentTimeMillis() > deadline.get();
+  }
+
   public static <T extends FieldType & FacetPayload, K extends FacetKey<K>> NamedList<Object> build(Env<T, K> env, boolean doc) throws IOException {
     OuterIteratorFactory<T, K> outer = new DescendingFacetTermIteratorFactory(doc);
     InnerIteratorFactory<T, K> inner = new AscendingFacetTermIteratorFactory(doc);
@@ -57,28 +89,159 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       fri = inner.initialInstance(env, outer);
     }
     int size = 0;
-    do {
-      if (fri.init()) {
-        do {
-          if (fri.addEntry(entryBuilder, size)) {
-            size++;
-          }
-        } while (fri.hasNextEntry());
+    final long deadline = env.getDeadline();
+    boolean partial = false;
+    if (deadline != NO_DEADLINE) {
+      DEADLINE.set(new AtomicLong(deadline));
+    }
+    try {
+      do {
+        if (fri.init()) {
+          do {
+            if (fri.addEntry(entryBuilder, size)) {
+              size++;
+            }
+            if (deadline != NO_DEADLINE && System.currentTimeMillis() > deadline) {
+              // cooperative early termination; return the window built so far
+              partial = true;
+              break;
+            }
+          } while (fri.hasNextEntry());
+        }
+        actualOffset = fri.getActualOffset();
+        fri = partial ? null : fri.nextIterator(size);
+      } while (fri != null);
+    } finally {
+      if (deadline != NO_DEADLINE) {
+        DEADLINE.remove();
       }
-      actualOffset = fri.getActualOffset();
-      fri = fri.nextIterator(size);
-    } while (fri != null);
+    }
+    NamedList<Object> ret = drainToNamedList(entryBuilder);
+    ret = env.finalize(ret);
+    if (!partial && deadline != NO_DEADLINE && System.currentTimeMillis() > deadline) {
+      // extended values (possibly computed concurrently, in finalize) may have been cut short
+      partial = true;
+    }
     NamedList res = env.res;
     res.add("count", size);
     if (size > 0) {
       res.add("target_offset", actualOffset);
     }
-    NamedList<Object> ret = new NamedList<>(entryBuilder.toArray(new Entry[entryBuilder.size()]));
-    ret = env.finalize(ret);
+    if (partial) {
+      res.add(PARTIAL_KEY, true);
+    }
     res.add("terms", ret);
     return ret;
   }
+
+  /**
+   * Transfers entries from the specified deque into a new NamedList, draining the deque as it
+   * goes. This only avoids the intermediate Entry[] incurred by {@link NamedList#NamedList(Entry[])};
+   * windows are still materialized in full (they are not streamed to the response writer), so
+   * memory is bounded by facet.limit (see the facet component's targetMaxLimit) rather than here.
+   */
+  public static <V> NamedList<V> drainToNamedList(Deque<? extends Entry<String, ? extends V>> entries) {
+    NamedList<V> ret = new NamedList<>(entries.size());
+    Entry<String, ? extends V> e;
+    while ((e = entries.pollFirst()) != null) {
+      ret.add(e.getKey(), e.getValue());
+    }
+    return ret;
+  }
   
+  /**
+   * Builds the entry for a window placeholder
+   */
+  interface PendingEntryBuilder<P> {
+    Entry<String, Object> build(P pending) throws IOException;
+  }
+
+  /**
+   * Replaces placeholders of the specified type in the specified window with entries built on the
+   * specified executor, at most as many at a time as there are permits, and assembled in window
+   * order. If any build fails, remaining work is abandoned: tasks that have not yet started are
+   * cancelled (and never start), and running tasks observe an expired deadline (see
+   * {@link #deadlineExceeded()}).
+   */
+  static <P> void buildPendingEntries(NamedList<Object> ret, Class<P> placeholderType, PendingEntryBuilder<P> builder,
+      Executor executor, Semaphore permits, long deadlineInit) {
+    // shared by all tasks for this window; set to a past time to cut short running tasks on failure
+    AtomicLong deadline = new AtomicLong(deadlineInit);
+    List<Future<Entry<String, Object>>> pending = new ArrayList<>(ret.size());
+    boolean success = false;
+    try {
+      for (int i = 0; i < ret.size(); i++) {
+        Object val = ret.getVal(i);
+        pending.add(placeholderType.isInstance(val)
+            ? submitPending(placeholderType.cast(val), builder, executor, permits, deadline) : null);
+      }
+      for (int i = 0; i < ret.size(); i++) {
+        Future<Entry<String, Object>> f = pending.get(i);
+        if (f != null) {
+          Entry<String, Object> entry = f.get();
+          ret.setName(i, entry.getKey());
+          ret.setVal(i, entry.getValue());
+        }
+      }
+      success = true;
+    } catch (InterruptedException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Error while building extended facet values: InterruptedException", e);
+    } catch (ExecutionException ee) {
+      Throwable e = ee.getCause();//unwrap
+      if (e instanceof RuntimeException) {
+        throw (RuntimeException) e;
+      }
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Error while building extended facet values: " + e.toString(), e);
+    } finally {
+      if (!success) {
+        // abandon remaining work: running tasks observe the expired deadline, queued tasks never start
+        deadline.set(Long.MIN_VALUE);
+        for (Future<?> f : pending) {
+          if (f != null) {
+            f.cancel(false);
+          }
+        }
+      }
+    }
+  }
+
+  private static <P> Future<Entry<String, Object>> submitPending(P pending, PendingEntryBuilder<P> builder,
+      Executor executor, Semaphore permits, AtomicLong deadline) throws InterruptedException {
+    final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    Callable<Entry<String, Object>> callable = () -> {
+      DEADLINE.set(deadline);
+      if (requestInfo != null) {
+        // fresh instance (no close hooks), so clearing it does not affect the enclosing request
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(requestInfo.getReq(), requestInfo.getRsp()));
+      }
+      try {
+        return builder.build(pending);
+      } finally {
+        if (requestInfo != null) {
+          SolrRequestInfo.clearRequestInfo();
+        }
+        DEADLINE.remove();
+      }
+    };
+    RunnableFuture<Entry<String, Object>> runnableFuture = new FutureTask<Entry<String, Object>>(callable) {
+      @Override
+      protected void done() {
+        // on completion or cancellation
+        permits.release();
+      }
+    };
+    permits.acquire(); //may block and/or interrupt
+    try {
+      executor.execute(runnableFuture); //releases permit when done
+    } catch (RuntimeException ex) {
+      permits.release();
+      throw ex;
+    }
+    return runnableFuture;
+  }
+
   public static interface OuterIteratorFactory<T extends FieldType & FacetPayload, K extends FacetKey<K>> {
      FacetResultIterator<T> initialInstance(Env<T, K> env, InnerIteratorFactory<T, K> inner, OuterIteratorFactory<T, K> outer) throws IOException;
      FacetResultIterator<T> finalInstance(K startIndex, int actualOffsetInit, int initialSize, Env<T, K> env) throws IOException;
@@ -546,6 +709,7 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     public final T ft;
     public final String ftDelim;
     public final NamedList res;
+    private long deadline = NO_DEADLINE;
 
     public Env(int offset, int limit, int targetIdx, int mincount, String fieldName, T ft, NamedList res) {
       this.offset = offset;
@@ -578,6 +742,18 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       return ret;
     }
 
+    /**
+     * Sets the absolute time (in the {@link System#currentTimeMillis()} timebase) after which the
+     * build should terminate early, returning a window flagged as partial.
+     */
+    public void setDeadline(long deadline) {
+      this.deadline = deadline;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
   }
   
   public static class DistribDocEnv<T extends FieldType & FacetPayload> extends DistribEnv<T> {
@@ -613,7 +789,7 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
         NamedList<Object> termEntry = (NamedList<Object>)ret.getVal(i);
         int docsIdx = termEntry.size() - 1;
         Deque<Entry<String, SolrDocument>> docDeque = (Deque<Entry<String, SolrDocument>>)termEntry.getVal(docsIdx);
-        NamedList<SolrDocument> docsExternal = new NamedList(docDeque.toArray(new Entry[docDeque.size()]));
+        NamedList<SolrDocument> docsExternal = drainToNamedList(docDeque);
         termEntry.setVal(docsIdx, docsExternal);
       }
       return ret;
@@ -719,6 +895,7 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
     protected BytesRef currentTermBytes;
     protected String currentTerm;
     protected Term currentFieldTerm;
+    protected ExtendedEntryCache entryCache;
     
     public LocalEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, int nTerms, Predicate<BytesRef> termFilter,
         int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
@@ -767,6 +944,21 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       currentFieldTerm = new Term(fieldName, currentTermBytes);
       return true;
     }
+
+    /**
+     * @param entryCache per-searcher cache of extended entries for this request's DocSet; null disables caching
+     */
+    public void setEntryCache(ExtendedEntryCache entryCache) {
+      this.entryCache = entryCache;
+    }
+
+    protected final Entry<String, Object> buildExtendedEntry(String term, long count, Term fieldTerm) throws IOException {
+      if (entryCache == null) {
+        return ft.addEntry(term, count, fieldTerm, leaves);
+      } else {
+        return entryCache.addEntry(ft, term, count, fieldTerm, leaves);
+      }
+    }
   }
     
   public static abstract class BaseLocalTermEnv<T extends FieldType & FacetPayload, K extends FacetKey<K>> extends LocalEnv<T, K> {
@@ -815,6 +1007,8 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
   public static final class LocalTermEnv<T extends FieldType & FacetPayload> extends BaseLocalTermEnv<T, SimpleTermIndexKey> {
 
     private SimpleTermIndexKey facetKey;
+    private Executor extendExecutor;
+    private Semaphore extendPermits; // non-null if extended values are built concurrently
 
     public LocalTermEnv(int offset, int limit, int startTermIndex, int adjust, int targetIdx, int nTerms, Predicate<BytesRef> termFilter,
         int mincount, int[] counts, CharsRefBuilder charsRef, boolean extend, SortedSetDocValues si,
@@ -851,14 +1045,61 @@ public class BidirectionalFacetResponseBuilder<T extends FieldType & FacetPayloa
       Entry<String, Object> entry;
       if (!extend) {
         entry = new SimpleImmutableEntry<>(currentTerm, currentTermCount);
+      } else if (extendPermits != null) {
+        // placeholder; built by finalize only if the term survives in the window
+        entry = new SimpleImmutableEntry<>(currentTerm, new PendingEntry(currentTerm, currentTermCount,
+            new Term(fieldName, BytesRef.deepCopyOf(currentTermBytes))));
       } else {
-        if ((entry = ft.addEntry(currentTerm, currentTermCount, currentFieldTerm, leaves)) == null) {
-          entry = new SimpleImmutableEntry<>(currentTerm, currentTermCount);
-        }
+        entry = buildEntry(currentTerm, currentTermCount, currentFieldTerm);
       }
       limitMinder.addEntry(entry, entryBuilder);
     }
 
+    /**
+     * Enables concurrent building of extended values for window terms. The window is determined
+     * by counts alone; once it is complete, extended values are built concurrently for the
+     * surviving terms, and assembled in window order.
+     * @param executor shared (bounded) executor on which extended values are built; null builds serially
+     * @param extendThreads maximum number of concurrent tasks for this window (already clamped to the
+     * executor's per-request limit); 0 builds serially
+     */
+    public void setExtendThreads(Executor executor, int extendThreads) {
+      if (extend && executor != null && extendThreads > 0) {
+        extendExecutor = executor;
+        extendPermits = new Semaphore(extendThreads);
+      }
+    }
+
+    private Entry<String, Object> buildEntry(String term, long count, Term fieldTerm) throws IOException {
+      Entry<String, Object> entry = buildExtendedEntry(term, count, fieldTerm);
+      return entry != null ? entry : new SimpleImmutableEntry<>(term, count);
+    }
+
+    /**
+     * Window term whose extended value has yet to be built
+     */
+    private static final class PendingEntry {
+      private final String term;
+      private final long count;
+      private final Term fieldTerm;
+
+      private PendingEntry(String term, long count, Term fieldTerm) {
+        this.term = term;
+        this.count = count;
+        this.fieldTerm = fieldTerm;
+      }
+    }
+
+    @Override
+    public NamedList<Object> finalize(NamedList<Object> ret) {
+      ret = super.finalize(ret);
+      if (extendPermits != null) {
+        buildPendingEntries(ret, PendingEntry.class, (pending) -> buildEntry(pending.term, pending.count, pending.fieldTerm),
+            extendExecutor, extendPermits, getDeadline());
+      }
+      return ret;
+    }
+
     @Override
     public SimpleTermIndexKey targetKey() throws IOException {
       return new SimpleTermIndexKey(getTargetKeyIndex());
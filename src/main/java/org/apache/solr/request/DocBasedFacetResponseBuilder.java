@@ -258,9 +258,15 @@ public class DocBasedFacetResponseBuilder {
         docDeque.add(new SimpleImmutableEntry<>(docIdStr, doc));
         NamedList<Object> termEntry = new NamedList<>(4);
         if (extend) {
-          Entry<String, Object> entry = ft.addEntry(currentTerm, currentTermCount, currentFieldTerm, leaves);
+          Entry<String, Object> entry = buildExtendedEntry(currentTerm, currentTermCount, currentFieldTerm);
           if (entry != null) {
-            termEntry.add("termMetadata", entry.getValue());
+            Object val = entry.getValue();
+            Object external;
+            if (val instanceof byte[] && (external = ft.updateValueExternalRepresentation(val)) != null) {
+              // cached compact form; termMetadata is not reached by the response's representation passes
+              val = external;
+            }
+            termEntry.add("termMetadata", val);
           }
         }
         termEntry.add("docs", docDeque);
@@ -276,7 +282,7 @@ public class DocBasedFacetResponseBuilder {
         NamedList<Object> termEntry = (NamedList<Object>)ret.getVal(i);
         int docsIdx = termEntry.size() - 1;
         Deque<Entry<String, SolrDocument>> docDeque = (Deque<Entry<String, SolrDocument>>)termEntry.getVal(docsIdx);
-        NamedList<SolrDocument> docsExternal = new NamedList(docDeque.toArray(new Entry[docDeque.size()]));
+        NamedList<SolrDocument> docsExternal = BidirectionalFacetResponseBuilder.drainToNamedList(docDeque);
         termEntry.setVal(docsIdx, docsExternal);
       }
       return ret;
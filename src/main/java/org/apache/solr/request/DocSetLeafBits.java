@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.search.DocSet;
+
+/**
+ * Per-leaf view of a top-level DocSet, for filtering {@link FacetPayload} postings scans without
+ * materializing a per-leaf bitset. Consumers iterating postings for sparse sets may prefer to
+ * leapfrog with {@link #iterator()} rather than test each posting via {@link #get(int)}.
+ *
+ * @author magibney
+ */
+public final class DocSetLeafBits implements Bits {
+
+  private final DocSet docs;
+  private final LeafReaderContext context;
+
+  public DocSetLeafBits(DocSet docs, LeafReaderContext context) {
+    this.docs = docs;
+    this.context = context;
+  }
+
+  @Override
+  public boolean get(int index) {
+    return docs.exists(context.docBase + index);
+  }
+
+  @Override
+  public int length() {
+    return context.reader().maxDoc();
+  }
+
+  /**
+   * Returns a new iterator over (leaf-relative) docs of the set in this leaf, or null if there are none.
+   */
+  public DocIdSetIterator iterator() throws IOException {
+    DocIdSet dis = docs.getTopFilter().getDocIdSet(context, null);
+    return dis == null ? null : dis.iterator();
+  }
+
+}
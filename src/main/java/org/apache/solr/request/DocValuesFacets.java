@@ -40,12 +40,11 @@ import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.CharsRefBuilder;
-import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.LongValues;
 import org.apache.lucene.util.UnicodeUtil;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder.LocalEnv;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.LocalTermEnv;
 import org.apache.solr.request.DocBasedFacetResponseBuilder.LocalDocEnv;
 import org.apache.solr.schema.FieldType;
@@ -71,59 +70,12 @@ import org.apache.solr.util.LongPriorityQueue;
 public class DocValuesFacets {
   private DocValuesFacets() {}
   
-  private static class BitsBuilderDocIdSetIterator extends DocIdSetIterator {
-
-    private final DocIdSetIterator backing;
-    private final FixedBitSet bits;
-    private boolean finished = false;
-
-    public BitsBuilderDocIdSetIterator(DocIdSetIterator backing, FixedBitSet bits) {
-      this.backing = backing;
-      this.bits = bits;
-    }
-    
-    public Bits getBits() {
-      if (!finished) {
-        throw new IllegalStateException();
-      } else {
-        return bits;
-      }
-    }
-    
-    @Override
-    public int docID() {
-      return backing.docID();
-    }
-
-    @Override
-    public int nextDoc() throws IOException {
-      int ret = backing.nextDoc();
-      if (ret != DocIdSetIterator.NO_MORE_DOCS) {
-        bits.set(ret);
-      } else {
-        finished = true;
-      }
-      return ret;
-    }
-
-    @Override
-    public int advance(int target) throws IOException {
-      throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public long cost() {
-      return backing.cost();
-    }
-    
-  }
-  
-  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, String contains, boolean ignoreCase, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, Set<String> fl) throws IOException {
+  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, String contains, boolean ignoreCase, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, boolean compact, long deadline, ExtendedFacetExecutor extendExecutor, int extendThreads, boolean refCounts, Set<String> fl) throws IOException {
     final Predicate<BytesRef> termFilter = new SubstringBytesRefFilter(contains, ignoreCase);
-    return getCounts(searcher, docs, fieldName, offset, limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, target, targetDoc, external, fl);
+    return getCounts(searcher, docs, fieldName, offset, limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, target, targetDoc, external, compact, deadline, extendExecutor, extendThreads, refCounts, fl);
   }
   
-  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, Predicate<BytesRef> termFilter, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, Set<String> fl) throws IOException {
+  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix, Predicate<BytesRef> termFilter, FacetDebugInfo fdebug, boolean extend, BytesRef target, String targetDoc, boolean external, boolean compact, long deadline, ExtendedFacetExecutor extendExecutor, int extendThreads, boolean refCounts, Set<String> fl) throws IOException {
     SchemaField schemaField = searcher.getSchema().getField(fieldName);
     FieldType ft = schemaField.getType();
     NamedList<Integer> res = new NamedList<>();
@@ -190,6 +142,9 @@ public class DocValuesFacets {
 
       Filter filter = docs.getTopFilter();
       List<Entry<LeafReader, Bits>> tmp = extend ? new ArrayList<>() : null;
+      // for match-all, extended entries are filtered by leaf liveDocs directly (which also allows
+      // FacetPayload implementations to recognize, and optimize for, the unfiltered case)
+      final boolean matchAll = extend && docs.size() == searcher.numDocs();
       List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
       for (int subIndex = 0; subIndex < leaves.size(); subIndex++) {
         LeafReaderContext leaf = leaves.get(subIndex);
@@ -199,11 +154,12 @@ public class DocValuesFacets {
           disi = dis.iterator();
         }
         if (disi != null) {
-          if (extend) {
+          if (matchAll) {
             LeafReader reader = leaf.reader();
-            FixedBitSet bits = new FixedBitSet(reader.maxDoc() + 1);
-            disi = new BitsBuilderDocIdSetIterator(disi, bits);
-            tmp.add(new SimpleImmutableEntry<>(reader, bits));
+            tmp.add(new SimpleImmutableEntry<>(reader, reader.getLiveDocs()));
+          } else if (extend) {
+            // filter extended entries by the DocSet directly (no per-leaf bitset)
+            tmp.add(new SimpleImmutableEntry<>(leaf.reader(), new DocSetLeafBits(docs, leaf)));
           }
           if (multiValued) {
             SortedSetDocValues sub = leaf.reader().getSortedSetDocValues(fieldName);
@@ -318,7 +274,7 @@ public class DocValuesFacets {
         }
         } else {
           int targetIdx = (int)si.lookupTerm(target);
-          Env env;
+          LocalEnv env;
           if (targetDoc != null) {
             if (targetIdx < 0) {
               targetDoc = "";
@@ -326,23 +282,74 @@ public class DocValuesFacets {
             env = new LocalDocEnv(offset, limit, startTermIndex, adjust, targetIdx, targetDoc, nTerms, termFilter,
                 mincount, counts, charsRef, extend, si, searcher, docs, tmp, fieldName, ft, res, fl);
           } else {
-            env = new LocalTermEnv(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter,
+            LocalTermEnv termEnv = new LocalTermEnv(offset, limit, startTermIndex, adjust, targetIdx, nTerms, termFilter,
                 mincount, counts, charsRef, extend, si, searcher, tmp, fieldName, ft, res);
+            termEnv.setExtendThreads(extendExecutor, extendThreads);
+            env = termEnv;
+          }
+          if (extend) {
+            env.setEntryCache(ExtendedEntryCache.forRequest(searcher, docs, matchAll));
           }
+          env.setDeadline(deadline);
           termVals = BidirectionalFacetResponseBuilder.build(env, targetDoc != null);
         }
       }
+
+      if (extend && refCounts && targetDoc == null && ft instanceof TermReferences) {
+        resolveReferenceCounts((TermReferences) ft, termVals, fieldName, si, counts, startTermIndex, nTerms);
+      }
     }
 
     if (ft instanceof MultiSerializable && external) {
       ((MultiSerializable)ft).updateExternalRepresentation(termVals);
+    } else if (compact && extend) {
+      updateCompactRepresentation(termVals, (FacetPayload)ft);
+    } else if (extend) {
+      // values served from the extended entry cache are held in compact form
+      expandCompactRepresentation(termVals, (FacetPayload)ft);
     }
 
     return finalize(res, searcher, schemaField, docs, missingCount, missing);
   }
 
+  /**
+   * Resolves counts for terms referenced by extended values directly from the computed counts array
+   */
+  private static void resolveReferenceCounts(TermReferences tr, NamedList<Object> termVals, String fieldName,
+      SortedSetDocValues si, int[] counts, int startTermIndex, int nTerms) throws IOException {
+    tr.resolveReferenceCounts(termVals, fieldName, (indexedTerm) -> {
+      long ord = si.lookupTerm(indexedTerm);
+      long index = ord - startTermIndex;
+      if (ord < 0 || ord < startTermIndex || index >= nTerms) {
+        // absent, or outside the counted range (e.g., facet.prefix)
+        return -1;
+      }
+      return counts[(int) index];
+    });
+  }
+
   private static enum Provisional { NEVER, PROVISIONAL, SATISFIED }
 
+  static void updateCompactRepresentation(NamedList<Object> termVals, FacetPayload fp) {
+    for (int i = 0; i < termVals.size(); i++) {
+      Object val = termVals.getVal(i);
+      Object updatedVal;
+      if (!(val instanceof Number) && (updatedVal = fp.updateValueCompactRepresentation(val)) != null) {
+        termVals.setVal(i, updatedVal);
+      }
+    }
+  }
+
+  static void expandCompactRepresentation(NamedList<Object> termVals, FacetPayload fp) {
+    for (int i = 0; i < termVals.size(); i++) {
+      Object val = termVals.getVal(i);
+      Object updatedVal;
+      if (!(val instanceof Number) && !(val instanceof NamedList) && (updatedVal = fp.updateValueExternalRepresentation(val)) != null) {
+        termVals.setVal(i, updatedVal);
+      }
+    }
+  }
+
   private static void addEntry(NamedList lst, String name, Object val) {
     lst.add(name, val);
   }
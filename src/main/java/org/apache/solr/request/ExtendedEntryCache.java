@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Request-scoped view of an optional per-searcher user cache of extended facet entries, keyed by
+ * field, indexed term, a signature of the DocSet that filtered the entry, the request params that
+ * affect extended values, and the version of the compact format. Values are held in the
+ * {@link FacetPayload}'s compact form, so the cache may be bounded by memory, e.g.:
+ * <pre>
+ * &lt;cache name="extendedTermCache" class="solr.LRUCache" maxRamMB="64" autowarmCount="256"
+ *        regenerator="org.apache.solr.request.ExtendedEntryCache$Regenerator"/&gt;
+ * </pre>
+ * Only unfiltered (match-all) entries built with default request params can be regenerated when
+ * autowarming a new searcher; other entries are dropped on commit. Cached values are always as
+ * built by {@link FacetPayload#addEntry(String, long, Term, List)}: target counts
+ * ({@link FacetParams#FACET_REFS_COUNTS}) are resolved afterwards, on the response.
+ *
+ * @author magibney
+ */
+public final class ExtendedEntryCache {
+
+  public static final String CACHE_NAME = "extendedTermCache";
+
+  private static final long MIX = 0x9E3779B97F4A7C15L;
+
+  private final SolrCache<Key, Value> cache;
+  private final boolean matchAll;
+  private final long signature;
+  private final String variant;
+
+  private ExtendedEntryCache(SolrCache<Key, Value> cache, boolean matchAll, long signature, String variant) {
+    this.cache = cache;
+    this.matchAll = matchAll;
+    this.signature = signature;
+    this.variant = variant;
+  }
+
+  /**
+   * Returns a cache view for entries filtered by the specified DocSet, or null if no
+   * {@link #CACHE_NAME} cache is configured for the searcher.
+   */
+  @SuppressWarnings("unchecked")
+  public static ExtendedEntryCache forRequest(SolrIndexSearcher searcher, DocSet docs, boolean matchAll) {
+    SolrCache<Key, Value> cache = searcher.getCache(CACHE_NAME);
+    if (cache == null) {
+      return null;
+    }
+    return new ExtendedEntryCache(cache, matchAll, matchAll ? 0 : signature(docs), currentVariant());
+  }
+
+  /**
+   * Returns the cached entry (in compact form) for the specified term if present; otherwise builds
+   * the entry via {@link FacetPayload#addEntry(String, long, Term, List)} and caches its compact
+   * form. Entries built after the request deadline has passed may be incomplete, and are not cached.
+   */
+  @SuppressWarnings("unchecked")
+  public Entry<String, Object> addEntry(FacetPayload ft, String termKey, long count, Term t,
+      List<Entry<LeafReader, Bits>> leaves) throws IOException {
+    Key key = new Key(t.field(), t.bytes(), matchAll, signature, variant, ft.compactFormatVersion());
+    Value cached = cache.get(key);
+    if (cached != null) {
+      // left in compact form; converted once by the response's external/compact representation pass
+      return new SimpleImmutableEntry<>(termKey, cached.compact);
+    }
+    Entry<String, Object> entry = ft.addEntry(termKey, count, t, leaves);
+    if (entry != null && !BidirectionalFacetResponseBuilder.deadlineExceeded()) {
+      Object compact = ft.updateValueCompactRepresentation(entry.getValue());
+      if (compact instanceof byte[]) {
+        cache.put(key.deepCopy(), new Value((byte[]) compact));
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Request params that affect extended values (and thus must distinguish cache keys); the empty
+   * string for default params. Target counts are resolved on the response, after values are built
+   * or fetched from the cache, so cached values are count-free; requests that resolve counts are
+   * keyed apart nonetheless, so that counted values can never be served to requests that did not
+   * ask for them.
+   */
+  static String currentVariant() {
+    SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+    if (info == null) {
+      return "";
+    }
+    SolrParams params = info.getReq().getParams();
+    StringBuilder sb = new StringBuilder();
+    int refsLimit = params.getInt(FacetParams.FACET_REFS_LIMIT, -1);
+    if (refsLimit >= 0) {
+      sb.append(refsLimit).append(':').append(params.get(FacetParams.FACET_REFS_SORT, FacetParams.FACET_SORT_COUNT));
+    }
+    if (params.getBool(FacetParams.FACET_REFS_COUNTS, false)) {
+      sb.append("+counts");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * 64-bit content signature of a DocSet; together with the key's field and term, collisions
+   * are vanishingly unlikely.
+   */
+  static long signature(DocSet docs) {
+    long h = docs.size();
+    if (docs instanceof BitDocSet) {
+      for (long word : ((BitDocSet) docs).getBits().getBits()) {
+        h = (h ^ word) * MIX;
+      }
+    } else {
+      DocIterator iter = docs.iterator();
+      while (iter.hasNext()) {
+        h = (h ^ iter.nextDoc()) * MIX;
+      }
+    }
+    return h ^ (h >>> 32);
+  }
+
+  public static final class Key implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Key.class)
+        + RamUsageEstimator.shallowSizeOfInstance(BytesRef.class);
+
+    private final String field;
+    private final BytesRef term;
+    private final boolean matchAll;
+    private final long signature;
+    private final String variant;
+    private final int format;
+    private final int hash;
+
+    private Key(String field, BytesRef term, boolean matchAll, long signature, String variant, int format) {
+      this.field = field;
+      this.term = term;
+      this.matchAll = matchAll;
+      this.signature = signature;
+      this.variant = variant;
+      this.format = format;
+      int h = field.hashCode();
+      h = 31 * h + term.hashCode();
+      h = 31 * h + Long.hashCode(signature);
+      h = 31 * h + variant.hashCode();
+      h = 31 * h + format;
+      this.hash = matchAll ? ~h : h;
+    }
+
+    private Key deepCopy() {
+      return new Key(field, BytesRef.deepCopyOf(term), matchAll, signature, variant, format);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && matchAll == other.matchAll && signature == other.signature
+          && format == other.format && term.bytesEquals(other.term) && field.equals(other.field) && variant.equals(other.variant);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(term.bytes)
+          + 2 * (field.length() + variant.length());
+    }
+
+    @Override
+    public String toString() {
+      return field + ':' + term.utf8ToString() + (matchAll ? "" : "/" + Long.toHexString(signature)) + variant + "#" + format;
+    }
+  }
+
+  public static final class Value implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(Value.class);
+
+    private final byte[] compact;
+
+    private Value(byte[] compact) {
+      this.compact = compact;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(compact);
+    }
+  }
+
+  /**
+   * Autowarms unfiltered entries (built with default request params) against the new searcher.
+   * Autowarming runs with no {@link SolrRequestInfo}, so values are rebuilt as for the empty
+   * (default) variant; this is correct only because entries of any other variant are skipped.
+   */
+  public static final class Regenerator implements CacheRegenerator {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+        Object oldKey, Object oldVal) throws IOException {
+      Key key = (Key) oldKey;
+      if (!key.matchAll || !key.variant.isEmpty()) {
+        return true;
+      }
+      SchemaField sf = newSearcher.getSchema().getFieldOrNull(key.field);
+      if (sf == null || !(sf.getType() instanceof FacetPayload)) {
+        return true;
+      }
+      FieldType ft = sf.getType();
+      FacetPayload fp = (FacetPayload) ft;
+      if (fp.compactFormatVersion() != key.format) {
+        return true; // written by a different payload handler (schema changed); rebuilding would mislabel it
+      }
+      Term t = new Term(key.field, key.term);
+      int count = newSearcher.numDocs(new TermQuery(t), newSearcher.getLiveDocs());
+      if (count == 0) {
+        return true;
+      }
+      List<LeafReaderContext> contexts = newSearcher.getTopReaderContext().leaves();
+      List<Entry<LeafReader, Bits>> leaves = new ArrayList<>(contexts.size());
+      for (LeafReaderContext context : contexts) {
+        LeafReader reader = context.reader();
+        leaves.add(new SimpleImmutableEntry<>(reader, reader.getLiveDocs()));
+      }
+      CharsRefBuilder charsRef = new CharsRefBuilder();
+      ft.indexedToReadable(key.term, charsRef);
+      Entry<String, Object> entry = fp.addEntry(charsRef.toString(), count, t, leaves);
+      if (entry != null) {
+        Object compact = fp.updateValueCompactRepresentation(entry.getValue());
+        if (compact instanceof byte[]) {
+          newCache.put(key, new Value((byte[]) compact));
+        }
+      }
+      return true;
+    }
+  }
+}
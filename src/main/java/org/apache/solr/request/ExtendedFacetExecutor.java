@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+/**
+ * Bounded pool shared by all work that extended faceting may run concurrently for a request
+ * (building extended values for window terms, and merging extended shard values on the
+ * coordinator). The pool is owned by the facet component, and configured via its init args in
+ * <code>solrconfig.xml</code>:
+ * <pre>
+ * &lt;searchComponent name="facet" class="org.apache.solr.handler.component.FacetComponent"&gt;
+ *   &lt;int name="extendPoolSize"&gt;8&lt;/int&gt;
+ *   &lt;int name="extendMaxThreadsPerRequest"&gt;4&lt;/int&gt;
+ * &lt;/searchComponent&gt;
+ * </pre>
+ * Thread counts requested by clients ({@link org.apache.solr.common.params.FacetParams#FACET_EXTEND_THREADS},
+ * {@link org.apache.solr.common.params.FacetParams#FACET_EXTEND_MERGE_THREADS}) are clamped to
+ * <code>extendMaxThreadsPerRequest</code>; both settings default to the number of available
+ * processors. Tasks beyond the pool size are queued; no task submitted to this pool waits on
+ * another task submitted to it, so queueing cannot deadlock. (Stock per-field faceting threads,
+ * {@link org.apache.solr.common.params.FacetParams#FACET_THREADS}, run on a separate pool: they wait
+ * on extended value builds, so sharing this pool could deadlock.)
+ *
+ * @author magibney
+ */
+public final class ExtendedFacetExecutor implements Executor {
+
+  /**
+   * Request context key under which the facet component exposes its executor
+   */
+  public static final String CONTEXT_KEY = ExtendedFacetExecutor.class.getName();
+
+  public static final String POOL_SIZE_ARG = "extendPoolSize";
+  public static final String MAX_THREADS_PER_REQUEST_ARG = "extendMaxThreadsPerRequest";
+
+  private final ExecutorService executor;
+  private final int poolSize;
+  private final int maxThreadsPerRequest;
+
+  public ExtendedFacetExecutor(int poolSize, int maxThreadsPerRequest) {
+    if (poolSize < 1 || maxThreadsPerRequest < 1) {
+      throw new SolrException(ErrorCode.SERVER_ERROR, POOL_SIZE_ARG + " and " + MAX_THREADS_PER_REQUEST_ARG
+          + " must be positive; found " + poolSize + ", " + maxThreadsPerRequest);
+    }
+    this.poolSize = poolSize;
+    this.maxThreadsPerRequest = maxThreadsPerRequest;
+    ThreadPoolExecutor tpe = new ExecutorUtil.MDCAwareThreadPoolExecutor(
+        poolSize,
+        poolSize,
+        10, TimeUnit.SECONDS, // terminate idle threads after 10 sec
+        new LinkedBlockingQueue<Runnable>(),
+        new DefaultSolrThreadFactory("facetExtendExecutor"));
+    tpe.allowCoreThreadTimeOut(true);
+    this.executor = tpe;
+  }
+
+  /**
+   * Builds an executor from component init args; see class javadoc
+   */
+  public static ExtendedFacetExecutor fromArgs(NamedList args) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int poolSize = intArg(args, POOL_SIZE_ARG, processors);
+    int maxThreadsPerRequest = intArg(args, MAX_THREADS_PER_REQUEST_ARG, poolSize);
+    return new ExtendedFacetExecutor(poolSize, maxThreadsPerRequest);
+  }
+
+  private static int intArg(NamedList args, String name, int defaultValue) {
+    Object val = args == null ? null : args.get(name);
+    if (val == null) {
+      return defaultValue;
+    } else if (val instanceof Number) {
+      return ((Number) val).intValue();
+    } else {
+      try {
+        return Integer.parseInt(val.toString().trim());
+      } catch (NumberFormatException ex) {
+        throw new SolrException(ErrorCode.SERVER_ERROR, "invalid " + name + ": " + val, ex);
+      }
+    }
+  }
+
+  /**
+   * Returns the executor exposed by the facet component for the specified request, or null if
+   * none is available (in which case callers should run serially).
+   */
+  public static ExtendedFacetExecutor forRequest(SolrQueryRequest req) {
+    return req == null ? null : (ExtendedFacetExecutor) req.getContext().get(CONTEXT_KEY);
+  }
+
+  /**
+   * Clamps a client-requested number of concurrent tasks: 0 (serial) is returned as-is; negative
+   * values (formerly "unbounded") and values above the configured per-request limit resolve to the limit.
+   */
+  public int threadsFor(int requested) {
+    if (requested == 0) {
+      return 0;
+    }
+    return requested < 0 ? maxThreadsPerRequest : Math.min(requested, maxThreadsPerRequest);
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  public int getMaxThreadsPerRequest() {
+    return maxThreadsPerRequest;
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    executor.execute(command);
+  }
+
+  public Future<?> submit(Runnable task) {
+    return executor.submit(task);
+  }
+
+  public void shutdown() {
+    ExecutorUtil.shutdownAndAwaitTermination(executor);
+  }
+}
@@ -33,5 +33,29 @@ public interface FacetPayload<T> {
   boolean addEntry(String termKey, long count, Term term, List<Entry<LeafReader, Bits>> leaves, NamedList<T> res) throws IOException;
   Entry<String, T> addEntry(String termKey, long count, Term term, List<Entry<LeafReader, Bits>> leaves) throws IOException;
   T mergePayload(T preExisting, T add, long preExistingCount, long addCount);
+  /**
+   * Merges the specified value into preExisting in place, for values shared by reference (e.g., term
+   * metadata shared across the document entries of a doc-centric response). Unlike
+   * {@link #mergePayload(Object, Object, long, long)}, which may return a different (e.g., more
+   * efficiently mergeable) representation, preExisting must reflect the merged result on return.
+   */
+  default void mergePayloadInPlace(T preExisting, T add, long preExistingCount, long addCount) {
+    mergePayload(preExisting, add, preExistingCount, addCount);
+  }
   Object updateValueExternalRepresentation(T internal);
+  /**
+   * Returns a compact representation of the specified value, suitable for transport
+   * from shard to coordinator; the compact form must be accepted by {@link #mergePayload(Object, Object, long, long)},
+   * {@link #extractCount(Object)}, and {@link #updateValueExternalRepresentation(Object)}.
+   * Returns null if no compact representation is supported.
+   */
+  Object updateValueCompactRepresentation(T internal);
+  /**
+   * Returns the version of the compact representation written by {@link #updateValueCompactRepresentation(Object)}
+   * for values that have not been post-processed (e.g., by reference count resolution); compact values
+   * retained across requests (e.g., cached) are only valid for the version that wrote them.
+   */
+  default int compactFormatVersion() {
+    return 0;
+  }
 }
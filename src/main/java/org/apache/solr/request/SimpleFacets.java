@@ -18,6 +18,7 @@ package org.apache.solr.request;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,6 +27,7 @@ import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -57,6 +59,7 @@ import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.grouping.AllGroupHeadsCollector;
 import org.apache.lucene.search.grouping.term.TermAllGroupsCollector;
 import org.apache.lucene.search.grouping.term.TermGroupFacetCollector;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.CharsRefBuilder;
@@ -67,6 +70,7 @@ import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.GroupParams;
 import org.apache.solr.common.params.RequiredSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ExecutorUtil;
 import org.apache.solr.common.util.NamedList;
@@ -581,8 +585,20 @@ public class SimpleFacets {
           break;
         case FC:
           boolean external = params.getBool("distrib", true);
+          // compact transport of extended values is only supported for term-centric shard requests
+          boolean compact = extend && !external && targetDoc == null && params.getFieldBool(field, FacetParams.FACET_EXTEND_COMPACT, false);
+          // timeAllowed bounds target window construction (including payload scans) cooperatively
+          long timeAllowed = params.getLong(CommonParams.TIME_ALLOWED, -1L);
+          long deadline = timeAllowed > 0 ? req.getStartTime() + timeAllowed : BidirectionalFacetResponseBuilder.NO_DEADLINE;
+          // concurrent extended value builds run on the facet component's shared, bounded executor
+          ExtendedFacetExecutor extendExecutor = extend ? ExtendedFacetExecutor.forRequest(req) : null;
+          int extendThreads = extendExecutor == null ? 0
+              : extendExecutor.threadsFor(params.getFieldInt(field, FacetParams.FACET_EXTEND_THREADS, 0));
+          // not on shards: a shard only sees targets referenced by its own window terms, so the
+          // coordinator counts the targets of the merged window on every shard instead
+          boolean refCounts = extend && params.getBool(FacetParams.FACET_REFS_COUNTS, false) && !params.getBool(ShardParams.IS_SHARD, false);
           Set<String> fl = rb.rsp.getReturnFields().getRequestedFieldNames();
-          counts = DocValuesFacets.getCounts(searcher, docs, field, offset,limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, targetBr, targetDoc, external, fl);
+          counts = DocValuesFacets.getCounts(searcher, docs, field, offset,limit, mincount, missing, sort, prefix, termFilter, fdebug, extend, targetBr, targetDoc, external, compact, deadline, extendExecutor, extendThreads, refCounts, fl);
           break;
         default:
           throw new AssertionError();
@@ -869,6 +885,9 @@ public class SimpleFacets {
   protected NamedList<Integer> getListedTermCounts(String field, final ParsedParams parsed, List<String> terms) throws IOException {
     SchemaField sf = searcher.getSchema().getField(field);
     FieldType ft = sf.getType();
+    if (ft instanceof FacetPayload && parsed.params.getFieldBool(field, FacetParams.FACET_EXTEND_LISTED, false)) {
+      return getListedTermEntries(field, parsed, terms, ft);
+    }
     NamedList<Integer> res = new NamedList<>();
     if (ft.isPointField()) {
       for (String term : terms) {
@@ -886,6 +905,46 @@ public class SimpleFacets {
   }
 
 
+  /**
+   * Like {@link #getListedTermCounts(String, ParsedParams, List)}, but returns extended (FacetPayload)
+   * values for the listed terms. This supports the second phase of deferred distributed extension
+   * (see {@link FacetParams#FACET_EXTEND_DEFERRED}), in which shards are asked for payload metadata
+   * only for terms in the final merged window.
+   */
+  private NamedList<Integer> getListedTermEntries(String field, final ParsedParams parsed, List<String> terms, FieldType ft) throws IOException {
+    final FacetPayload fp = (FacetPayload) ft;
+    final DocSet docs = parsed.docs;
+    List<LeafReaderContext> leafContexts = searcher.getTopReaderContext().leaves();
+    List<Entry<LeafReader, Bits>> leaves = new ArrayList<>(leafContexts.size());
+    for (LeafReaderContext ctx : leafContexts) {
+      leaves.add(new SimpleImmutableEntry<>(ctx.reader(), new DocSetLeafBits(docs, ctx)));
+    }
+    boolean compact = !parsed.params.getBool("distrib", true) && parsed.params.getFieldBool(field, FacetParams.FACET_EXTEND_COMPACT, false);
+    NamedList res = new NamedList<>();
+    BytesRefBuilder indexed = new BytesRefBuilder();
+    for (String term : terms) {
+      ft.readableToIndexed(term, indexed);
+      Term t = new Term(field, indexed.toBytesRef());
+      int count = searcher.numDocs(new TermQuery(t), docs);
+      Object val = count;
+      Entry<String, Object> entry;
+      if (count > 0 && (entry = fp.addEntry(term, count, t, leaves)) != null) {
+        val = entry.getValue();
+      }
+      res.add(term, val);
+    }
+    if (ft instanceof TermReferences && parsed.params.getBool(FacetParams.FACET_REFS_COUNTS, false)
+        && !parsed.params.getBool(ShardParams.IS_SHARD, false)) {
+      // no counts array for listed terms; count referenced terms directly
+      ((TermReferences) ft).resolveReferenceCounts(res, field,
+          (indexedTerm) -> searcher.numDocs(new TermQuery(new Term(field, BytesRef.deepCopyOf(indexedTerm))), docs));
+    }
+    if (compact) {
+      DocValuesFacets.updateCompactRepresentation(res, fp);
+    }
+    return res;
+  }
+
   /**
    * Returns a count of the documents in the set which do not have any 
    * terms for for the specified field.
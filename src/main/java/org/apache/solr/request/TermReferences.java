@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Implemented by {@link FacetPayload} field types whose extended values reference other terms
+ * of the same field, to report the facet counts of the referenced terms themselves.
+ *
+ * @author magibney
+ */
+public interface TermReferences {
+
+  /**
+   * Supplies the facet count for an indexed term
+   */
+  public static interface IndexedTermCounter {
+    /**
+     * @return the count, or a negative value if unknown
+     */
+    long count(BytesRef indexedTerm) throws IOException;
+  }
+
+  /**
+   * Resolves (in place) counts for terms referenced by extended values in the specified
+   * (internal-representation) term values. Each distinct referenced term should be looked up
+   * at most once per call.
+   */
+  void resolveReferenceCounts(NamedList<Object> termVals, String fieldName, IndexedTermCounter counter) throws IOException;
+
+}
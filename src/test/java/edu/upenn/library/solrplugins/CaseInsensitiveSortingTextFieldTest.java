@@ -0,0 +1,132 @@
+package edu.upenn.library.solrplugins;
+
+import edu.upenn.library.solrplugins.tokentype.TokenTypeJoinFilterFactory;
+import edu.upenn.library.solrplugins.tokentype.TokenTypeSplitFilterFactory;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.analysis.TokenizerChain;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class CaseInsensitiveSortingTextFieldTest {
+
+  private static final String FIELD = "xfacet";
+
+  @Test
+  public void testPlainTarget() {
+    assertEquals("Twain, Mark", CaseInsensitiveSortingTextField.plainTarget("  Twain, Mark "));
+    assertEquals("Twain, Mark", CaseInsensitiveSortingTextField.plainTarget(" \"Twain, Mark\" "));
+    assertEquals(null, CaseInsensitiveSortingTextField.plainTarget("\"Twain, \\\"Mark\\\"\""));
+    assertEquals(null, CaseInsensitiveSortingTextField.plainTarget("{\"raw\": \"Twain, Mark\"}"));
+    assertEquals(null, CaseInsensitiveSortingTextField.plainTarget("  "));
+  }
+
+  /**
+   * Plain-string targets analyzed by the derived target analyzer must normalize exactly as the
+   * equivalent JSON string target analyzed by the full query analyzer.
+   */
+  @Test
+  public void testTargetAnalyzerMatchesQueryAnalyzer() throws IOException {
+    CaseInsensitiveSortingTextField derived = newFieldType("auto", 0);
+    CaseInsensitiveSortingTextField query = newFieldType("query", 0);
+    String[] targets = new String[] {
+      "Twain, Mark",
+      "  Hegel, Georg Wilhelm Friedrich ",
+      "\"Twain, Mark\"",
+      " \"Ärger, Straße\" ",
+      "1984",
+      "Éluard, Paul"
+    };
+    for (String target : targets) {
+      String plain = CaseInsensitiveSortingTextField.plainTarget(target);
+      assertNotNull(target, plain);
+      String json = target.trim().charAt(0) == '"' ? target : '"' + plain + '"';
+      for (boolean strict : new boolean[] {true, false}) {
+        BytesRef expected = query.normalizeQueryTarget(json, strict, FIELD);
+        assertEquals(target + " (strict=" + strict + ")", expected, derived.normalizeQueryTarget(target, strict, FIELD));
+        assertEquals(target + " (strict=" + strict + ", appendExtraDelim)", query.normalizeQueryTarget(json, strict, FIELD, true),
+            derived.normalizeQueryTarget(target, strict, FIELD, true));
+      }
+    }
+  }
+
+  @Test
+  public void testTargetCacheHit() throws IOException {
+    CaseInsensitiveSortingTextField ft = newFieldType("auto", 16);
+    BytesRef first = ft.normalizeQueryTarget("Twain, Mark", false, FIELD);
+    BytesRef second = ft.normalizeQueryTarget("Twain, Mark", false, FIELD);
+    assertEquals(first, second);
+    NamedList<Object> stats = ft.getStatistics();
+    assertEquals(2L, stats.get("lookups"));
+    assertEquals(1L, stats.get("hits"));
+    assertEquals(1, stats.get("size"));
+    // target mode is part of the key
+    ft.normalizeQueryTarget("Twain, Mark", true, FIELD);
+    stats = ft.getStatistics();
+    assertEquals(3L, stats.get("lookups"));
+    assertEquals(1L, stats.get("hits"));
+    assertEquals(2, stats.get("size"));
+  }
+
+  @Test
+  public void testTargetCacheDisabled() throws IOException {
+    CaseInsensitiveSortingTextField ft = newFieldType("auto", 0);
+    BytesRef first = ft.normalizeQueryTarget("Twain, Mark", false, FIELD);
+    assertEquals(first, ft.normalizeQueryTarget("Twain, Mark", false, FIELD));
+    assertEquals(0, ft.getStatistics().size());
+  }
+
+  @Test
+  public void testTargetCacheReturnsCopies() throws IOException {
+    CaseInsensitiveSortingTextField ft = newFieldType("auto", 16);
+    BytesRef first = ft.normalizeQueryTarget("Twain, Mark", false, FIELD);
+    BytesRef expected = BytesRef.deepCopyOf(first);
+    // callers own (and may modify) returned instances
+    first.bytes[first.offset] ^= 0x7f;
+    first.length = 1;
+    BytesRef second = ft.normalizeQueryTarget("Twain, Mark", false, FIELD);
+    assertNotSame(first, second);
+    assertEquals(expected, second);
+    assertEquals(1L, ft.getStatistics().get("hits"));
+  }
+
+  static CaseInsensitiveSortingTextField newFieldType(String targetAnalyzer, int targetCacheSize) throws IOException {
+    CaseInsensitiveSortingTextField ft = new CaseInsensitiveSortingTextField();
+    ft.setQueryAnalyzer(queryAnalyzer());
+    Map<String, String> args = new HashMap<>();
+    args.put("targetAnalyzer", targetAnalyzer);
+    args.put("targetCacheSize", Integer.toString(targetCacheSize));
+    ft.initQueryTargets(args);
+    return ft;
+  }
+
+  /**
+   * Query analyzer as configured for JSON reference payload fields (see README)
+   */
+  private static Analyzer queryAnalyzer() throws IOException {
+    Map<String, String> splitArgs = new HashMap<>();
+    splitArgs.put("includeTypes", "filing");
+    splitArgs.put("outputType", "normalized");
+    splitArgs.put("_class", "org.apache.lucene.analysis.icu.ICUFoldingFilterFactory");
+    TokenTypeSplitFilterFactory split = new TokenTypeSplitFilterFactory(splitArgs);
+    split.inform(new ClasspathResourceLoader(CaseInsensitiveSortingTextFieldTest.class));
+    Map<String, String> joinArgs = new HashMap<>();
+    joinArgs.put("inputTypes", "normalized,filing,prefix");
+    joinArgs.put("outputType", "indexed");
+    joinArgs.put("typeForPayload", "normalized");
+    joinArgs.put("outputComponents", "true");
+    TokenTypeJoinFilterFactory join = new TokenTypeJoinFilterFactory(joinArgs);
+    return new TokenizerChain(new CharFilterFactory[0], new JsonReferencePayloadTokenizerFactory(new HashMap<>()),
+        new TokenFilterFactory[] {split, join});
+  }
+
+}
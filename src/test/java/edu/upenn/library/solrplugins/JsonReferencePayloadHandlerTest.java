@@ -1,6 +1,40 @@
 package edu.upenn.library.solrplugins;
 
+import edu.upenn.library.solrplugins.tokentype.ICUCollationKeyNormalizer;
+import edu.upenn.library.solrplugins.tokentype.ICUFoldingNormalizer;
+import edu.upenn.library.solrplugins.tokentype.SortKeyJoinFilter;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
@@ -8,7 +42,24 @@ public class JsonReferencePayloadHandlerTest {
 
   @Test
   public void testMergePayload() {
-    // build data for preExisting record
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+
+    Object merged = handler.mergePayload(hegelPreExisting(), hegelAdd(), 9L, 12L);
+    // term-centric merges stay in aggregate form; the response shape is built once
+    assertTrue(merged instanceof ReferenceAggregate);
+    assertHegelMerged((NamedList<Object>) handler.updateValueExternalRepresentation(merged));
+  }
+
+  @Test
+  public void testMergePayloadInPlace() {
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+
+    NamedList<Object> preExisting = hegelPreExisting();
+    handler.mergePayloadInPlace(preExisting, hegelAdd(), 9L, 12L);
+    assertHegelMerged(preExisting);
+  }
+
+  private static NamedList<Object> hegelPreExisting() {
 
     NamedList<Object> preGHegelStruct = new NamedList<>();
     preGHegelStruct.add("count", 2L);
@@ -35,8 +86,10 @@ public class JsonReferencePayloadHandlerTest {
     preExisting.add("count", 9L);
     preExisting.add("refs", preRefs);
     preExisting.add("self", preSelf);
+    return preExisting;
+  }
 
-    // build data for record to add/merge
+  private static NamedList<Object> hegelAdd() {
 
     NamedList<Object> addGHegelStruct = new NamedList<>();
     addGHegelStruct.add("count", 4L);
@@ -71,13 +124,10 @@ public class JsonReferencePayloadHandlerTest {
     add.add("count", 12L);
     add.add("refs", addRefs);
     add.add("self", addSelf);
+    return add;
+  }
 
-    // test merge
-
-    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
-
-    NamedList<Object> result = (NamedList<Object>) handler.mergePayload(preExisting, add, 9L, 12L);
-
+  private static void assertHegelMerged(NamedList<Object> result) {
     assertEquals(21L, result.get("count"));
 
     NamedList<Object> self = (NamedList<Object>) result.get("self");
@@ -114,4 +164,267 @@ public class JsonReferencePayloadHandlerTest {
     assertEquals("Hegel", seeAlso1.get("filing"));
   }
 
+  @Test
+  public void testMergeCompactPayload() {
+    NamedList<Object> preHegelStruct = new NamedList<>();
+    preHegelStruct.add("count", 2L);
+    preHegelStruct.add("filing", "Hegel");
+    preHegelStruct.add("prefix", "G. ");
+
+    NamedList<Object> preUseForNameStructs = new NamedList<>();
+    preUseForNameStructs.add("G. Hegel", preHegelStruct);
+
+    NamedList<Object> preRefs = new NamedList<>();
+    preRefs.add("use_for", preUseForNameStructs);
+
+    NamedList<Object> preSelf = new NamedList<>();
+    preSelf.add("count", 1L);
+    preSelf.add("filing", "Hegel");
+
+    NamedList<Object> preExisting = new NamedList<>();
+    preExisting.add("count", 3L);
+    preExisting.add("self", preSelf);
+    preExisting.add("refs", preRefs);
+
+    NamedList<Object> addHegelStruct = new NamedList<>();
+    addHegelStruct.add("count", 4L);
+    addHegelStruct.add("filing", "Hegel");
+    addHegelStruct.add("prefix", "G. ");
+
+    NamedList<Object> addSeeAlsoNameStructs = new NamedList<>();
+    addSeeAlsoNameStructs.add("G. Hegel", addHegelStruct);
+
+    NamedList<Object> addRefs = new NamedList<>();
+    addRefs.add("see_also", addSeeAlsoNameStructs);
+
+    NamedList<Object> add = new NamedList<>();
+    add.add("count", 4L);
+    add.add("refs", addRefs);
+
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+
+    Object compactPre = handler.updateValueCompactRepresentation(preExisting);
+    Object compactAdd = handler.updateValueCompactRepresentation(add);
+    assertEquals(3L, handler.extractCount(compactPre));
+    assertEquals(4L, handler.extractCount(compactAdd));
+
+    // round trip
+    assertEquals(preExisting, handler.updateValueExternalRepresentation(compactPre));
+
+    Object merged = handler.mergePayload(compactPre, compactAdd, 3L, 4L);
+    assertEquals(7L, handler.extractCount(merged));
+
+    NamedList<Object> result = (NamedList<Object>) handler.updateValueExternalRepresentation(merged);
+    assertEquals(7L, result.get("count"));
+
+    NamedList<Object> self = (NamedList<Object>) result.get("self");
+    assertEquals(1L, self.get("count"));
+    assertEquals("Hegel", self.get("filing"));
+
+    NamedList<Object> mergedRefs = (NamedList<Object>) result.get("refs");
+    NamedList<Object> useFor = (NamedList<Object>) ((NamedList<Object>) mergedRefs.get("use_for")).get("G. Hegel");
+    assertEquals(2L, useFor.get("count"));
+    NamedList<Object> seeAlso = (NamedList<Object>) ((NamedList<Object>) mergedRefs.get("see_also")).get("G. Hegel");
+    assertEquals(4L, seeAlso.get("count"));
+    assertEquals("G. ", seeAlso.get("prefix"));
+    assertEquals("Hegel", seeAlso.get("filing"));
+  }
+
+  @Test
+  public void testLimitRefs() {
+    ReferenceAggregate byCount = new ReferenceAggregate(10, "Hegel", null);
+    byCount.addRef("see_also", "c", "c", null, 1);
+    byCount.addRef("see_also", "a", "a", null, 3);
+    byCount.addRef("see_also", "d", "d", null, 5);
+    byCount.addRef("see_also", "b", "b", null, 3);
+    byCount.addRef("use_for", "e", "e", null, 1);
+
+    NamedList<Object> refs = (NamedList<Object>) byCount.limitRefs(2, false).toNamedList().get("refs");
+    NamedList<Object> seeAlso = (NamedList<Object>) refs.get("see_also");
+    assertEquals(2, seeAlso.size());
+    assertEquals("d", seeAlso.getName(0));
+    assertEquals("a", seeAlso.getName(1));
+    assertEquals(1, ((NamedList<Object>) refs.get("use_for")).size());
+
+    ReferenceAggregate byIndex = new ReferenceAggregate(10, "Hegel", null);
+    byIndex.addRef("see_also", "c", "c", null, 1);
+    byIndex.addRef("see_also", "a", "a", null, 3);
+    byIndex.addRef("see_also", "d", "d", null, 5);
+
+    seeAlso = (NamedList<Object>) ((NamedList<Object>) byIndex.limitRefs(2, true).toNamedList().get("refs")).get("see_also");
+    assertEquals(2, seeAlso.size());
+    assertEquals("a", seeAlso.getName(0));
+    assertEquals("c", seeAlso.getName(1));
+  }
+
+  @Test
+  public void testTargetCounts() throws IOException {
+    ReferenceAggregate pre = new ReferenceAggregate(3, "Clemens, Samuel", null);
+    pre.addRef("see_also", "Twain, Mark", "Twain, Mark", null, 2);
+    pre.resolveTargetCounts((filing, prefix) -> "Twain, Mark".equals(filing) ? 500L : -1L);
+
+    ReferenceAggregate add = new ReferenceAggregate(1, "Clemens, Samuel", null);
+    add.addRef("see_also", "Twain, Mark", "Twain, Mark", null, 1);
+    add.resolveTargetCounts((filing, prefix) -> 23L);
+
+    JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+    Object merged = handler.mergePayload(pre.toBytes(), add.toBytes(), 3L, 1L);
+    NamedList<Object> result = (NamedList<Object>) handler.updateValueExternalRepresentation(merged);
+    NamedList<Object> twain = (NamedList<Object>) ((NamedList<Object>) ((NamedList<Object>) result.get("refs")).get("see_also")).get("Twain, Mark");
+    assertEquals(3L, twain.get("count"));
+    assertEquals(523L, twain.get("target_count"));
+  }
+
+  @Test
+  public void testDocValuesCountsMatchPayloadScan() throws IOException {
+    String[] values = new String[] {
+      "{\"raw\": \"Twain, Mark\", \"refs\": {\"use_for\": [\"Clemens, Samuel\"], \"see_also\": [\"Snodgrass, Quintus\"]}}",
+      "{\"raw\": \"Twain, Mark\", \"refs\": {\"use_for\": [\"Clemens, Samuel\", {\"prefix\": \"The \", \"filing\": \"Innocent\"}]}}",
+      "\"Twain, Mark\"",
+      "{\"raw\": \"Twain, Mark\", \"refs\": {\"see_also\": [\"Snodgrass, Quintus\"]}}",
+      "{\"raw\": \"Clemens, Samuel\", \"refs\": {\"use_for\": [\"Twain, Mark\"]}}"
+    };
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new JsonReferencePayloadTokenizer();
+        return new TokenStreamComponents(tokenizer, new SortKeyJoinFilter(tokenizer, new ICUFoldingNormalizer(),
+            "filing", "prefix", "normalized", "indexed", '\u0000', false, true));
+      }
+    };
+    assertDocValuesCountsMatchPayloadScan(analyzer, values, new BytesRef("twain, mark\u0000Twain, Mark"));
+  }
+
+  /**
+   * DocValues keys must be unambiguous for collation-key terms that extend other terms with 0x01
+   * bytes: here, headings differing only by (ignorable) control characters share a collation key.
+   * Keys of the longer term must not be counted for the shorter.
+   */
+  @Test
+  public void testDocValuesCountsMatchPayloadScanForCollationKeys() throws IOException {
+    String[] values = new String[] {
+      "{\"raw\": \"Twain, Mark\", \"refs\": {\"use_for\": [\"Clemens, Samuel\"]}}",
+      "{\"raw\": \"Twain, Mark\\u0001\", \"refs\": {\"see_also\": [\"Snodgrass, Quintus\"]}}",
+      "{\"raw\": \"Twain, Mark\\u0001\\u0002\", \"refs\": {\"use_for\": [\"Clemens, Samuel\", \"Twain, Mark\"]}}",
+      "{\"raw\": \"Clemens, Samuel\", \"refs\": {\"use_for\": [\"Twain, Mark\\u0001\", \"Twain, Mark\\u0001\\u0002\"]}}"
+    };
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new JsonReferencePayloadTokenizer();
+        return new TokenStreamComponents(tokenizer, new SortKeyJoinFilter(tokenizer, new ICUCollationKeyNormalizer("en", "primary"),
+            "filing", "prefix", "normalized", "indexed", '\u0000', false, true));
+      }
+    };
+    assertDocValuesCountsMatchPayloadScan(analyzer, values, null);
+  }
+
+  /**
+   * Indexes the specified values, and compares entries built from docValues keys and from payloads,
+   * for the specified term (or for all terms, if null).
+   */
+  private static void assertDocValuesCountsMatchPayloadScan(Analyzer analyzer, String[] values, BytesRef term) throws IOException {
+    FieldType type = new FieldType(TextField.TYPE_NOT_STORED);
+    type.freeze();
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+    for (int i = 0; i < 60; i++) {
+      String value = values[i % values.length];
+      Document doc = new Document();
+      doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+      // "dv" also records reference keys in docValues; "scan" is read from payloads only
+      Set<BytesRef> keys = new HashSet<>();
+      doc.add(new Field("dv", CaseInsensitiveSortingTextField.collectReferenceKeys(analyzer.tokenStream("dv", value), keys), type));
+      for (BytesRef key : keys) {
+        doc.add(new SortedSetDocValuesField("dv" + CaseInsensitiveSortingTextField.REFERENCE_DOCVALUES_SUFFIX, key));
+      }
+      doc.add(new Field("scan", analyzer.tokenStream("scan", value), type));
+      writer.addDocument(doc);
+      if (i % 25 == 24) {
+        writer.commit(); // multiple segments
+      }
+    }
+    for (int i = 3; i < 60; i += 7) {
+      writer.deleteDocuments(new Term("id", Integer.toString(i)));
+    }
+    DirectoryReader reader = DirectoryReader.open(writer);
+    try {
+      JsonReferencePayloadHandler handler = new JsonReferencePayloadHandler();
+      List<BytesRef> terms = new ArrayList<>();
+      if (term != null) {
+        terms.add(term);
+      } else {
+        TermsEnum te = MultiFields.getTerms(reader, "scan").iterator();
+        BytesRef next;
+        while ((next = te.next()) != null) {
+          terms.add(BytesRef.deepCopyOf(next));
+        }
+        assertTrue(extendsWithSeparatorByte(terms));
+      }
+      for (boolean filtered : new boolean[] {false, true}) {
+        List<Entry<LeafReader, Bits>> leaves = new ArrayList<>();
+        for (LeafReaderContext context : reader.leaves()) {
+          LeafReader leaf = context.reader();
+          Bits liveDocs = leaf.getLiveDocs();
+          leaves.add(new SimpleImmutableEntry<>(leaf, filtered ? evenLiveDocs(leaf.maxDoc(), liveDocs) : liveDocs));
+        }
+        for (BytesRef t : terms) {
+          String termKey = t.utf8ToString();
+          Object dv = handler.addEntry(termKey, 0, new Term("dv", t), leaves).getValue();
+          Object scan = handler.addEntry(termKey, 0, new Term("scan", t), leaves).getValue();
+          assertEquals(termKey, canonical(scan), canonical(dv));
+          assertTrue(termKey, ((NamedList<Object>) dv).get("refs") != null);
+        }
+      }
+    } finally {
+      reader.close();
+      writer.close();
+      dir.close();
+    }
+  }
+
+  /**
+   * True if some term extends another, starting with a 0x01 byte; i.e., if a separator-based key
+   * range for the shorter term would include keys of the longer
+   */
+  private static boolean extendsWithSeparatorByte(List<BytesRef> terms) {
+    for (BytesRef shorter : terms) {
+      for (BytesRef longer : terms) {
+        if (longer.length > shorter.length && StringHelper.startsWith(longer, shorter)
+            && longer.bytes[longer.offset + shorter.length] == 1) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Bits evenLiveDocs(final int maxDoc, final Bits liveDocs) {
+    return new Bits() {
+      @Override
+      public boolean get(int index) {
+        return (index & 1) == 0 && (liveDocs == null || liveDocs.get(index));
+      }
+
+      @Override
+      public int length() {
+        return maxDoc;
+      }
+    };
+  }
+
+  /**
+   * Order-insensitive form of a NamedList structure
+   */
+  private static Object canonical(Object val) {
+    if (!(val instanceof NamedList)) {
+      return val;
+    }
+    Map<String, Object> ret = new TreeMap<>();
+    for (Entry<String, Object> e : (NamedList<Object>) val) {
+      ret.put(e.getKey(), canonical(e.getValue()));
+    }
+    return ret;
+  }
+
 }
@@ -2,11 +2,29 @@ package edu.upenn.library.solrplugins;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import static junit.framework.Assert.assertEquals;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.BytesRef;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -149,4 +167,149 @@ public class JsonReferencePayloadTokenizerTest {
     assertFalse(tokenizer.incrementToken());
   }
 
-}
+  @Test
+  public void testCompactPayloads() throws IOException {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY, Arrays.asList("see_also", "use_for"));
+    tokenizer.setReader(new StringReader("{\"raw\": {\"prefix\": \"the \", \"filing\": \"unconsoled\"}, \"refs\": {\"use_for\":[\"ref1\"], \"broader\":[\"ref2\"]}}"));
+    tokenizer.reset();
+
+    assertTrue(tokenizer.incrementToken());
+    assertTrue(tokenizer.incrementToken());
+
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref1", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    BytesRef payload = tokenizer.getAttribute(PayloadAttribute.class).getPayload();
+    assertTrue(JsonReferencePayloadTokenizer.isCompactPayload(payload));
+    assertEquals(new BytesRef(new byte[] {2, 10, 'u', 'n', 'c', 'o', 'n', 's', 'o', 'l', 'e', 'd', 4, 't', 'h', 'e', ' '}), payload);
+
+    // types not in the configured list fall back to string payloads
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref2", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    payload = tokenizer.getAttribute(PayloadAttribute.class).getPayload();
+    assertFalse(JsonReferencePayloadTokenizer.isCompactPayload(payload));
+    assertEquals("broader" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "unconsoled" + MultiPartString.DELIMITER + "the ", payload.utf8ToString());
+
+    assertFalse(tokenizer.incrementToken());
+  }
+
+  @Test
+  public void testPayloadLookahead() throws IOException {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer();
+    tokenizer.setReader(new StringReader("{\"raw\": \"some value\", \"ignored\": {\"a\": [1]}, \"refs\": {\"use_for\":[\"ref1\"], \"see_also\":[\"ref2\"]}}"));
+    tokenizer.reset();
+
+    assertTrue(tokenizer.incrementToken());
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref1", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    BytesRef payload = tokenizer.getAttribute(PayloadAttribute.class).getPayload();
+
+    // payload of the preceding token remains valid for one token of lookahead
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("ref2", tokenizer.getAttribute(CharTermAttribute.class).toString());
+    assertEquals(3, tokenizer.getAttribute(PositionIncrementAttribute.class).getPositionIncrement());
+    assertEquals("use_for" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "some value", payload.utf8ToString());
+    assertEquals("see_also" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "some value", tokenizer.getAttribute(PayloadAttribute.class).getPayload().utf8ToString());
+
+    assertFalse(tokenizer.incrementToken());
+  }
+
+  @Test
+  public void testDuplicateTargets() throws IOException {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer();
+    tokenizer.setReader(new StringReader("{\"raw\": \"x\", \"refs\": {\"use_for\":[\"a\",\"b\",\"a\",{\"prefix\": \"the \", \"filing\": \"a\"}], \"see_also\":[\"a\"]}}"));
+    tokenizer.reset();
+
+    CharTermAttribute termAtt = tokenizer.getAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncrAtt = tokenizer.getAttribute(PositionIncrementAttribute.class);
+    PayloadAttribute payloadAtt = tokenizer.getAttribute(PayloadAttribute.class);
+    String[] expectedTerms = new String[] {"x", "a", "b", "a", "the ", "a"};
+    int[] expectedPosIncrs = new int[] {1, 2, 3, 4, 0, 5};
+    String[] expectedTypes = new String[] {null, "use_for", "use_for", "use_for", "use_for", "see_also"};
+    for (int i = 0; i < expectedTerms.length; i++) {
+      assertTrue(tokenizer.incrementToken());
+      assertEquals(expectedTerms[i], termAtt.toString());
+      assertEquals(expectedPosIncrs[i], posIncrAtt.getPositionIncrement());
+      BytesRef payload = payloadAtt.getPayload();
+      if (expectedTypes[i] == null) {
+        assertNull(payload);
+      } else {
+        assertEquals(expectedTypes[i] + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "x", payload.utf8ToString());
+      }
+    }
+    assertFalse(tokenizer.incrementToken());
+
+    // duplicates are tracked per value
+    tokenizer.close();
+    tokenizer.setReader(new StringReader("{\"raw\": \"x\", \"refs\": {\"use_for\":[\"a\"]}}"));
+    tokenizer.reset();
+    assertTrue(tokenizer.incrementToken());
+    assertTrue(tokenizer.incrementToken());
+    assertEquals("a", termAtt.toString());
+    assertFalse(tokenizer.incrementToken());
+  }
+
+  @Test
+  public void testDuplicateTargetsCompactPayloads() throws IOException {
+    JsonReferencePayloadTokenizer tokenizer = new JsonReferencePayloadTokenizer(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY, Arrays.asList("see_also", "use_for"));
+    tokenizer.setReader(new StringReader("{\"raw\": \"x\", \"refs\": {\"use_for\":[{\"prefix\": \"the \", \"filing\": \"a\"},\"a\",{\"prefix\": \"the \", \"filing\": \"a\"},\"a\"], \"see_also\":[\"a\",\"a\"]}}"));
+
+    // repeated (target, payload) pairs are dropped, whether or not the target has a prefix
+    assertEquals(Arrays.asList("x", "a", "the ", "a", "a"), drain(tokenizer));
+  }
+
+  @Test
+  public void testDuplicateTargetsAcrossValues() throws IOException {
+    Analyzer analyzer = new Analyzer() {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName) {
+        return new TokenStreamComponents(new JsonReferencePayloadTokenizer());
+      }
+    };
+    String[] values = new String[] {
+      "{\"raw\": \"x\", \"refs\": {\"use_for\":[\"a\",\"a\"]}}",
+      "{\"raw\": \"x\", \"refs\": {\"use_for\":[\"a\",\"b\",\"a\"]}}"
+    };
+
+    // each value of a document is analyzed separately (by the same, reused tokenizer), so
+    // repeated targets are dropped within each value, but not across values
+    assertEquals(Arrays.asList("x", "a"), drain(analyzer.tokenStream("f", values[0])));
+    assertEquals(Arrays.asList("x", "a", "b"), drain(analyzer.tokenStream("f", values[1])));
+
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer));
+    Document doc = new Document();
+    for (String value : values) {
+      doc.add(new TextField("f", value, Field.Store.NO));
+    }
+    writer.addDocument(doc);
+    DirectoryReader reader = DirectoryReader.open(writer);
+    try {
+      // one position per value; JsonReferencePayloadHandler counts the pair once per doc
+      PostingsEnum postings = MultiFields.getTermPositionsEnum(reader, "f", new BytesRef("a"), PostingsEnum.PAYLOADS);
+      assertTrue(postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+      assertEquals(2, postings.freq());
+      for (int i = 0; i < postings.freq(); i++) {
+        postings.nextPosition();
+        assertEquals("use_for" + JsonReferencePayloadTokenizer.PAYLOAD_ATTR_SEPARATOR + "x", postings.getPayload().utf8ToString());
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.nextDoc());
+    } finally {
+      reader.close();
+      writer.close();
+      dir.close();
+    }
+  }
+
+  private static List<String> drain(TokenStream ts) throws IOException {
+    List<String> ret = new ArrayList<>();
+    CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+    ts.reset();
+    while (ts.incrementToken()) {
+      ret.add(termAtt.toString());
+    }
+    ts.end();
+    ts.close();
+    return ret;
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,298 @@
+package edu.upenn.library.solrplugins;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.FacetPayload;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Per-segment reference aggregate caching (see solrconfig-aggregatecache.xml): cached aggregates
+ * must match those scanned from postings, only unfiltered leaves of high-frequency terms are cached,
+ * and the regenerator carries over exactly the entries for segments (with deletes) unchanged by a
+ * commit. Assertions on cache statistics are relative, so that tests may run in any order.
+ */
+public class ReferenceAggregateCacheTest extends SolrTestCaseJ4 {
+
+  private static final String FIELD = "subject_xfacet";
+
+  // more than JsonReferencePayloadHandler.MIN_CACHED_DOC_FREQ, in a single segment
+  private static final int LARGE_SEGMENT_DOCS = 1100;
+
+  private static final String[] HEADINGS = new String[] {
+    "Austen, Jane", "Brontë, Charlotte", "Dickens, Charles", "Eliot, George", "James, Henry",
+    "Melville, Herman", "Twain, Mark"
+  };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-aggregatecache.xml", "schema.xml");
+    StringBuilder sb = new StringBuilder("<add>");
+    for (int i = 0; i < LARGE_SEGMENT_DOCS; i++) {
+      sb.append(doc("id", Integer.toString(i),
+          FIELD, value("Hegel, Georg Wilhelm Friedrich", "Alias " + (i % 5), "Alias " + (i % 7)),
+          FIELD, value(HEADINGS[i % HEADINGS.length], "Alias " + (i % 3))));
+    }
+    assertU(sb.append("</add>").toString());
+    assertU(commit());
+    for (int i = 0; i < 20; i++) {
+      assertU(adoc("id", "small" + i,
+          FIELD, value("Hegel, Georg Wilhelm Friedrich", "Variant " + (i % 2)),
+          FIELD, value(HEADINGS[i % HEADINGS.length], "Alias " + (i % 4))));
+    }
+    assertU(commit());
+  }
+
+  /**
+   * Aggregates built from cached segment aggregates (on miss, and on hit) must match those scanned
+   * from postings; terms below the docFreq cutoff, and filtered leaves, bypass the cache.
+   */
+  @Test
+  public void testCachedMatchesScan() throws Exception {
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      SolrCache cache = searcher.getCache(ReferenceAggregateCache.CACHE_NAME);
+      List<Entry<LeafReader, Bits>> leaves = leaves(searcher);
+      List<BytesRef> frequent = new ArrayList<>();
+      List<BytesRef> infrequent = new ArrayList<>();
+      partitionTerms(searcher, frequent, infrequent);
+      assertFalse(frequent.isEmpty());
+      assertFalse(infrequent.isEmpty());
+
+      // other tests may already have cached some of these terms
+      long[] before = stats(cache);
+      for (BytesRef term : frequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, leaves), build(searcher, term, leaves));
+      }
+      long[] after = stats(cache);
+      assertEquals(frequent.size(), after[0] - before[0]);
+      assertEquals(frequent.size(), (after[1] - before[1]) + (after[2] - before[2]));
+
+      before = stats(cache);
+      for (BytesRef term : frequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, leaves), build(searcher, term, leaves));
+      }
+      assertStatsDelta(cache, before, frequent.size(), frequent.size(), 0);
+
+      before = stats(cache);
+      for (BytesRef term : infrequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, leaves), build(searcher, term, leaves));
+      }
+      // liveDocs equal in content, but not the leaf's own instance, are treated as a filter
+      List<Entry<LeafReader, Bits>> filtered = new ArrayList<>(leaves.size());
+      for (Entry<LeafReader, Bits> leaf : leaves) {
+        LeafReader reader = leaf.getKey();
+        filtered.add(new SimpleImmutableEntry<>(reader, new Bits.MatchAllBits(reader.maxDoc())));
+      }
+      for (BytesRef term : frequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, filtered), build(searcher, term, filtered));
+      }
+      assertStatsDelta(cache, before, 0, 0, 0);
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+  }
+
+  /**
+   * On commit, entries for segments unchanged by the commit are carried over; entries for segments
+   * with new deletes are dropped, and rebuilt (excluding deleted docs) on next use.
+   */
+  @Test
+  public void testRegenerate() throws Exception {
+    populate();
+
+    // new segment only; the large segment is unchanged
+    assertU(adoc("id", "added", FIELD, value("Hegel, Georg Wilhelm Friedrich", "Added")));
+    assertU(commit());
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      SolrCache cache = searcher.getCache(ReferenceAggregateCache.CACHE_NAME);
+      List<Entry<LeafReader, Bits>> leaves = leaves(searcher);
+      List<BytesRef> frequent = new ArrayList<>();
+      partitionTerms(searcher, frequent, new ArrayList<>());
+      long[] before = stats(cache);
+      for (BytesRef term : frequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, leaves), build(searcher, term, leaves));
+      }
+      assertStatsDelta(cache, before, frequent.size(), frequent.size(), 0);
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+
+    // deletes in the large segment change its combined core-and-deletes key
+    assertU(delI("1"));
+    assertU(delI("2"));
+    assertU(commit());
+    req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      SolrCache cache = searcher.getCache(ReferenceAggregateCache.CACHE_NAME);
+      List<Entry<LeafReader, Bits>> leaves = leaves(searcher);
+      List<BytesRef> frequent = new ArrayList<>();
+      partitionTerms(searcher, frequent, new ArrayList<>());
+      long[] before = stats(cache);
+      for (BytesRef term : frequent) {
+        assertEquals(term.utf8ToString(), scan(searcher, term, leaves), build(searcher, term, leaves));
+      }
+      assertStatsDelta(cache, before, frequent.size(), 0, frequent.size());
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+  }
+
+  /**
+   * Ensures the current searcher's cache holds entries for all high-frequency terms
+   */
+  private static void populate() throws Exception {
+    SolrQueryRequest req = req();
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, new SolrQueryResponse()));
+    try {
+      SolrIndexSearcher searcher = req.getSearcher();
+      List<BytesRef> frequent = new ArrayList<>();
+      partitionTerms(searcher, frequent, new ArrayList<>());
+      for (BytesRef term : frequent) {
+        build(searcher, term, leaves(searcher));
+      }
+    } finally {
+      SolrRequestInfo.clearRequestInfo();
+      req.close();
+    }
+  }
+
+  /**
+   * Partitions the field's terms by whether their docFreq in some segment reaches the cutoff for
+   * caching
+   */
+  private static void partitionTerms(SolrIndexSearcher searcher, List<BytesRef> frequent, List<BytesRef> infrequent) throws Exception {
+    Map<BytesRef, Boolean> terms = new TreeMap<>();
+    for (LeafReaderContext context : searcher.getTopReaderContext().leaves()) {
+      Terms leafTerms = context.reader().terms(FIELD);
+      if (leafTerms == null) {
+        continue;
+      }
+      TermsEnum te = leafTerms.iterator();
+      BytesRef term;
+      while ((term = te.next()) != null) {
+        boolean cached = te.docFreq() >= 1024;
+        terms.merge(BytesRef.deepCopyOf(term), cached, Boolean::logicalOr);
+      }
+    }
+    for (Entry<BytesRef, Boolean> e : terms.entrySet()) {
+      (e.getValue() ? frequent : infrequent).add(e.getKey());
+    }
+  }
+
+  private static List<Entry<LeafReader, Bits>> leaves(SolrIndexSearcher searcher) {
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>();
+    for (LeafReaderContext context : searcher.getTopReaderContext().leaves()) {
+      LeafReader reader = context.reader();
+      ret.add(new SimpleImmutableEntry<>(reader, reader.getLiveDocs()));
+    }
+    return ret;
+  }
+
+  /**
+   * Builds the entry value as for the current request (using the cache if configured)
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> build(SolrIndexSearcher searcher, BytesRef term, List<Entry<LeafReader, Bits>> leaves) throws Exception {
+    FieldType ft = searcher.getSchema().getField(FIELD).getType();
+    Term t = new Term(FIELD, term);
+    CharsRefBuilder readable = new CharsRefBuilder();
+    ft.indexedToReadable(term, readable);
+    int count = searcher.numDocs(new TermQuery(t), searcher.getLiveDocs());
+    Entry<String, Object> entry = ((FacetPayload) ft).addEntry(readable.toString(), count, t, leaves);
+    Map<String, Object> ret = new TreeMap<>();
+    flatten("", (NamedList<Object>) entry.getValue(), ret);
+    return ret;
+  }
+
+  /**
+   * Builds the entry value directly from postings, outside of any request (so without the cache)
+   */
+  private static Map<String, Object> scan(SolrIndexSearcher searcher, BytesRef term, List<Entry<LeafReader, Bits>> leaves) throws Exception {
+    SolrRequestInfo info = SolrRequestInfo.getRequestInfo();
+    SolrRequestInfo.clearRequestInfo();
+    try {
+      return build(searcher, term, leaves);
+    } finally {
+      SolrRequestInfo.setRequestInfo(info);
+    }
+  }
+
+  /**
+   * Flattens by path, so that comparison does not depend on the order in which leaves (cached, or
+   * scanned) contributed references
+   */
+  @SuppressWarnings("unchecked")
+  private static void flatten(String path, NamedList<Object> nl, Map<String, Object> ret) {
+    for (int i = 0; i < nl.size(); i++) {
+      Object val = nl.getVal(i);
+      String childPath = path + '/' + nl.getName(i);
+      if (val instanceof NamedList) {
+        flatten(childPath, (NamedList<Object>) val, ret);
+      } else {
+        ret.put(childPath, val);
+      }
+    }
+  }
+
+  /**
+   * Returns lookups, hits, and inserts
+   */
+  private static long[] stats(SolrCache cache) {
+    NamedList stats = cache.getStatistics();
+    return new long[] {
+      ((Number) stats.get("lookups")).longValue(),
+      ((Number) stats.get("hits")).longValue(),
+      ((Number) stats.get("inserts")).longValue()
+    };
+  }
+
+  private static void assertStatsDelta(SolrCache cache, long[] before, long lookups, long hits, long inserts) {
+    long[] after = stats(cache);
+    assertEquals("lookups", lookups, after[0] - before[0]);
+    assertEquals("hits", hits, after[1] - before[1]);
+    assertEquals("inserts", inserts, after[2] - before[2]);
+  }
+
+  private static String value(String heading, String... aliases) {
+    StringBuilder sb = new StringBuilder("{\"raw\": \"").append(heading).append("\", \"refs\": {\"use_for\": [");
+    for (int i = 0; i < aliases.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append('"').append(aliases[i]).append('"');
+    }
+    return sb.append("]}}").toString();
+  }
+}
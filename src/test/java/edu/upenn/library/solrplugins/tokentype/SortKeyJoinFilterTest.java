@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.upenn.library.solrplugins.tokentype;
+
+import edu.upenn.library.solrplugins.JsonReferencePayloadTokenizer;
+import java.io.IOException;
+import java.io.StringReader;
+import com.ibm.icu.text.Collator;
+import com.ibm.icu.util.ULocale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.icu.ICUFoldingFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.AttributeFactory;
+import org.apache.lucene.util.BytesRef;
+
+public class SortKeyJoinFilterTest extends BaseTokenStreamTestCase {
+
+  private static final String[] INPUTS = new String[] {
+    "\"Twain, Mark\"",
+    "{\"filing\": \"Æthelred\", \"prefix\": \"King \"}",
+    "{\"raw\": {\"prefix\": \"The \", \"filing\": \"Ĉapek, Karel\"}, \"refs\": {\"use_for\":[\"Čapek, K.\",{\"prefix\": \"a \", \"filing\": \"STRAẞE\"}], \"see_also\":[\"ref3\"]}}",
+    "{\"raw\": \"Clemens, Samuel Langhorne, 1835-1910\", \"refs\": {\"see_also\":[\"Twain, Mark, 1835-1910\"], \"use_for\":[]}}"
+  };
+
+  private static TokenStream tokenizer(String input, boolean compact) {
+    JsonReferencePayloadTokenizer ret = new JsonReferencePayloadTokenizer(AttributeFactory.DEFAULT_ATTRIBUTE_FACTORY,
+        compact ? Arrays.asList("use_for", "see_also") : null);
+    ret.setReader(new StringReader(input));
+    return ret;
+  }
+
+  private static TokenStream splitJoinChain(String input, boolean compact, boolean outputComponents) {
+    TokenTypeSplitFilter split = new TokenTypeSplitFilter(tokenizer(input, compact), Collections.singleton("filing"),
+        null, "normalized", null);
+    split.setDelegate(new ICUFoldingFilter(split.getDelegateInput()));
+    return new TokenTypeJoinFilter(split, new String[] {"normalized", "filing", "prefix"}, "indexed", "normalized",
+        "\u0000", outputComponents, false);
+  }
+
+  private static TokenStream sortKeyChain(String input, boolean compact, boolean outputComponents) {
+    return new SortKeyJoinFilter(tokenizer(input, compact), new ICUFoldingNormalizer(), "filing", "prefix",
+        "normalized", "indexed", '\u0000', outputComponents, true);
+  }
+
+  public void testEquivalence() throws IOException {
+    for (String input : INPUTS) {
+      for (boolean compact : new boolean[] {false, true}) {
+        assertEquivalent(input, splitJoinChain(input, compact, false), sortKeyChain(input, compact, false));
+        assertEquivalent(input, splitJoinChain(input, compact, true), sortKeyChain(input, compact, true));
+      }
+    }
+  }
+
+  public void testJoinedTerm() throws IOException {
+    TokenStream ts = sortKeyChain(INPUTS[1], false, false);
+    CharTermAttribute termAtt = ts.getAttribute(CharTermAttribute.class);
+    TypeAttribute typeAtt = ts.getAttribute(TypeAttribute.class);
+    ts.reset();
+    assertTrue(ts.incrementToken());
+    assertEquals("aethelred\u0000Æthelred\u0000King ", termAtt.toString());
+    assertEquals("indexed", typeAtt.type());
+    assertFalse(ts.incrementToken());
+    ts.end();
+    ts.close();
+  }
+
+  public void testCollationKeyOrder() throws IOException {
+    String[] filings = new String[] {"zoo", "Äpfel", "b", "ab", "Zebra", "apple", "Ähre"};
+    SortKeyNormalizer normalizer = new ICUCollationKeyNormalizer("en", "primary");
+    List<BytesRef> terms = new ArrayList<>();
+    for (String filing : filings) {
+      TokenStream ts = new SortKeyJoinFilter(tokenizer("\"" + filing + "\"", false), normalizer, "filing", "prefix",
+          "normalized", "indexed", '\u0000', false, true);
+      CharTermAttribute termAtt = ts.getAttribute(CharTermAttribute.class);
+      ts.reset();
+      assertTrue(ts.incrementToken());
+      String term = termAtt.toString();
+      assertEquals(filing, term.substring(term.indexOf('\u0000') + 1));
+      terms.add(new BytesRef(term));
+      assertFalse(ts.incrementToken());
+      ts.end();
+      ts.close();
+    }
+    Collections.sort(terms);
+    String[] expected = filings.clone();
+    Arrays.sort(expected, Collator.getInstance(new ULocale("en")));
+    for (int i = 0; i < expected.length; i++) {
+      String term = terms.get(i).utf8ToString();
+      assertEquals(expected[i], term.substring(term.indexOf('\u0000') + 1));
+    }
+  }
+
+  public void testCollationKeyStrength() {
+    StringBuilder lower = new StringBuilder();
+    StringBuilder upper = new StringBuilder();
+    new ICUCollationKeyNormalizer("en", "primary").normalize("apple", lower);
+    new ICUCollationKeyNormalizer("en", "primary").normalize("APPLE", upper);
+    assertEquals(lower.toString(), upper.toString());
+    new ICUCollationKeyNormalizer("en", "tertiary").normalize("apple", lower);
+    new ICUCollationKeyNormalizer("en", "tertiary").normalize("APPLE", upper);
+    assertFalse(lower.toString().equals(upper.toString()));
+    assertTrue(lower.indexOf("\u0000") < 0);
+  }
+
+  public void testSortKeyBytes() {
+    byte[][] keys = new byte[][] {{0}, {0, 5}, {1}, {1, 0}, {1, 1}, {2}, {(byte) 0x7f}, {(byte) 0x80}, {(byte) 0xff, 0}};
+    String previous = null;
+    for (byte[] key : keys) {
+      StringBuilder sb = new StringBuilder();
+      SortKeyBytes.escape(key, 0, key.length, sb);
+      String escaped = sb.toString();
+      assertTrue(escaped.indexOf('\u0000') < 0);
+      if (previous != null) {
+        assertTrue(new BytesRef(previous).compareTo(new BytesRef(escaped)) < 0);
+      }
+      previous = escaped;
+      char[] chars = escaped.toCharArray();
+      int length = SortKeyBytes.unescape(chars, 0, chars.length);
+      assertEquals(key.length, length);
+      for (int i = 0; i < length; i++) {
+        assertEquals(key[i] & 0xff, chars[i]);
+      }
+    }
+  }
+
+  private static void assertEquivalent(String input, TokenStream expected, TokenStream actual) throws IOException {
+    CharTermAttribute expectedTerm = expected.getAttribute(CharTermAttribute.class);
+    TypeAttribute expectedType = expected.getAttribute(TypeAttribute.class);
+    PositionIncrementAttribute expectedPosIncr = expected.getAttribute(PositionIncrementAttribute.class);
+    OffsetAttribute expectedOffset = expected.getAttribute(OffsetAttribute.class);
+    PayloadAttribute expectedPayload = expected.getAttribute(PayloadAttribute.class);
+    CharTermAttribute actualTerm = actual.getAttribute(CharTermAttribute.class);
+    TypeAttribute actualType = actual.getAttribute(TypeAttribute.class);
+    PositionIncrementAttribute actualPosIncr = actual.getAttribute(PositionIncrementAttribute.class);
+    OffsetAttribute actualOffset = actual.getAttribute(OffsetAttribute.class);
+    PayloadAttribute actualPayload = actual.getAttribute(PayloadAttribute.class);
+    expected.reset();
+    actual.reset();
+    int i = 0;
+    while (expected.incrementToken()) {
+      String msg = input + " [token " + i++ + "]";
+      assertTrue(msg, actual.incrementToken());
+      assertEquals(msg, expectedTerm.toString(), actualTerm.toString());
+      assertEquals(msg, expectedType.type(), actualType.type());
+      assertEquals(msg, expectedPosIncr.getPositionIncrement(), actualPosIncr.getPositionIncrement());
+      assertEquals(msg, expectedOffset.startOffset(), actualOffset.startOffset());
+      assertEquals(msg, expectedOffset.endOffset(), actualOffset.endOffset());
+      BytesRef payload = expectedPayload.getPayload();
+      assertEquals(msg, payload == null ? null : BytesRef.deepCopyOf(payload), actualPayload.getPayload());
+    }
+    assertFalse(input, actual.incrementToken());
+    expected.end();
+    actual.end();
+    expected.close();
+    actual.close();
+  }
+
+}
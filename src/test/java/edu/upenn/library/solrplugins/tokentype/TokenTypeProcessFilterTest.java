@@ -24,6 +24,7 @@ import java.util.Collections;
 import static junit.framework.Assert.assertTrue;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ValidatingTokenFilter;
 import org.apache.lucene.analysis.core.UpperCaseFilter;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
@@ -36,7 +37,7 @@ public class TokenTypeProcessFilterTest extends BaseTokenStreamTestCase {
 
     TokenTypeProcessFilter ttpf = new TokenTypeProcessFilter(new Blah(whitespaceMockTokenizer(test)), Collections.singleton("even"),
         Collections.EMPTY_SET, "even_processed");
-    ttpf.setDelegate(new UpperCaseFilter(ttpf));
+    ttpf.setDelegate(new UpperCaseFilter(ttpf.getDelegateInput()));
     int count = 0;
     TypeAttribute typeAtt = ttpf.getAttribute(TypeAttribute.class);
     OffsetAttribute offsetAtt = ttpf.getAttribute(OffsetAttribute.class);
@@ -68,6 +69,119 @@ public class TokenTypeProcessFilterTest extends BaseTokenStreamTestCase {
 
   }
   
+  public void testMultipleDelegateTokens() throws IOException {
+    String test = "The quick red fox jumped over the lazy brown dogs";
+
+    TokenTypeProcessFilter ttpf = new TokenTypeProcessFilter(new Blah(whitespaceMockTokenizer(test)), Collections.singleton("even"),
+        Collections.EMPTY_SET, "even_processed");
+    Twice twice = new Twice(ttpf.getDelegateInput());
+    ttpf.setDelegate(twice);
+    CharTermAttribute termAtt = ttpf.getAttribute(CharTermAttribute.class);
+    PositionIncrementAttribute posIncrAtt = ttpf.getAttribute(PositionIncrementAttribute.class);
+    int count = 0;
+    ttpf.reset();
+    while (ttpf.incrementToken()) {
+      String term = termAtt.toString();
+      assertEquals(1, posIncrAtt.getPositionIncrement());
+      // last of the delegate's output tokens is retained
+      assertEquals(count % 2 == 0, term.endsWith("!"));
+      count++;
+    }
+    ttpf.end();
+    ttpf.close();
+    assertEquals(10, count);
+    // each input token is processed by the delegate exactly once
+    assertEquals(5, twice.inputs);
+    // by default, the delegate's lifecycle follows the owner's (not per token)
+    assertEquals(1, twice.resets);
+  }
+
+  private static final class Twice extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private boolean pending = false;
+    private int inputs = 0;
+    private int resets = 0;
+
+    public Twice(TokenStream input) {
+      super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if (pending) {
+        pending = false;
+        termAtt.append('!');
+        return true;
+      } else if (input.incrementToken()) {
+        inputs++;
+        pending = true;
+        return true;
+      } else {
+        return false;
+      }
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      pending = false;
+      resets++;
+    }
+
+  }
+
+  public void testLatchingDelegate() throws IOException {
+    String test = "The quick red fox jumped over the lazy brown dogs";
+
+    TokenTypeProcessFilter ttpf = new TokenTypeProcessFilter(new Blah(whitespaceMockTokenizer(test)), Collections.singleton("even"),
+        Collections.EMPTY_SET, "even_processed", true);
+    // validates the delegate's view of its input and its output, per fed token
+    TokenStream delegate = new ValidatingTokenFilter(ttpf.getDelegateInput(), "delegate input", true);
+    delegate = new ValidatingTokenFilter(new Latching(delegate), "delegate output", true);
+    ttpf.setDelegate(delegate);
+    // with a per-token lifecycle, a delegate that latches end-of-input must still see (and process) every fed token
+    assertTokenStreamContents(ttpf,
+        new String[] {"THE", "quick", "RED", "fox", "JUMPED", "over", "THE", "lazy", "BROWN", "dogs"},
+        null, null,
+        new String[] {"even_processed", null, "even_processed", null, "even_processed", null, "even_processed", null, "even_processed", null},
+        new int[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+  }
+
+  /**
+   * Upper-cases input, and (like, e.g., SynonymGraphFilter) latches once its input is exhausted,
+   * until reset.
+   */
+  private static final class Latching extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private boolean exhausted = false;
+
+    public Latching(TokenStream input) {
+      super(input);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if (exhausted) {
+        return false;
+      } else if (!input.incrementToken()) {
+        exhausted = true;
+        return false;
+      }
+      String upper = termAtt.toString().toUpperCase();
+      termAtt.setEmpty().append(upper);
+      return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      exhausted = false;
+    }
+
+  }
+
   private static final class Blah extends TokenFilter {
 
     private int i = -1;
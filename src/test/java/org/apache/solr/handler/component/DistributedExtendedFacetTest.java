@@ -0,0 +1,174 @@
+package org.apache.solr.handler.component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.solr.BaseDistributedSearchTestCase;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+/**
+ * Distributed extended (target/offset) browse over a JSON reference payload field, comparing
+ * responses across the coordinator-side variants that must not change output.
+ */
+@SolrTestCaseJ4.SuppressSSL
+public class DistributedExtendedFacetTest extends BaseDistributedSearchTestCase {
+
+  private static final String FIELD = "subject_xfacet";
+
+  private static final String[] HEADINGS = new String[] {
+    "Austen, Jane", "Brontë, Charlotte", "Clemens, Samuel Langhorne", "Dickens, Charles",
+    "Eliot, George", "Flaubert, Gustave", "Gaskell, Elizabeth", "Hegel, Georg Wilhelm Friedrich",
+    "Ibsen, Henrik", "James, Henry", "Kafka, Franz", "Lawrence, D. H.", "Melville, Herman",
+    "Nabokov, Vladimir", "Orwell, George", "Poe, Edgar Allan", "Twain, Mark", "Woolf, Virginia"
+  };
+
+  private static final String[] ALIASES = new String[] {
+    "Pseudonym A", "Pseudonym B", "Pseudonym C", "Variant D", "Variant E"
+  };
+
+  @Override
+  protected String getSolrXml() {
+    return "solr.xml";
+  }
+
+  @Test
+  @ShardsFixed(num = 3)
+  public void test() throws Exception {
+    del("*:*");
+    for (int i = 0; i < 120; i++) {
+      String heading = HEADINGS[(i * 7) % HEADINGS.length];
+      String other = HEADINGS[(i * 11 + 3) % HEADINGS.length];
+      index("id", i,
+          FIELD, value(heading, ALIASES[i % ALIASES.length], ALIASES[(i / 3) % ALIASES.length]),
+          FIELD, value(other, ALIASES[(i + 2) % ALIASES.length]));
+    }
+    commit();
+
+    doTestConcurrentMerge();
+    doTestDeferredExtend();
+    doTestTargetCounts();
+  }
+
+  /**
+   * Merging extended shard values concurrently (facet.extend.mergeThreads) must produce output
+   * identical to serial merging, including for requested thread counts above the configured limit.
+   */
+  private void doTestConcurrentMerge() throws Exception {
+    for (String target : new String[] {"Dickens", "a", "Twain, Mark", "zzz"}) {
+      ModifiableSolrParams params = browseParams(target, 2, 8);
+      QueryResponse serial = queryDistrib(params);
+      for (int mergeThreads : new int[] {1, 2, 3, 64, -1}) {
+        params.set(FacetParams.FACET_EXTEND_MERGE_THREADS, mergeThreads);
+        assertSameFacets("target=" + target + ", mergeThreads=" + mergeThreads, serial, queryDistrib(params));
+      }
+    }
+  }
+
+  /**
+   * Deferred extension (facet.extend.deferred) runs two phases: counts-only windows from each shard,
+   * then extended values for the final merged window, requested as listed terms. Output must be
+   * identical to non-deferred extended browse.
+   */
+  private void doTestDeferredExtend() throws Exception {
+    String[][] windows = new String[][] {
+      {"Dickens", "0", "5"}, {"Dickens", "3", "6"}, {"Melville", "-2", "4"}, {"a", "2", "3"}, {"zzz", "4", "10"}
+    };
+    for (String[] window : windows) {
+      ModifiableSolrParams params = browseParams(window[0], Integer.parseInt(window[1]), Integer.parseInt(window[2]));
+      QueryResponse expected = queryDistrib(params);
+      params.set(FacetParams.FACET_EXTEND_DEFERRED, true);
+      assertSameFacets("deferred " + String.join(",", window), expected, queryDistrib(params));
+      params.set(FacetParams.FACET_EXTEND_MERGE_THREADS, 2);
+      assertSameFacets("deferred, mergeThreads " + String.join(",", window), expected, queryDistrib(params));
+    }
+  }
+
+  /**
+   * Target counts (facet.refs.counts) of the merged window are counted on every shard once the
+   * window is fixed, so must match those of the equivalent non-distributed (control) request,
+   * including for targets referenced only by terms on some shards.
+   */
+  private void doTestTargetCounts() throws Exception {
+    String[][] windows = new String[][] {
+      {"Dickens", "0", "5"}, {"Melville", "-2", "4"}, {"a", "2", "3"}, {"zzz", "4", "10"}
+    };
+    for (boolean deferred : new boolean[] {false, true}) {
+      for (String[] window : windows) {
+        String message = "deferred=" + deferred + ", window=" + String.join(",", window);
+        ModifiableSolrParams params = browseParams(window[0], Integer.parseInt(window[1]), Integer.parseInt(window[2]));
+        params.set(FacetParams.FACET_EXTEND_DEFERRED, deferred);
+        params.set(FacetParams.FACET_REFS_COUNTS, true);
+        Map<String, Number> expected = targetCounts(controlClient.query(params));
+        assertFalse(message, expected.isEmpty());
+        assertEquals(message, expected, targetCounts(queryDistrib(params)));
+      }
+    }
+  }
+
+  /**
+   * Returns target counts by path (term, reference type, target), so that the comparison does not
+   * depend on the order of equal-count targets
+   */
+  private static Map<String, Number> targetCounts(QueryResponse rsp) {
+    Map<String, Number> ret = new TreeMap<>();
+    NamedList facetFields = (NamedList) ((NamedList) rsp.getResponse().get("facet_counts")).get("facet_fields");
+    collectTargetCounts("", (NamedList) facetFields.get(FIELD), ret);
+    return ret;
+  }
+
+  private static void collectTargetCounts(String path, NamedList nl, Map<String, Number> ret) {
+    for (int i = 0; i < nl.size(); i++) {
+      Object val = nl.getVal(i);
+      if ("target_count".equals(nl.getName(i))) {
+        ret.put(path, ((Number) val).longValue());
+      } else if (val instanceof NamedList) {
+        collectTargetCounts(path + '/' + nl.getName(i), (NamedList) val, ret);
+      }
+    }
+  }
+
+  private static String value(String heading, String... aliases) {
+    StringBuilder sb = new StringBuilder("{\"raw\": \"").append(heading).append("\", \"refs\": {\"use_for\": [");
+    for (int i = 0; i < aliases.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append('"').append(aliases[i]).append('"');
+    }
+    return sb.append("]}}").toString();
+  }
+
+  private static ModifiableSolrParams browseParams(String target, int offset, int limit) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", "*:*");
+    params.set("rows", 0);
+    params.set(FacetParams.FACET, true);
+    params.set(FacetParams.FACET_FIELD, FIELD);
+    params.set(FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX);
+    params.set(FacetParams.FACET_MINCOUNT, 1);
+    params.set(FacetParams.FACET_TARGET, target);
+    params.set(FacetParams.FACET_OFFSET, offset);
+    params.set(FacetParams.FACET_LIMIT, limit);
+    params.set(FacetParams.FACET_EXTEND, true);
+    return params;
+  }
+
+  private QueryResponse queryDistrib(ModifiableSolrParams params) throws Exception {
+    ModifiableSolrParams distrib = new ModifiableSolrParams(params);
+    distrib.set("shards", shards);
+    return queryServer(distrib);
+  }
+
+  private void assertSameFacets(String message, QueryResponse expected, QueryResponse actual) {
+    NamedList expectedFacets = (NamedList) expected.getResponse().get("facet_counts");
+    assertNotNull(message, expectedFacets);
+    String cmp = compare(expectedFacets, actual.getResponse().get("facet_counts"), 0, handle);
+    if (cmp != null) {
+      fail(message + ": " + cmp);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package org.apache.solr.handler.component;
+
+import java.util.Collections;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.client.solrj.response.SolrResponseBase;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.BidirectionalFacetResponseBuilder;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Coordinator-side handling of partial (timeAllowed) shard windows, driven directly through the
+ * facet component's distributed callbacks with shard responses computed locally.
+ */
+public class FacetComponentPartialResultsTest extends SolrTestCaseJ4 {
+
+  private static final String FIELD = "subject_xfacet";
+
+  private static final String[] HEADINGS = new String[] {
+    "Austen, Jane", "Brontë, Charlotte", "Dickens, Charles", "Eliot, George", "Hegel, Georg Wilhelm Friedrich",
+    "James, Henry", "Melville, Herman", "Twain, Mark"
+  };
+
+  private static final String[] SHARDS = new String[] {"shard0", "shard1"};
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    for (int i = 0; i < HEADINGS.length; i++) {
+      assertU(adoc("id", Integer.toString(i), FIELD, "{\"raw\": \"" + HEADINGS[i] + "\", \"refs\": {\"use_for\": [\"Alias " + i + "\"]}}"));
+    }
+    assertU(commit());
+  }
+
+  @Test
+  public void testPartialWindowCancelsAndIsFlagged() throws Exception {
+    RecordingShardHandler shardHandler = new RecordingShardHandler();
+    SolrQueryResponse rsp = browse(shardHandler, 1);
+    assertEquals(1, shardHandler.cancelled);
+    NamedList fieldCounts = fieldCounts(rsp);
+    assertEquals(Boolean.TRUE, fieldCounts.get(BidirectionalFacetResponseBuilder.PARTIAL_KEY));
+    assertEquals(Boolean.TRUE, rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+  }
+
+  @Test
+  public void testCompleteWindow() throws Exception {
+    RecordingShardHandler shardHandler = new RecordingShardHandler();
+    SolrQueryResponse rsp = browse(shardHandler, -1);
+    assertEquals(0, shardHandler.cancelled);
+    assertNull(fieldCounts(rsp).get(BidirectionalFacetResponseBuilder.PARTIAL_KEY));
+    assertNull(rsp.getResponseHeader().get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY));
+  }
+
+  /**
+   * Runs a two-shard target browse through the coordinator callbacks; the specified shard (if any)
+   * reports its window as partial.
+   */
+  private static SolrQueryResponse browse(ShardHandler shardHandler, int partialShard) throws Exception {
+    FacetComponent fc = (FacetComponent) h.getCore().getSearchComponent("facet");
+    SolrQueryRequest req = req("q", "*:*", "rows", "0",
+        FacetParams.FACET, "true",
+        FacetParams.FACET_FIELD, FIELD,
+        FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+        FacetParams.FACET_TARGET, "Eliot",
+        FacetParams.FACET_OFFSET, "1",
+        FacetParams.FACET_LIMIT, "4",
+        FacetParams.FACET_EXTEND, "false");
+    try {
+      req.getContext().put(CancellableShardHandlerFactory.CONTEXT_KEY, shardHandler);
+      SolrQueryResponse rsp = new SolrQueryResponse();
+      rsp.addResponseHeader(new SimpleOrderedMap<>());
+      ResponseBuilder rb = new ResponseBuilder(req, rsp, Collections.<SearchComponent>singletonList(fc));
+      rb.doFacets = true;
+      rb.shards = SHARDS;
+
+      ShardRequest sreq = new ShardRequest();
+      sreq.purpose = ShardRequest.PURPOSE_GET_TOP_IDS;
+      sreq.params = new ModifiableSolrParams(req.getParams());
+      fc.modifyRequest(rb, fc, sreq);
+      for (int i = 0; i < SHARDS.length; i++) {
+        ShardResponse srsp = new ShardResponse();
+        srsp.setShard(SHARDS[i]);
+        srsp.setShardRequest(sreq);
+        srsp.setSolrResponse(shardResponse(sreq.params, i == partialShard));
+        sreq.responses.add(srsp);
+      }
+
+      rb.stage = ResponseBuilder.STAGE_EXECUTE_QUERY;
+      fc.handleResponses(rb, sreq);
+      rb.stage = ResponseBuilder.STAGE_GET_FIELDS;
+      assertEquals(ResponseBuilder.STAGE_DONE, fc.distributedProcess(rb));
+      assertTrue(rb.outgoing.isEmpty()); // index-sorted browse needs no refinement
+      fc.finishStage(rb);
+      return rsp;
+    } finally {
+      req.close();
+    }
+  }
+
+  private static SolrResponseBase shardResponse(ModifiableSolrParams shardParams, boolean partial) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams(shardParams);
+    params.set("distrib", false);
+    params.set(ShardParams.IS_SHARD, true);
+    SolrQueryResponse rsp = h.queryAndResponse("/select", req(params));
+    NamedList<Object> values = rsp.getValues();
+    if (partial) {
+      NamedList window = (NamedList) ((NamedList) ((NamedList) values.get("facet_counts")).get("facet_fields")).get(FIELD);
+      window.add(BidirectionalFacetResponseBuilder.PARTIAL_KEY, true);
+    }
+    SolrResponseBase ret = new SolrResponseBase();
+    ret.setResponse(values);
+    return ret;
+  }
+
+  private static NamedList fieldCounts(SolrQueryResponse rsp) {
+    NamedList facetCounts = (NamedList) rsp.getValues().get("facet_counts");
+    return (NamedList) ((NamedList) facetCounts.get("facet_fields")).get(FIELD);
+  }
+
+  private static final class RecordingShardHandler extends ShardHandler {
+
+    private int cancelled = 0;
+
+    @Override
+    public void prepDistributed(ResponseBuilder rb) {
+    }
+
+    @Override
+    public void submit(ShardRequest sreq, String shard, ModifiableSolrParams params, String preferredHostAddress) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ShardResponse takeCompletedIncludingErrors() {
+      return null;
+    }
+
+    @Override
+    public ShardResponse takeCompletedOrError() {
+      return null;
+    }
+
+    @Override
+    public void cancelAll() {
+      cancelled++;
+    }
+
+    @Override
+    public ShardHandlerFactory getShardHandlerFactory() {
+      return null;
+    }
+  }
+}
@@ -18,9 +18,16 @@ package org.apache.solr.request;
 
 import java.io.IOException;
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.Env;
 import org.apache.solr.request.BidirectionalFacetResponseBuilder.SimpleTermIndexKey;
@@ -140,6 +147,86 @@ public class BidirectionalFacetResponseBuilderTest<T extends FieldType & FacetPa
     assertEquals(exp, actual);
   }
   
+  /**
+   * Extended values built concurrently (via placeholders resolved once the window is complete) must
+   * match serially built values, and must be built only for terms that survive in the window.
+   */
+  @Test
+  public void testConcurrentPendingEntries() throws IOException {
+    int[] counts = new int[12];
+    Arrays.fill(counts, 1);
+    counts[4] = 0;
+    ExtendedFacetExecutor executor = new ExtendedFacetExecutor(3, 3);
+    try {
+      for (int[] window : new int[][] {{3, 5, 0}, {3, 5, 2}, {4, 6, 5}, {2, 11, -1}, {5, 0, 3}, {12, 6, 6}}) {
+        int limit = window[0];
+        int targetIdx = window[1];
+        int offset = window[2];
+        NamedList expected = new NamedList(3);
+        BidirectionalFacetResponseBuilder.build(new PendingTestEnv<T>(offset, limit, targetIdx, expected, counts, null, 0), false);
+        for (int threads : new int[] {1, 2, 3}) {
+          NamedList actual = new NamedList(3);
+          PendingTestEnv<T> env = new PendingTestEnv<T>(offset, limit, targetIdx, actual, counts, executor, threads);
+          BidirectionalFacetResponseBuilder.build(env, false);
+          String msg = Arrays.toString(window) + ", threads=" + threads;
+          assertEquals(msg, expected, actual);
+          NamedList terms = (NamedList) actual.get("terms");
+          Set<String> surviving = new HashSet<>();
+          for (int i = 0; i < terms.size(); i++) {
+            surviving.add(terms.getName(i));
+          }
+          // evicted placeholders are never built
+          assertEquals(msg, surviving, env.built);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * If building any extended value fails, the failure propagates, and placeholders whose tasks have
+   * not yet started are cancelled (never built), releasing their permits.
+   */
+  @Test
+  public void testPendingEntriesCancelledOnFailure() {
+    NamedList<Object> window = new NamedList<>();
+    for (int i = 0; i < 5; i++) {
+      window.add(Integer.toString(i), new Pending(i));
+    }
+    Set<Integer> invoked = Collections.synchronizedSet(new HashSet<>());
+    List<Runnable> queued = new ArrayList<>();
+    int[] started = new int[1];
+    Executor executor = (r) -> {
+      // first two tasks run immediately; the rest stay queued (e.g., behind other requests' work)
+      if (started[0]++ < 2) {
+        r.run();
+      } else {
+        queued.add(r);
+      }
+    };
+    Semaphore permits = new Semaphore(5);
+    try {
+      BidirectionalFacetResponseBuilder.buildPendingEntries(window, Pending.class, (pending) -> {
+        invoked.add(pending.index);
+        if (pending.index == 1) {
+          throw new IllegalStateException("failed building " + pending.index);
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(Integer.toString(pending.index), "built");
+      }, executor, permits, BidirectionalFacetResponseBuilder.NO_DEADLINE);
+      fail("expected failure to propagate");
+    } catch (IllegalStateException ex) {
+      assertEquals("failed building 1", ex.getMessage());
+    }
+    assertEquals(3, queued.size());
+    assertEquals(5, permits.availablePermits());
+    for (Runnable r : queued) {
+      r.run(); // cancelled; no-op
+    }
+    assertEquals(new HashSet<>(Arrays.asList(0, 1)), invoked);
+    assertEquals(5, permits.availablePermits());
+  }
+
   private NamedList buildExpected(Integer expectedTargetOffset, int... expected) {
     NamedList ret = new NamedList(3);
     ret.add("count", expected.length);
@@ -221,4 +308,50 @@ public class BidirectionalFacetResponseBuilderTest<T extends FieldType & FacetPa
       // stub
     }
   }
+
+  private static final class Pending {
+    private final int index;
+
+    private Pending(int index) {
+      this.index = index;
+    }
+  }
+
+  /**
+   * Adds placeholders for window entries, and builds their values in finalize (serially if no
+   * executor is specified)
+   */
+  private static final class PendingTestEnv<T extends FieldType & FacetPayload> extends TestEnv<T> {
+
+    private final int[] counts;
+    private final Executor executor;
+    private final int threads;
+    private final Set<String> built = Collections.synchronizedSet(new HashSet<>());
+
+    public PendingTestEnv(int offset, int limit, int targetIdx, NamedList res, int[] counts, Executor executor, int threads) {
+      super(offset, limit, targetIdx, 1, "myField", null, res, counts);
+      this.counts = counts;
+      this.executor = executor;
+      this.threads = threads;
+    }
+
+    @Override
+    public void addEntry(BidirectionalFacetResponseBuilder.LimitMinder<T, SimpleTermIndexKey> limitMinder, SimpleTermIndexKey facetKey, Deque<Map.Entry<String, Object>> entryBuilder) throws IOException {
+      int index = facetKey.index;
+      limitMinder.addEntry(new AbstractMap.SimpleImmutableEntry<>(Integer.toString(index), new Pending(index)), entryBuilder);
+    }
+
+    @Override
+    public NamedList<Object> finalize(NamedList<Object> ret) {
+      BidirectionalFacetResponseBuilder.buildPendingEntries(ret, Pending.class, (pending) -> {
+        String term = Integer.toString(pending.index);
+        built.add(term);
+        if (executor != null) {
+          Thread.yield(); // vary completion order
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(term, "extended:" + counts[pending.index]);
+      }, executor == null ? Runnable::run : executor, new Semaphore(executor == null ? 1 : threads), getDeadline());
+      return ret;
+    }
+  }
 }
@@ -0,0 +1,308 @@
+package org.apache.solr.request;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Extended entry cache lookups, cached values, and autowarming; see solrconfig-entrycache.xml.
+ * Assertions on cache statistics are relative, so that tests may run in any order.
+ */
+public class ExtendedEntryCacheTest extends SolrTestCaseJ4 {
+
+  private static final String FIELD = "subject_xfacet";
+
+  private static final String[] HEADINGS = new String[] {
+    "Austen, Jane", "Brontë, Charlotte", "Dickens, Charles", "Eliot, George", "Hegel, Georg Wilhelm Friedrich",
+    "James, Henry", "Melville, Herman", "Twain, Mark"
+  };
+
+  private static final int TERMS = 12;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-entrycache.xml", "schema.xml");
+    for (int i = 0; i < 40; i++) {
+      assertU(adoc("id", Integer.toString(i),
+          FIELD, ExtendedFacetTest.value(HEADINGS[(i * 3) % HEADINGS.length], "Alias " + (i % 4), "Alias " + (i % 5)),
+          FIELD, ExtendedFacetTest.value(HEADINGS[(i * 5 + 1) % HEADINGS.length], "Alias " + (i % 3))));
+      if (i % 20 == 19) {
+        assertU(commit()); // several segments
+      }
+    }
+    assertU(commit());
+  }
+
+  /**
+   * Lookups of cached terms hit, and return the compact form of a freshly built value; other
+   * lookups miss, and cache the entry. Requests that resolve target counts, and filtered DocSets,
+   * are keyed apart from default match-all lookups.
+   */
+  @Test
+  public void testHitMissAndVariants() throws Exception {
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      FacetPayload fp = payload(searcher);
+      SolrCache cache = searcher.getCache(ExtendedEntryCache.CACHE_NAME);
+      List<Term> terms = terms(searcher, fp, "Alias");
+      DocSet all = searcher.getLiveDocs();
+
+      // other tests may already have cached some of these terms
+      long[] before = stats(cache);
+      for (Term t : terms) {
+        assertSameValue(t, fp, fresh(searcher, fp, t), cached(searcher, fp, t, all, true));
+      }
+      long[] after = stats(cache);
+      assertEquals(terms.size(), after[0] - before[0]);
+      assertEquals(terms.size(), (after[1] - before[1]) + (after[2] - before[2]));
+
+      before = stats(cache);
+      for (Term t : terms) {
+        Object val = cached(searcher, fp, t, all, true);
+        assertTrue(t.text(), val instanceof byte[]);
+        assertSameValue(t, fp, fresh(searcher, fp, t), val);
+      }
+      assertStatsDelta(cache, before, terms.size(), terms.size(), 0);
+
+      setRequestInfo(FacetParams.FACET_REFS_COUNTS, "true");
+      try {
+        before = stats(cache);
+        for (Term t : terms) {
+          assertSameValue(t, fp, fresh(searcher, fp, t), cached(searcher, fp, t, all, true));
+        }
+        assertStatsDelta(cache, before, terms.size(), 0, terms.size());
+        before = stats(cache);
+        for (Term t : terms) {
+          assertSameValue(t, fp, fresh(searcher, fp, t), cached(searcher, fp, t, all, true));
+        }
+        assertStatsDelta(cache, before, terms.size(), terms.size(), 0);
+      } finally {
+        clearRequestInfo();
+      }
+
+      before = stats(cache);
+      DocSet filtered = searcher.getDocSet(new TermQuery(new Term("id", "3")));
+      for (Term t : terms) {
+        cached(searcher, fp, t, filtered, false);
+      }
+      assertStatsDelta(cache, before, terms.size(), 0, terms.size());
+    } finally {
+      ref.decref();
+    }
+  }
+
+  /**
+   * Browse output served from cached entries must be identical to output built fresh.
+   */
+  @Test
+  public void testCachedBrowseMatchesFresh() throws Exception {
+    String[][] windows = new String[][] {{"Dickens", "0", "3"}, {"Hegel", "-2", "4"}, {"a", "1", "5"}};
+    for (String[] window : windows) {
+      String first = browse(window);
+      long[] before = searcherStats();
+      assertEquals("window=" + String.join(",", window), first, browse(window));
+      long[] after = searcherStats();
+      assertTrue("window=" + String.join(",", window), after[1] > before[1]);
+      assertEquals("window=" + String.join(",", window), before[2], after[2]);
+    }
+  }
+
+  /**
+   * On commit, default match-all entries are rebuilt against the new searcher (reflecting index
+   * changes); entries for other variants, and for filtered DocSets, are dropped.
+   */
+  @Test
+  public void testRegenerate() throws Exception {
+    List<BytesRef> cachedTerms = new ArrayList<>();
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      FacetPayload fp = payload(searcher);
+      DocSet filtered = searcher.getDocSet(new TermQuery(new Term("id", "5")));
+      for (Term t : terms(searcher, fp, "Dickens")) {
+        cachedTerms.add(t.bytes());
+        cached(searcher, fp, t, searcher.getLiveDocs(), true);
+        cached(searcher, fp, t, filtered, false);
+        setRequestInfo(FacetParams.FACET_REFS_LIMIT, "1");
+        try {
+          cached(searcher, fp, t, searcher.getLiveDocs(), true);
+        } finally {
+          clearRequestInfo();
+        }
+      }
+    } finally {
+      ref.decref();
+    }
+
+    // change the count and references of the first cached term
+    assertU(adoc("id", "new", FIELD, ExtendedFacetTest.value("Dickens, Charles", "Boz")));
+    assertU(commit());
+
+    ref = h.getCore().getSearcher();
+    try {
+      SolrIndexSearcher searcher = ref.get();
+      FacetPayload fp = payload(searcher);
+      SolrCache cache = searcher.getCache(ExtendedEntryCache.CACHE_NAME);
+      List<Term> terms = new ArrayList<>(cachedTerms.size());
+      for (BytesRef term : cachedTerms) {
+        terms.add(new Term(FIELD, term));
+      }
+
+      long[] before = stats(cache);
+      for (Term t : terms) {
+        assertSameValue(t, fp, fresh(searcher, fp, t), cached(searcher, fp, t, searcher.getLiveDocs(), true));
+      }
+      assertStatsDelta(cache, before, terms.size(), terms.size(), 0);
+
+      before = stats(cache);
+      DocSet filtered = searcher.getDocSet(new TermQuery(new Term("id", "5")));
+      for (Term t : terms) {
+        cached(searcher, fp, t, filtered, false);
+      }
+      setRequestInfo(FacetParams.FACET_REFS_LIMIT, "1");
+      try {
+        for (Term t : terms) {
+          cached(searcher, fp, t, searcher.getLiveDocs(), true);
+        }
+      } finally {
+        clearRequestInfo();
+      }
+      assertStatsDelta(cache, before, 2 * terms.size(), 0, 2 * terms.size());
+    } finally {
+      ref.decref();
+    }
+  }
+
+  private static String browse(String[] window) throws Exception {
+    return h.query(req("q", "*:*", "rows", "0", "omitHeader", "true",
+        FacetParams.FACET, "true",
+        FacetParams.FACET_FIELD, FIELD,
+        FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+        FacetParams.FACET_MINCOUNT, "1",
+        FacetParams.FACET_TARGET, window[0],
+        FacetParams.FACET_OFFSET, window[1],
+        FacetParams.FACET_LIMIT, window[2],
+        FacetParams.FACET_EXTEND, "true"));
+  }
+
+  private static FacetPayload payload(SolrIndexSearcher searcher) {
+    return (FacetPayload) searcher.getSchema().getField(FIELD).getType();
+  }
+
+  /**
+   * Returns up to {@link #TERMS} indexed terms (starting at the specified prefix) for which the
+   * payload builds an entry
+   */
+  private static List<Term> terms(SolrIndexSearcher searcher, FacetPayload fp, String start) throws Exception {
+    List<Term> ret = new ArrayList<>();
+    TermsEnum te = MultiFields.getTerms(searcher.getIndexReader(), FIELD).iterator();
+    if (te.seekCeil(new BytesRef(start.toLowerCase())) == TermsEnum.SeekStatus.END) {
+      te = MultiFields.getTerms(searcher.getIndexReader(), FIELD).iterator();
+    } else {
+      ret.add(new Term(FIELD, BytesRef.deepCopyOf(te.term())));
+    }
+    BytesRef term;
+    while (ret.size() < TERMS && (term = te.next()) != null) {
+      ret.add(new Term(FIELD, BytesRef.deepCopyOf(term)));
+    }
+    List<Term> built = new ArrayList<>(ret.size());
+    for (Term t : ret) {
+      if (fresh(searcher, fp, t) != null) {
+        built.add(t);
+      }
+    }
+    assertFalse(built.isEmpty());
+    return built;
+  }
+
+  private static List<Entry<LeafReader, Bits>> leaves(SolrIndexSearcher searcher) {
+    List<Entry<LeafReader, Bits>> ret = new ArrayList<>();
+    for (LeafReaderContext context : searcher.getTopReaderContext().leaves()) {
+      LeafReader reader = context.reader();
+      ret.add(new SimpleImmutableEntry<>(reader, reader.getLiveDocs()));
+    }
+    return ret;
+  }
+
+  private static Object fresh(SolrIndexSearcher searcher, FacetPayload fp, Term t) throws Exception {
+    int count = searcher.numDocs(new TermQuery(t), searcher.getLiveDocs());
+    Entry<String, Object> entry = fp.addEntry(t.text(), count, t, leaves(searcher));
+    return entry == null ? null : entry.getValue();
+  }
+
+  private static Object cached(SolrIndexSearcher searcher, FacetPayload fp, Term t, DocSet docs, boolean matchAll) throws Exception {
+    int count = searcher.numDocs(new TermQuery(t), searcher.getLiveDocs());
+    Entry<String, Object> entry = ExtendedEntryCache.forRequest(searcher, docs, matchAll)
+        .addEntry(fp, t.text(), count, t, leaves(searcher));
+    return entry == null ? null : entry.getValue();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void assertSameValue(Term t, FacetPayload fp, Object expected, Object actual) {
+    assertNotNull(t.text(), actual);
+    assertTrue(t.text(), Arrays.equals(compact(fp, expected), compact(fp, actual)));
+    assertEquals(t.text(), fp.extractCount(expected), fp.extractCount(actual));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static byte[] compact(FacetPayload fp, Object val) {
+    return val instanceof byte[] ? (byte[]) val : (byte[]) fp.updateValueCompactRepresentation(val);
+  }
+
+  private static void setRequestInfo(String... params) {
+    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req(params), new SolrQueryResponse()));
+  }
+
+  private static void clearRequestInfo() {
+    SolrQueryRequest req = SolrRequestInfo.getRequestInfo().getReq();
+    SolrRequestInfo.clearRequestInfo();
+    req.close();
+  }
+
+  private static long[] searcherStats() {
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      return stats(ref.get().getCache(ExtendedEntryCache.CACHE_NAME));
+    } finally {
+      ref.decref();
+    }
+  }
+
+  /**
+   * Returns lookups, hits, and inserts
+   */
+  private static long[] stats(SolrCache cache) {
+    return new long[] {
+      ((Number) cache.getStatistics().get("lookups")).longValue(),
+      ((Number) cache.getStatistics().get("hits")).longValue(),
+      ((Number) cache.getStatistics().get("inserts")).longValue()
+    };
+  }
+
+  private static void assertStatsDelta(SolrCache cache, long[] before, long lookups, long hits, long inserts) {
+    long[] after = stats(cache);
+    assertEquals("lookups", lookups, after[0] - before[0]);
+    assertEquals("hits", hits, after[1] - before[1]);
+    assertEquals("inserts", inserts, after[2] - before[2]);
+  }
+}
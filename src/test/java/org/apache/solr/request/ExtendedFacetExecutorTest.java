@@ -0,0 +1,39 @@
+package org.apache.solr.request;
+
+import static junit.framework.Assert.assertEquals;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class ExtendedFacetExecutorTest {
+
+  @Test
+  public void testThreadsClampedToConfiguredLimit() {
+    NamedList<Object> args = new NamedList<>();
+    args.add(ExtendedFacetExecutor.POOL_SIZE_ARG, 4);
+    args.add(ExtendedFacetExecutor.MAX_THREADS_PER_REQUEST_ARG, "3");
+    ExtendedFacetExecutor executor = ExtendedFacetExecutor.fromArgs(args);
+    try {
+      assertEquals(4, executor.getPoolSize());
+      assertEquals(3, executor.getMaxThreadsPerRequest());
+      assertEquals(0, executor.threadsFor(0));
+      assertEquals(2, executor.threadsFor(2));
+      assertEquals(3, executor.threadsFor(3));
+      assertEquals(3, executor.threadsFor(1000));
+      assertEquals(3, executor.threadsFor(-1));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testDefaults() {
+    ExtendedFacetExecutor executor = ExtendedFacetExecutor.fromArgs(new NamedList<>());
+    try {
+      int processors = Runtime.getRuntime().availableProcessors();
+      assertEquals(processors, executor.getPoolSize());
+      assertEquals(processors, executor.getMaxThreadsPerRequest());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package org.apache.solr.request;
+
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.FacetParams;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Single-core extended (target/offset) browse over a JSON reference payload field
+ */
+public class ExtendedFacetTest extends SolrTestCaseJ4 {
+
+  private static final String FIELD = "subject_xfacet";
+
+  private static final String[] HEADINGS = new String[] {
+    "Austen, Jane", "Brontë, Charlotte", "Clemens, Samuel Langhorne", "Dickens, Charles",
+    "Eliot, George", "Flaubert, Gustave", "Gaskell, Elizabeth", "Hegel, Georg Wilhelm Friedrich",
+    "Ibsen, Henrik", "James, Henry", "Kafka, Franz", "Lawrence, D. H.", "Melville, Herman"
+  };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig.xml", "schema.xml");
+    for (int i = 0; i < 60; i++) {
+      assertU(adoc("id", Integer.toString(i),
+          FIELD, value(HEADINGS[(i * 5) % HEADINGS.length], "Alias " + (i % 4), "Alias " + (i % 7)),
+          FIELD, value(HEADINGS[(i * 3 + 1) % HEADINGS.length], "Alias " + (i % 3))));
+      if (i % 20 == 19) {
+        assertU(commit()); // several segments
+      }
+    }
+    assertU(commit());
+  }
+
+  /**
+   * Extended values built concurrently (facet.extend.threads) must match serially built values,
+   * for windows built in either direction (including those in which entries are evicted), and for
+   * requested thread counts above the configured per-request limit.
+   */
+  @Test
+  public void testConcurrentExtendMatchesSerial() throws Exception {
+    String[][] windows = new String[][] {
+      {"Dickens", "0", "3"}, {"Dickens", "2", "5"}, {"Hegel", "-2", "4"}, {"a", "3", "3"},
+      {"zzz", "4", "6"}, {"Ibsen", "20", "30"}
+    };
+    for (String[] window : windows) {
+      String serial = browse(window, 0);
+      for (int threads : new int[] {1, 2, 3, 50, -1}) {
+        assertEquals("window=" + String.join(",", window) + ", threads=" + threads, serial, browse(window, threads));
+      }
+    }
+  }
+
+  /**
+   * Target windows are bounded by the facet component's targetMaxLimit (1000 in the test config);
+   * other facets are not.
+   */
+  @Test
+  public void testTargetMaxLimit() throws Exception {
+    browse(new String[] {"Dickens", "0", "1000"}, 0);
+    for (String limit : new String[] {"1001", "-1"}) {
+      assertQEx("facet.limit=" + limit, req("q", "*:*", "rows", "0",
+          FacetParams.FACET, "true",
+          FacetParams.FACET_FIELD, "{!key=k}" + FIELD,
+          FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+          FacetParams.FACET_TARGET, "Dickens",
+          "f." + FIELD + "." + FacetParams.FACET_LIMIT, limit), ErrorCode.BAD_REQUEST);
+    }
+    assertQ(req("q", "*:*", "rows", "0",
+        FacetParams.FACET, "true",
+        FacetParams.FACET_FIELD, FIELD,
+        FacetParams.FACET_LIMIT, "-1"),
+        "//lst[@name='facet_fields']/lst[@name='" + FIELD + "']");
+  }
+
+  /**
+   * Reference counts read from docValues keys must match those scanned from payloads, including for
+   * headings that share a collation key (control characters are ignorable at primary strength), so
+   * that their indexed terms extend one another with 0x01 bytes.
+   */
+  @Test
+  public void testReferenceDocValuesWithCollationKeys() throws Exception {
+    String[] headings = new String[] {"Twain, Mark", "Twain, Mark\\u0001\\u0002Clemens", "Twain, Mark\\u0001", "Clemens, Samuel"};
+    for (int i = 0; i < 24; i++) {
+      String value = value(headings[i % headings.length], "Alias " + (i % 3), "Twain, Mark\\u0001\\u0002" + (i % 2));
+      assertU(adoc("id", "ck" + i, "subject_ck_xfacet", value, "subject_ck_scan_xfacet", value));
+    }
+    assertU(commit());
+    for (String target : new String[] {"Twain", "Clemens", "a"}) {
+      String expected = collationBrowse("subject_ck_scan_xfacet", target);
+      assertTrue(target, expected.contains("Alias 1"));
+      assertEquals(target, expected, collationBrowse("subject_ck_xfacet", target));
+    }
+  }
+
+  private static String collationBrowse(String field, String target) throws Exception {
+    return h.query(req("q", "*:*", "rows", "0", "omitHeader", "true",
+        FacetParams.FACET, "true",
+        FacetParams.FACET_FIELD, "{!key=k}" + field,
+        FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+        FacetParams.FACET_MINCOUNT, "1",
+        FacetParams.FACET_TARGET, target,
+        FacetParams.FACET_OFFSET, "0",
+        FacetParams.FACET_LIMIT, "10",
+        FacetParams.FACET_EXTEND, "true"));
+  }
+
+  private static String browse(String[] window, int threads) throws Exception {
+    return h.query(req("q", "*:*", "rows", "0", "omitHeader", "true",
+        FacetParams.FACET, "true",
+        FacetParams.FACET_FIELD, FIELD,
+        FacetParams.FACET_SORT, FacetParams.FACET_SORT_INDEX,
+        FacetParams.FACET_MINCOUNT, "1",
+        FacetParams.FACET_TARGET, window[0],
+        FacetParams.FACET_OFFSET, window[1],
+        FacetParams.FACET_LIMIT, window[2],
+        FacetParams.FACET_EXTEND, "true",
+        FacetParams.FACET_EXTEND_THREADS, Integer.toString(threads)));
+  }
+
+  static String value(String heading, String... aliases) {
+    StringBuilder sb = new StringBuilder("{\"raw\": \"").append(heading).append("\", \"refs\": {\"use_for\": [");
+    for (int i = 0; i < aliases.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append('"').append(aliases[i]).append('"');
+    }
+    return sb.append("]}}").toString();
+  }
+}